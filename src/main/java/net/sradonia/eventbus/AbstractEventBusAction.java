@@ -18,10 +18,16 @@
 package net.sradonia.eventbus;
 
 import java.awt.event.ActionEvent;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.AbstractAction;
 import javax.swing.Icon;
 
+import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.RenamingThreadFactory;
+
 /**
  * <p>
  * An abstract {@link Action} that publishes performed {@link ActionEvent events} to an event bus.
@@ -29,12 +35,23 @@ import javax.swing.Icon;
  * <p>
  * The bus and the topic can be specified by implementing/overriding the <code>getEventXXX()</code> methods.
  * </p>
+ * <p>
+ * In {@link #setAsynchronous(boolean) asynchronous} mode the event is published by a background thread, so slow event subscribers never block the
+ * event dispatch thread. Asynchronously published events keep their order.
+ * </p>
  * 
  * @author Stefan Rado
  */
 abstract public class AbstractEventBusAction extends AbstractAction {
 	private static final long serialVersionUID = 3890297390092501629L;
 
+	private static class AsyncExecutorHolder {
+		static final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(new RenamingThreadFactory(
+				"EventBusAction-PublisherThread-")));
+	}
+
+	private boolean asynchronous;
+
 	public AbstractEventBusAction() {
 	}
 
@@ -52,8 +69,46 @@ abstract public class AbstractEventBusAction extends AbstractAction {
 
 	abstract public EventBus getEventBus();
 
-	public void actionPerformed(ActionEvent e) {
-		getEventBus().publish(getEventTopic(), e);
+	/**
+	 * @return <code>true</code> if events are published by a background thread instead of the event dispatch thread
+	 * @see #setAsynchronous(boolean)
+	 */
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * Sets whether performed events should be published by a background thread instead of the event dispatch thread. Default is <code>false</code>.
+	 * 
+	 * @param asynchronous
+	 *            <code>true</code> to publish asynchronously
+	 */
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	/**
+	 * Returns the {@link Executor} used to publish events in asynchronous mode. The default implementation returns a daemon thread shared by all
+	 * actions.
+	 * 
+	 * @return the executor for asynchronous publishing
+	 */
+	protected Executor getAsyncExecutor() {
+		return AsyncExecutorHolder.executor;
+	}
+
+	public void actionPerformed(final ActionEvent e) {
+		final EventBus eventBus = getEventBus();
+		final String topic = getEventTopic();
+		if (asynchronous) {
+			getAsyncExecutor().execute(new Runnable() {
+				public void run() {
+					eventBus.publish(topic, e);
+				}
+			});
+		} else {
+			eventBus.publish(topic, e);
+		}
 	}
 
 }
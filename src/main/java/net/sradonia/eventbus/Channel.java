@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A pre-resolved publishing handle for events of a certain class and topic, obtained via {@link EventBus#channel(Class, String)}.
+ * </p>
+ * 
+ * <p>
+ * The matching rate limits, veto listeners and subscribers are resolved once and kept up to date by the bus whenever a subscription changes. Publishing an event
+ * is a single volatile read followed by a loop over the listeners.
+ * </p>
+ * 
+ * <p>
+ * Listeners are resolved for the channel's class, so an event of a subclass will only be delivered to listeners subscribed to the channel's class
+ * or one of its superclasses.
+ * </p>
+ * 
+ * @author Stefan Rado
+ * @param <T>
+ *            the class of the events published on this channel
+ */
+public final class Channel<T> {
+	private static Log log = LogFactory.getLog(Channel.class);
+
+	private static class Dispatch {
+		final RateLimiter[] rateLimiters;
+		final VetoListener[] vetoListeners;
+		final EventSubscriber[] subscribers;
+
+		Dispatch(RateLimiter[] rateLimiters, VetoListener[] vetoListeners, EventSubscriber[] subscribers) {
+			this.rateLimiters = rateLimiters;
+			this.vetoListeners = vetoListeners;
+			this.subscribers = subscribers;
+		}
+	}
+
+	private final EventBus eventBus;
+	private final Class<T> type;
+	private final String topic;
+
+	private volatile Dispatch dispatch;
+
+	Channel(EventBus eventBus, Class<T> type, String topic) {
+		this.eventBus = eventBus;
+		this.type = type;
+		this.topic = topic;
+	}
+
+	void update(RateLimiter[] rateLimiters, Set<VetoListener> vetoListeners, Set<EventSubscriber> subscribers) {
+		dispatch = new Dispatch(rateLimiters, vetoListeners.toArray(new VetoListener[vetoListeners.size()]), subscribers.toArray(new EventSubscriber[subscribers
+				.size()]));
+	}
+
+	/**
+	 * Publishes an event on the channel's bus using the channel's topic.
+	 * 
+	 * @param event
+	 *            the event object
+	 * @return <code>true</code> if the event has been published successfully, <code>false</code> if it has been vetoed or rejected by a rate
+	 *         limit
+	 */
+	public boolean publish(T event) {
+		if (event == null)
+			throw new IllegalArgumentException("can't publish null event!");
+
+		if (log.isInfoEnabled())
+			log.info("publishing on channel {topic=" + topic + ", event=" + event + "}");
+
+		Dispatch dispatch = this.dispatch;
+		if (dispatch.rateLimiters.length > 0) {
+			RateLimiter limiter = eventBus.throttle(dispatch.rateLimiters, topic, event);
+			if (limiter != null)
+				return limiter.getPolicy() == ThrottlePolicy.SAMPLE;
+		}
+		if (dispatch.vetoListeners.length > 0 && eventBus.isVetoed(dispatch.vetoListeners, topic, event))
+			return false;
+		eventBus.deliver(dispatch.subscribers, topic, event);
+		return true;
+	}
+
+	/**
+	 * @return the bus this channel publishes on
+	 */
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * @return the class of the events published on this channel
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the topic of the events published on this channel, may be <code>null</code>
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return the number of subscribers currently receiving events published on this channel
+	 */
+	public int getSubscriberCount() {
+		return dispatch.subscribers.length;
+	}
+
+	@Override
+	public String toString() {
+		return "Channel[type=" + type.getName() + ", topic=" + topic + "]";
+	}
+}
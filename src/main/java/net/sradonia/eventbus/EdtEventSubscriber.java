@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * An {@link EventSubscriber} decorator which delivers events to the wrapped subscriber on the AWT event dispatch thread.
+ * </p>
+ * 
+ * <p>
+ * Events are collected per subscriber and handed over in batches: no matter how many events are published in a burst and how many subscribers are
+ * wrapped, there is at most one pending {@link EventQueue#invokeLater(Runnable)} call at any time. The wrapped subscriber still receives every event
+ * in publishing order via {@link EventSubscriber#onEvent(String, Object)}.
+ * </p>
+ * 
+ * <p>
+ * Example:
+ * 
+ * <pre>
+ * eventBus.subscribe(StatusEvent.class, new EdtEventSubscriber(statusBar));
+ * </pre>
+ * 
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class EdtEventSubscriber implements EventSubscriber {
+	private static final Log log = LogFactory.getLog(EdtEventSubscriber.class);
+
+	/**
+	 * Subscribers with pending events. Shared by all instances so that a single {@link EventQueue#invokeLater(Runnable)} serves all of them.
+	 */
+	private static final Queue<EdtEventSubscriber> dirtySubscribers = new ConcurrentLinkedQueue<EdtEventSubscriber>();
+	private static final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+	private static final Runnable dispatcher = new Runnable() {
+		public void run() {
+			dispatchScheduled.set(false);
+			EdtEventSubscriber subscriber;
+			while ((subscriber = dirtySubscribers.poll()) != null)
+				subscriber.deliverPending();
+		}
+	};
+
+	private final EventSubscriber subscriber;
+
+	private List<Object[]> pendingEvents = new ArrayList<Object[]>();
+	private boolean queued;
+
+	/**
+	 * Creates a new EDT decorator for the given subscriber.
+	 * 
+	 * @param subscriber
+	 *            the subscriber that should receive its events on the event dispatch thread
+	 */
+	public EdtEventSubscriber(EventSubscriber subscriber) {
+		if (subscriber == null)
+			throw new IllegalArgumentException("subscriber can't be null");
+		this.subscriber = subscriber;
+	}
+
+	/**
+	 * @return the decorated subscriber
+	 */
+	public EventSubscriber getSubscriber() {
+		return subscriber;
+	}
+
+	public void onEvent(String topic, Object event) {
+		synchronized (this) {
+			pendingEvents.add(new Object[] { topic, event });
+			if (queued)
+				return;
+			queued = true;
+		}
+		dirtySubscribers.add(this);
+		if (dispatchScheduled.compareAndSet(false, true))
+			EventQueue.invokeLater(dispatcher);
+	}
+
+	/**
+	 * Delivers all events collected since the last batch. Events published while delivering will be handed over in the next batch.
+	 */
+	private void deliverPending() {
+		List<Object[]> events;
+		synchronized (this) {
+			events = pendingEvents;
+			pendingEvents = new ArrayList<Object[]>();
+			queued = false;
+		}
+		for (Object[] event : events) {
+			try {
+				subscriber.onEvent((String) event[0], event[1]);
+			} catch (RuntimeException e) {
+				if (log.isErrorEnabled())
+					log.error(subscriber + " threw an exception while handling event {topic=" + event[0] + ", event=" + event[1] + "} on the EDT", e);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EdtEventSubscriber[" + subscriber + "]";
+	}
+}
@@ -17,17 +17,36 @@
  *****************************************************************************/
 package net.sradonia.eventbus;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.RenamingThreadFactory;
+import net.sradonia.time.HashedTimingWheel;
+import net.sradonia.time.Timeout;
+
 /**
  * The EventBus core class.
  * 
@@ -37,18 +56,40 @@ public class EventBus {
 	private static Log log = LogFactory.getLog(EventBus.class);
 
 	protected static HashMap<Object, EventBus> buses = new HashMap<Object, EventBus>();
+	protected static AtomicInteger partitionThreadCount = new AtomicInteger(0);
+	protected static AtomicLong correlationIds = new AtomicLong(0);
+	protected static ConcurrentMap<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<Long, PendingRequest>();
+
+	private static class TimerHolder {
+		static final HashedTimingWheel timer = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 512, new DaemonThreadFactory(
+				new RenamingThreadFactory("EventBus-Timer-")));
+		static final ExecutorService delayedPublisher = Executors.newSingleThreadExecutor(new DaemonThreadFactory(new RenamingThreadFactory(
+				"EventBus-DelayedPublisher-")));
+	}
+
+	protected volatile ListenerSet<VetoListener> vetoListeners;
+	protected volatile ListenerRegistry<Class<?>, VetoListener> vetoListenersForClass;
+	protected volatile ListenerRegistry<Class<?>, VetoListener> vetoListenersForExactClass;
+	protected volatile ListenerRegistry<Pattern, VetoListener> vetoListenersForTopic;
+	protected volatile ListenerRegistry<String, VetoListener> vetoListenersForExactTopic;
+
+	protected volatile ListenerSet<EventSubscriber> subscribers;
+	protected volatile ListenerRegistry<Class<?>, EventSubscriber> subscribersForClass;
+	protected volatile ListenerRegistry<Class<?>, EventSubscriber> subscribersForExactClass;
+	protected volatile ListenerRegistry<Pattern, EventSubscriber> subscribersForTopic;
+	protected volatile ListenerRegistry<String, EventSubscriber> subscribersForExactTopic;
+
+	protected volatile ExecutorService[] partitionLanes;
 
-	protected Set<VetoListener> vetoListeners;
-	protected Map<Class<?>, Set<VetoListener>> vetoListenersForClass;
-	protected Map<Class<?>, Set<VetoListener>> vetoListenersForExactClass;
-	protected Map<Pattern, Set<VetoListener>> vetoListenersForTopic;
-	protected Map<String, Set<VetoListener>> vetoListenersForExactTopic;
+	protected volatile EventBusMetrics metrics;
 
-	protected Set<EventSubscriber> subscribers;
-	protected Map<Class<?>, Set<EventSubscriber>> subscribersForClass;
-	protected Map<Class<?>, Set<EventSubscriber>> subscribersForExactClass;
-	protected Map<Pattern, Set<EventSubscriber>> subscribersForTopic;
-	protected Map<String, Set<EventSubscriber>> subscribersForExactTopic;
+	protected volatile Map<String, RateLimiter> rateLimitsForTopic;
+	protected volatile Map<Class<?>, RateLimiter> rateLimitsForClass;
+
+	protected volatile Map<List<Object>, Channel<?>> channels;
+
+	protected volatile TopicTable topics;
+	protected volatile int maxInternedTopics = 1024;
 
 	/**
 	 * <p>
@@ -109,13 +150,14 @@ public class EventBus {
 	 *            the event subscriber to add
 	 */
 	public void subscribe(EventSubscriber subscriber) {
-		if (subscribers == null)
-			subscribers = new LinkedHashSet<EventSubscriber>();
-		synchronized (subscribers) {
+		synchronized (this) {
+			if (subscribers == null)
+				subscribers = new ListenerSet<EventSubscriber>();
 			subscribers.add(subscriber);
 		}
 		if (log.isInfoEnabled())
 			log.info("added subscriber: " + subscriber);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -127,18 +169,14 @@ public class EventBus {
 	 *            the event subscriber to add
 	 */
 	public void subscribe(Class<?> clazz, EventSubscriber subscriber) {
-		if (subscribersForClass == null)
-			subscribersForClass = new LinkedHashMap<Class<?>, Set<EventSubscriber>>();
-		synchronized (subscribersForClass) {
-			Set<EventSubscriber> set = subscribersForClass.get(clazz);
-			if (set == null) {
-				set = new LinkedHashSet<EventSubscriber>();
-				subscribersForClass.put(clazz, set);
-			}
-			set.add(subscriber);
+		synchronized (this) {
+			if (subscribersForClass == null)
+				subscribersForClass = new ListenerRegistry<Class<?>, EventSubscriber>();
+			subscribersForClass.add(clazz, subscriber);
 		}
 		if (log.isInfoEnabled())
 			log.info("added subscriber to class [" + clazz + "]: " + subscriber);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -151,18 +189,14 @@ public class EventBus {
 	 *            the event subscriber to add
 	 */
 	public void subscribeExactly(Class<?> clazz, EventSubscriber subscriber) {
-		if (subscribersForExactClass == null)
-			subscribersForExactClass = new LinkedHashMap<Class<?>, Set<EventSubscriber>>();
-		synchronized (subscribersForExactClass) {
-			Set<EventSubscriber> set = subscribersForExactClass.get(clazz);
-			if (set == null) {
-				set = new LinkedHashSet<EventSubscriber>();
-				subscribersForExactClass.put(clazz, set);
-			}
-			set.add(subscriber);
+		synchronized (this) {
+			if (subscribersForExactClass == null)
+				subscribersForExactClass = new ListenerRegistry<Class<?>, EventSubscriber>();
+			subscribersForExactClass.add(clazz, subscriber);
 		}
 		if (log.isInfoEnabled())
 			log.info("added subscriber exactly to class [" + clazz + "]: " + subscriber);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -192,18 +226,14 @@ public class EventBus {
 	 *            the event subscriber to add
 	 */
 	public void subscribe(Pattern topic, EventSubscriber subscriber) {
-		if (subscribersForTopic == null)
-			subscribersForTopic = new LinkedHashMap<Pattern, Set<EventSubscriber>>();
-		synchronized (subscribersForTopic) {
-			Set<EventSubscriber> set = subscribersForTopic.get(topic);
-			if (set == null) {
-				set = new LinkedHashSet<EventSubscriber>();
-				subscribersForTopic.put(topic, set);
-			}
-			set.add(subscriber);
+		synchronized (this) {
+			if (subscribersForTopic == null)
+				subscribersForTopic = new ListenerRegistry<Pattern, EventSubscriber>();
+			subscribersForTopic.add(topic, subscriber);
 		}
 		if (log.isInfoEnabled())
 			log.info("added subscriber to topic [" + topic + "]: " + subscriber);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -221,18 +251,14 @@ public class EventBus {
 	 *            the event subscriber to add
 	 */
 	public void subscribeExactly(String topic, EventSubscriber subscriber) {
-		if (subscribersForExactTopic == null)
-			subscribersForExactTopic = new LinkedHashMap<String, Set<EventSubscriber>>();
-		synchronized (subscribersForExactTopic) {
-			Set<EventSubscriber> set = subscribersForExactTopic.get(topic);
-			if (set == null) {
-				set = new LinkedHashSet<EventSubscriber>();
-				subscribersForExactTopic.put(topic, set);
-			}
-			set.add(subscriber);
+		synchronized (this) {
+			if (subscribersForExactTopic == null)
+				subscribersForExactTopic = new ListenerRegistry<String, EventSubscriber>();
+			subscribersForExactTopic.add(topic, subscriber);
 		}
 		if (log.isInfoEnabled())
 			log.info("added subscriber exactly to topic [" + topic + "]: " + subscriber);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -248,14 +274,14 @@ public class EventBus {
 	 *            the veto listener to add
 	 */
 	public void subscribe(VetoListener listener) {
-		if (vetoListeners == null) {
-			vetoListeners = new LinkedHashSet<VetoListener>();
-		}
-		synchronized (vetoListeners) {
+		synchronized (this) {
+			if (vetoListeners == null)
+				vetoListeners = new ListenerSet<VetoListener>();
 			vetoListeners.add(listener);
 		}
 		if (log.isInfoEnabled())
 			log.info("added veto listener: " + listener);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -267,18 +293,14 @@ public class EventBus {
 	 *            the veto listener to add
 	 */
 	public void subscribe(Class<?> clazz, VetoListener listener) {
-		if (vetoListenersForClass == null)
-			vetoListenersForClass = new LinkedHashMap<Class<?>, Set<VetoListener>>();
-		synchronized (vetoListenersForClass) {
-			Set<VetoListener> set = vetoListenersForClass.get(clazz);
-			if (set == null) {
-				set = new LinkedHashSet<VetoListener>();
-				vetoListenersForClass.put(clazz, set);
-			}
-			set.add(listener);
+		synchronized (this) {
+			if (vetoListenersForClass == null)
+				vetoListenersForClass = new ListenerRegistry<Class<?>, VetoListener>();
+			vetoListenersForClass.add(clazz, listener);
 		}
 		if (log.isInfoEnabled())
 			log.info("added veto listener to class [" + clazz + "]: " + listener);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -291,18 +313,14 @@ public class EventBus {
 	 *            the veto listener to add
 	 */
 	public void subscribeExactly(Class<?> clazz, VetoListener listener) {
-		if (vetoListenersForExactClass == null)
-			vetoListenersForExactClass = new LinkedHashMap<Class<?>, Set<VetoListener>>();
-		synchronized (vetoListenersForExactClass) {
-			Set<VetoListener> set = vetoListenersForExactClass.get(clazz);
-			if (set == null) {
-				set = new LinkedHashSet<VetoListener>();
-				vetoListenersForExactClass.put(clazz, set);
-			}
-			set.add(listener);
+		synchronized (this) {
+			if (vetoListenersForExactClass == null)
+				vetoListenersForExactClass = new ListenerRegistry<Class<?>, VetoListener>();
+			vetoListenersForExactClass.add(clazz, listener);
 		}
 		if (log.isInfoEnabled())
 			log.info("added veto listener exactly to class [" + clazz + "]: " + listener);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -332,18 +350,14 @@ public class EventBus {
 	 *            the veto listener to add
 	 */
 	public void subscribe(Pattern topic, VetoListener listener) {
-		if (vetoListenersForTopic == null)
-			vetoListenersForTopic = new LinkedHashMap<Pattern, Set<VetoListener>>();
-		synchronized (vetoListenersForTopic) {
-			Set<VetoListener> set = vetoListenersForTopic.get(topic);
-			if (set == null) {
-				set = new LinkedHashSet<VetoListener>();
-				vetoListenersForTopic.put(topic, set);
-			}
-			set.add(listener);
+		synchronized (this) {
+			if (vetoListenersForTopic == null)
+				vetoListenersForTopic = new ListenerRegistry<Pattern, VetoListener>();
+			vetoListenersForTopic.add(topic, listener);
 		}
 		if (log.isInfoEnabled())
 			log.info("added veto listener to topic [" + topic + "]: " + listener);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -361,18 +375,14 @@ public class EventBus {
 	 *            the veto listener to add
 	 */
 	public void subscribeExactly(String topic, VetoListener listener) {
-		if (vetoListenersForExactTopic == null)
-			vetoListenersForExactTopic = new LinkedHashMap<String, Set<VetoListener>>();
-		synchronized (vetoListenersForExactTopic) {
-			Set<VetoListener> set = vetoListenersForExactTopic.get(topic);
-			if (set == null) {
-				set = new LinkedHashSet<VetoListener>();
-				vetoListenersForExactTopic.put(topic, set);
-			}
-			set.add(listener);
+		synchronized (this) {
+			if (vetoListenersForExactTopic == null)
+				vetoListenersForExactTopic = new ListenerRegistry<String, VetoListener>();
+			vetoListenersForExactTopic.add(topic, listener);
 		}
 		if (log.isInfoEnabled())
 			log.info("added veto listener exactly to topic [" + topic + "]: " + listener);
+		subscriptionsChanged();
 	}
 
 	/**
@@ -380,7 +390,7 @@ public class EventBus {
 	 * Publishes an event on the bus.
 	 * </p>
 	 * <p>
-	 * A <code>null</code> topic will be used, so a call to this method is equal to calling {@link #publish(String, Object) publish(null, event)}.
+	 * A <code>null</code> topic will be used, so a call to this method is equal to calling {@link #publish(String, Object) publish((String) null, event)}.
 	 * </p>
 	 * 
 	 * @param event
@@ -388,7 +398,7 @@ public class EventBus {
 	 * @return <code>true</code> if the event has been published successfully, <code>false</code> if it has been vetoed
 	 */
 	public boolean publish(Object event) {
-		return publish(null, event);
+		return publish((String) null, event);
 	}
 
 	/**
@@ -400,7 +410,7 @@ public class EventBus {
 	 *            the topic of the event
 	 * @param event
 	 *            the event object
-	 * @return <code>true</code> if the event has been published successfully, <code>false</code> if it has been vetoed
+	 * @return <code>true</code> if the event has been published successfully, <code>false</code> if it has been vetoed or rejected by a rate limit
 	 */
 	public boolean publish(String topic, Object event) {
 		if (event == null)
@@ -409,55 +419,779 @@ public class EventBus {
 		if (log.isInfoEnabled())
 			log.info("publishing {topic=" + topic + ", event=" + event + "}");
 
-		Class<?> eventClass = event.getClass();
+		if (topic != null) {
+			Topic interned = topics().internImplicitly(topic, maxInternedTopics);
+			if (interned != null)
+				return publishResolved(interned, event);
+		}
+
+		RateLimiter limiter = throttle(topic, event);
+		if (limiter != null)
+			return limiter.getPolicy() == ThrottlePolicy.SAMPLE;
+
+		if (isVetoed(topic, event))
+			return false;
+
+		deliver(topic, event);
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Publishes an event on the bus using an interned topic.
+	 * </p>
+	 * 
+	 * <p>
+	 * The listeners matching the topic and the event's class are cached per topic id until the next subscription change, so publishing neither
+	 * hashes the topic string nor matches it against the subscribed patterns.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic of the event, interned by this bus
+	 * @param event
+	 *            the event object
+	 * @return <code>true</code> if the event has been published successfully, <code>false</code> if it has been vetoed or rejected by a rate limit
+	 * @see #topic(String)
+	 */
+	public boolean publishInterned(Topic topic, Object event) {
+		if (topic == null)
+			throw new IllegalArgumentException("topic can't be null");
+		if (topic.getEventBus() != this)
+			throw new IllegalArgumentException("topic " + topic + " belongs to another EventBus");
+		if (event == null)
+			throw new IllegalArgumentException("can't publish null event!");
+
+		if (log.isInfoEnabled())
+			log.info("publishing {topic=" + topic + ", event=" + event + "}");
+
+		return publishResolved(topic, event);
+	}
+
+	private boolean publishResolved(Topic topic, Object event) {
+		TopicTable.Dispatch dispatch = topics.resolve(topic, event.getClass());
+		String name = topic.getName();
+		if (dispatch.rateLimiters.length > 0) {
+			RateLimiter limiter = throttle(dispatch.rateLimiters, name, event);
+			if (limiter != null)
+				return limiter.getPolicy() == ThrottlePolicy.SAMPLE;
+		}
+		if (dispatch.vetoListeners.length > 0 && isVetoed(dispatch.vetoListeners, name, event))
+			return false;
+		deliver(dispatch.subscribers, name, event);
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Interns the given topic string and returns its {@link Topic} token for use with {@link #publishInterned(Topic, Object)}. Calling this method again with
+	 * an equal string returns the same token.
+	 * </p>
+	 * 
+	 * <p>
+	 * Topics are never released. Explicitly interned topics don't count against the {@link #setMaxInternedTopics(int) limit} for topics interned
+	 * implicitly by {@link #publish(String, Object)}.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic string
+	 * @return the interned topic
+	 */
+	public Topic topic(String topic) {
+		if (topic == null)
+			throw new IllegalArgumentException("topic can't be null");
+		return topics().intern(topic);
+	}
 
-		// check VetoListeners
-		LinkedHashSet<VetoListener> vetoListeners = new LinkedHashSet<VetoListener>();
-		if (this.vetoListeners != null) {
-			synchronized (this.vetoListeners) {
-				vetoListeners.addAll(this.vetoListeners);
+	private TopicTable topics() {
+		TopicTable topics = this.topics;
+		if (topics == null) {
+			synchronized (this) {
+				if (this.topics == null)
+					this.topics = new TopicTable(this);
+				topics = this.topics;
 			}
 		}
-		vetoListeners.addAll(getVetoListenersForClass(eventClass));
-		if (topic != null)
-			vetoListeners.addAll(getVetoListenersForTopic(topic));
+		return topics;
+	}
+
+	/**
+	 * @return the number of topics up to which {@link #publish(String, Object)} interns topics implicitly
+	 */
+	public int getMaxInternedTopics() {
+		return maxInternedTopics;
+	}
+
+	/**
+	 * Sets the number of topics up to which {@link #publish(String, Object)} interns the topics it is called with. Once it has interned that many
+	 * topics, events published under new topics are resolved on every publish. Topics interned by {@link #topic(String)} don't count. Default is
+	 * 1024.
+	 * 
+	 * @param maxInternedTopics
+	 *            the maximum number of implicitly interned topics, <code>0</code> to disable implicit interning
+	 */
+	public void setMaxInternedTopics(int maxInternedTopics) {
+		if (maxInternedTopics < 0)
+			throw new IllegalArgumentException("maxInternedTopics can't be negative");
+		this.maxInternedTopics = maxInternedTopics;
+	}
+
+	/**
+	 * <p>
+	 * Publishes an event on the bus using one of the partition lanes configured by {@link #setPartitionCount(int)}.
+	 * </p>
+	 * 
+	 * <p>
+	 * The key is hashed to select a lane. Events published with equal keys are delivered in publishing order by the same lane thread, events with
+	 * different keys may be delivered in parallel. The veto listeners are still called by the publishing thread, so the return value reflects their
+	 * decision. Exceptions thrown by subscribers are logged but not propagated to the publisher.
+	 * </p>
+	 * 
+	 * <p>
+	 * If no partitions are configured, the event is delivered synchronously as with {@link #publish(String, Object)}. Events published while
+	 * {@link #setPartitionCount(int)} replaces the lanes are handed to the new lanes.
+	 * </p>
+	 * 
+	 * @param key
+	 *            the partition key, for example an account id
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 * @return <code>true</code> if the event has been accepted for delivery, <code>false</code> if it has been vetoed
+	 */
+	public boolean publishPartitioned(Object key, final String topic, final Object event) {
+		if (key == null)
+			throw new IllegalArgumentException("can't publish with null key!");
+		if (event == null)
+			throw new IllegalArgumentException("can't publish null event!");
+
+		if (log.isInfoEnabled())
+			log.info("publishing {key=" + key + ", topic=" + topic + ", event=" + event + "}");
+
+		RateLimiter limiter = throttle(topic, event);
+		if (limiter != null)
+			return limiter.getPolicy() == ThrottlePolicy.SAMPLE;
+
+		if (isVetoed(topic, event))
+			return false;
+
+		Runnable delivery = new Runnable() {
+			public void run() {
+				try {
+					deliver(topic, event);
+				} catch (RuntimeException e) {
+					// already logged by deliver()
+				}
+			}
+		};
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		ExecutorService[] lanes = partitionLanes;
+		while (lanes != null) {
+			try {
+				lanes[(hash & 0x7fffffff) % lanes.length].execute(delivery);
+				return true;
+			} catch (RejectedExecutionException e) {
+				// the lanes have been shut down by setPartitionCount() meanwhile, retry on the new ones
+				ExecutorService[] newLanes = partitionLanes;
+				if (newLanes == lanes) {
+					// rejected for another reason, deliver on this thread rather than losing the event
+					delivery.run();
+					return true;
+				}
+				lanes = newLanes;
+			}
+		}
+		deliver(topic, event);
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Publishes an event on the bus after the given delay.
+	 * </p>
+	 * 
+	 * <p>
+	 * All delayed events of all buses share one timing wheel, so pending events cost memory only. Events are published with a precision of about 10
+	 * milliseconds by a shared publisher thread, one at a time. Exceptions thrown by subscribers are logged but not propagated.
+	 * </p>
+	 * 
+	 * @param delay
+	 *            the delay
+	 * @param unit
+	 *            the unit of the delay
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 * @return the handle to cancel the publication
+	 */
+	public Timeout publishAfter(long delay, TimeUnit unit, final String topic, final Object event) {
+		if (event == null)
+			throw new IllegalArgumentException("can't publish null event!");
+		if (unit == null)
+			throw new IllegalArgumentException("unit can't be null");
+
+		if (log.isDebugEnabled())
+			log.debug("scheduling {topic=" + topic + ", event=" + event + "} in " + unit.toMillis(delay) + "ms");
+
+		final Runnable publisher = new Runnable() {
+			public void run() {
+				try {
+					publish(topic, event);
+				} catch (RuntimeException e) {
+					// already logged by publish()
+				}
+			}
+		};
+		return TimerHolder.timer.schedule(new Runnable() {
+			public void run() {
+				TimerHolder.delayedPublisher.execute(publisher);
+			}
+		}, delay, unit);
+	}
+
+	/**
+	 * Publishes an event on the bus at the given time. A time in the past publishes the event immediately, but still asynchronously.
+	 * 
+	 * @param time
+	 *            the time in milliseconds since the epoch, see {@link System#currentTimeMillis()}
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 * @return the handle to cancel the publication
+	 * @see #publishAfter(long, TimeUnit, String, Object)
+	 */
+	public Timeout publishAt(long time, String topic, Object event) {
+		return publishAfter(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS, topic, event);
+	}
+
+	/**
+	 * <p>
+	 * Publishes a request and returns a future completed by the first reply.
+	 * </p>
+	 * 
+	 * <p>
+	 * The event is wrapped in a {@link Request} with a unique correlation id and published under the given topic. Subscribers answer using
+	 * {@link Request#reply(Object)}. If no reply arrives in time, the future fails with a {@link TimeoutException}. If the request is vetoed, the
+	 * future fails with an {@link IllegalStateException}.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic of the request
+	 * @param event
+	 *            the request event
+	 * @param timeout
+	 *            the maximum time to wait for a reply
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future reply
+	 */
+	public Future<Object> request(String topic, Object event, long timeout, TimeUnit unit) {
+		return sendRequest(topic, event, 0, timeout, unit);
+	}
+
+	/**
+	 * <p>
+	 * Publishes a request and returns a future completed by a list of replies (scatter-gather).
+	 * </p>
+	 * 
+	 * <p>
+	 * The future is completed as soon as the given number of replies has arrived. On timeout, it is completed with the replies collected so far,
+	 * which may be an empty list. If the request is vetoed, the future fails with an {@link IllegalStateException}.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic of the request
+	 * @param event
+	 *            the request event
+	 * @param replies
+	 *            the number of replies to wait for, <code>0</code> to collect replies until the timeout
+	 * @param timeout
+	 *            the maximum time to wait for the replies
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the future list of replies in order of arrival
+	 */
+	@SuppressWarnings("unchecked")
+	public Future<List<Object>> request(String topic, Object event, int replies, long timeout, TimeUnit unit) {
+		if (replies < 0)
+			throw new IllegalArgumentException("replies can't be negative");
+		return (Future<List<Object>>) (Future<?>) sendRequest(topic, event, replies == 0 ? -1 : replies, timeout, unit);
+	}
+
+	private PendingRequest sendRequest(String topic, Object event, int expectedReplies, long timeout, TimeUnit unit) {
+		if (event == null)
+			throw new IllegalArgumentException("can't publish null event!");
+		if (timeout <= 0)
+			throw new IllegalArgumentException("timeout has to be > 0");
 
+		final PendingRequest request = new PendingRequest(this, correlationIds.incrementAndGet(), expectedReplies);
+		pendingRequests.put(request.getCorrelationId(), request);
+		request.timeout = TimerHolder.timer.schedule(new Runnable() {
+			public void run() {
+				request.expire();
+			}
+		}, timeout, unit);
+
+		try {
+			if (!publish(topic, new Request(this, request.getCorrelationId(), event)))
+				request.fail(new IllegalStateException("request has been vetoed"));
+		} catch (RuntimeException e) {
+			request.fail(e);
+			throw e;
+		}
+		return request;
+	}
+
+	/**
+	 * Replies to a pending request. Normally called via {@link Request#reply(Object)}.
+	 * 
+	 * @param correlationId
+	 *            the correlation id of the request
+	 * @param reply
+	 *            the reply object
+	 * @return <code>true</code> if the reply has been accepted, <code>false</code> if there is no pending request with the given id
+	 */
+	public boolean reply(long correlationId, Object reply) {
+		PendingRequest request = pendingRequests.get(correlationId);
+		return request != null && request.getEventBus() == this && request.offer(reply);
+	}
+
+	/**
+	 * Called by a pending request when it has been completed, timed out or cancelled.
+	 */
+	void requestDone(PendingRequest request) {
+		pendingRequests.remove(request.getCorrelationId());
+		if (request.timeout != null)
+			request.timeout.cancel();
+	}
+
+	/**
+	 * @return the number of partition lanes used by {@link #publishPartitioned(Object, String, Object)}, <code>0</code> if disabled
+	 */
+	public int getPartitionCount() {
+		ExecutorService[] lanes = partitionLanes;
+		return lanes == null ? 0 : lanes.length;
+	}
+
+	/**
+	 * <p>
+	 * Sets the number of partition lanes used by {@link #publishPartitioned(Object, String, Object)}. Each lane is a daemon thread delivering the
+	 * events of the keys hashed to it. A good value is the number of available processors.
+	 * </p>
+	 * 
+	 * <p>
+	 * Changing the count replaces all lanes; the old lanes finish delivering their queued events before they terminate. Ordering is only guaranteed
+	 * for events published while the same lanes are active.
+	 * </p>
+	 * 
+	 * @param count
+	 *            the number of lanes, <code>0</code> to disable partitioned delivery
+	 */
+	public synchronized void setPartitionCount(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("count can't be negative");
+		ExecutorService[] oldLanes = partitionLanes;
+		if (oldLanes == null ? count == 0 : oldLanes.length == count)
+			return;
+
+		ExecutorService[] lanes = null;
+		if (count > 0) {
+			int id = partitionThreadCount.incrementAndGet();
+			lanes = new ExecutorService[count];
+			for (int i = 0; i < count; i++) {
+				lanes[i] = Executors.newSingleThreadExecutor(new DaemonThreadFactory(new RenamingThreadFactory("EventBus-" + id + "-Lane-" + i
+						+ "-")));
+			}
+		}
+		partitionLanes = lanes;
+
+		if (oldLanes != null) {
+			for (ExecutorService lane : oldLanes)
+				lane.shutdown();
+		}
+		if (log.isInfoEnabled())
+			log.info("set partition count to " + count);
+	}
+
+	/**
+	 * @return the metrics recording the invocations of this bus' listeners, <code>null</code> if disabled
+	 */
+	public EventBusMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics recording invocation counts and times of this bus' subscribers and veto listeners. One {@link EventBusMetrics} instance may
+	 * be shared by several buses. Default is <code>null</code>, which disables the instrumentation.
+	 * 
+	 * @param metrics
+	 *            the metrics to record to, <code>null</code> to disable
+	 */
+	public void setMetrics(EventBusMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * <p>
+	 * Returns a pre-resolved publishing handle for events of the given class and topic.
+	 * </p>
+	 * 
+	 * <p>
+	 * The channel holds the matching veto listeners and subscribers in arrays which the bus updates whenever a subscription changes. Publishing on
+	 * the channel skips the class hierarchy walk, the topic matching and all temporary collections. Calling this method again with the same
+	 * arguments returns the same channel.
+	 * </p>
+	 * 
+	 * @param type
+	 *            the class of the events published on the channel
+	 * @param topic
+	 *            the topic of the events published on the channel, may be <code>null</code>
+	 * @return the channel
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Channel<T> channel(Class<T> type, String topic) {
+		if (type == null)
+			throw new IllegalArgumentException("type can't be null");
+		List<Object> key = Arrays.<Object> asList(type, topic);
+		synchronized (this) {
+			if (channels == null)
+				channels = new HashMap<List<Object>, Channel<?>>();
+			Channel<T> channel = (Channel<T>) channels.get(key);
+			if (channel == null) {
+				channel = new Channel<T>(this, type, topic);
+				channel.update(collectRateLimiters(type, topic), collectVetoListeners(type, topic), collectSubscribers(type, topic));
+				channels.put(key, channel);
+				if (log.isInfoEnabled())
+					log.info("created channel {type=" + type.getName() + ", topic=" + topic + "}");
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Called after every change of the subscriptions to update the dispatch arrays of all channels and invalidate the cached topic resolutions.
+	 */
+	protected void subscriptionsChanged() {
+		invalidateTopics();
+		updateChannels();
+	}
+
+	/**
+	 * Called after every change of the rate limits to update the dispatch arrays of all channels and invalidate the cached topic resolutions.
+	 */
+	protected void rateLimitsChanged() {
+		invalidateTopics();
+		updateChannels();
+	}
+
+	private void invalidateTopics() {
+		TopicTable topics = this.topics;
+		if (topics != null)
+			topics.invalidate();
+	}
+
+	private void updateChannels() {
+		if (channels == null)
+			return;
+		synchronized (this) {
+			for (Channel<?> channel : channels.values()) {
+				Class<?> type = channel.getType();
+				String topic = channel.getTopic();
+				channel.update(collectRateLimiters(type, topic), collectVetoListeners(type, topic), collectSubscribers(type, topic));
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Limits the rate of events published under the given topic. An existing limit for the topic will be replaced.
+	 * </p>
+	 * 
+	 * <p>
+	 * Rate limits are checked before the veto listeners. An event matching several limits has to pass all of them.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            the topic to limit, compared using {@link String#equals(Object)}
+	 * @param rate
+	 *            the number of events allowed per second
+	 * @param burst
+	 *            the number of events allowed at once after a period of inactivity
+	 * @param policy
+	 *            what to do with events exceeding the limit
+	 * @return the rate limiter, providing the throttling counters
+	 */
+	public RateLimiter setRateLimit(String topic, double rate, int burst, ThrottlePolicy policy) {
+		if (topic == null)
+			throw new IllegalArgumentException("topic can't be null");
+		RateLimiter limiter = new RateLimiter(rate, burst, policy);
+		synchronized (this) {
+			Map<String, RateLimiter> limits = new HashMap<String, RateLimiter>();
+			if (rateLimitsForTopic != null)
+				limits.putAll(rateLimitsForTopic);
+			limits.put(topic, limiter);
+			rateLimitsForTopic = limits;
+		}
+		if (log.isInfoEnabled())
+			log.info("set rate limit for topic [" + topic + "]: " + limiter);
+		rateLimitsChanged();
+		return limiter;
+	}
+
+	/**
+	 * <p>
+	 * Limits the rate of events published on this bus which are instance of or subclass of the given class. An existing limit for the class will be
+	 * replaced.
+	 * </p>
+	 * 
+	 * <p>
+	 * Rate limits are checked before the veto listeners. An event matching several limits has to pass all of them.
+	 * </p>
+	 * 
+	 * @param clazz
+	 *            the event class to limit
+	 * @param rate
+	 *            the number of events allowed per second
+	 * @param burst
+	 *            the number of events allowed at once after a period of inactivity
+	 * @param policy
+	 *            what to do with events exceeding the limit
+	 * @return the rate limiter, providing the throttling counters
+	 */
+	public RateLimiter setRateLimit(Class<?> clazz, double rate, int burst, ThrottlePolicy policy) {
+		if (clazz == null)
+			throw new IllegalArgumentException("clazz can't be null");
+		RateLimiter limiter = new RateLimiter(rate, burst, policy);
+		synchronized (this) {
+			Map<Class<?>, RateLimiter> limits = new LinkedHashMap<Class<?>, RateLimiter>();
+			if (rateLimitsForClass != null)
+				limits.putAll(rateLimitsForClass);
+			limits.put(clazz, limiter);
+			rateLimitsForClass = limits;
+		}
+		if (log.isInfoEnabled())
+			log.info("set rate limit for class [" + clazz + "]: " + limiter);
+		rateLimitsChanged();
+		return limiter;
+	}
+
+	/**
+	 * Removes the rate limit of the given topic.
+	 * 
+	 * @param topic
+	 *            the limited topic
+	 */
+	public void removeRateLimit(String topic) {
+		synchronized (this) {
+			if (rateLimitsForTopic == null || !rateLimitsForTopic.containsKey(topic))
+				return;
+			Map<String, RateLimiter> limits = new HashMap<String, RateLimiter>(rateLimitsForTopic);
+			limits.remove(topic);
+			rateLimitsForTopic = (limits.isEmpty() ? null : limits);
+		}
+		rateLimitsChanged();
+	}
+
+	/**
+	 * Removes the rate limit of the given event class.
+	 * 
+	 * @param clazz
+	 *            the limited event class
+	 */
+	public void removeRateLimit(Class<?> clazz) {
+		synchronized (this) {
+			if (rateLimitsForClass == null || !rateLimitsForClass.containsKey(clazz))
+				return;
+			Map<Class<?>, RateLimiter> limits = new LinkedHashMap<Class<?>, RateLimiter>(rateLimitsForClass);
+			limits.remove(clazz);
+			rateLimitsForClass = (limits.isEmpty() ? null : limits);
+		}
+		rateLimitsChanged();
+	}
+
+	/**
+	 * @param topic
+	 *            the limited topic
+	 * @return the rate limiter of the given topic, <code>null</code> if the topic isn't limited
+	 */
+	public RateLimiter getRateLimiter(String topic) {
+		Map<String, RateLimiter> limits = rateLimitsForTopic;
+		return limits == null ? null : limits.get(topic);
+	}
+
+	/**
+	 * @param clazz
+	 *            the limited event class
+	 * @return the rate limiter of the given event class, <code>null</code> if the class isn't limited
+	 */
+	public RateLimiter getRateLimiter(Class<?> clazz) {
+		Map<Class<?>, RateLimiter> limits = rateLimitsForClass;
+		return limits == null ? null : limits.get(clazz);
+	}
+
+	/**
+	 * Applies all matching rate limits to the event.
+	 * 
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 * @return the rate limiter that dropped the event, <code>null</code> if the event may be delivered
+	 */
+	protected RateLimiter throttle(String topic, Object event) {
+		if (rateLimitsForTopic == null && rateLimitsForClass == null)
+			return null;
+		return throttle(collectRateLimiters(event.getClass(), topic), topic, event);
+	}
+
+	/**
+	 * Applies the given rate limits to the event.
+	 */
+	RateLimiter throttle(RateLimiter[] limiters, String topic, Object event) {
+		for (RateLimiter limiter : limiters) {
+			if (!limiter.admit()) {
+				if (log.isDebugEnabled())
+					log.debug(limiter + " dropped event {topic=" + topic + ", event=" + event + "}");
+				return limiter;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param eventClass
+	 *            the class of the event
+	 * @param topic
+	 *            the topic of the event, may be <code>null</code>
+	 * @return all rate limiters matching the class or the topic
+	 */
+	protected RateLimiter[] collectRateLimiters(Class<?> eventClass, String topic) {
+		List<RateLimiter> limiters = new ArrayList<RateLimiter>(2);
+		Map<Class<?>, RateLimiter> classLimits = rateLimitsForClass;
+		if (classLimits != null) {
+			for (Map.Entry<Class<?>, RateLimiter> entry : classLimits.entrySet()) {
+				if (entry.getKey().isAssignableFrom(eventClass))
+					limiters.add(entry.getValue());
+			}
+		}
+		Map<String, RateLimiter> topicLimits = rateLimitsForTopic;
+		if (topicLimits != null && topic != null) {
+			RateLimiter limiter = topicLimits.get(topic);
+			if (limiter != null)
+				limiters.add(limiter);
+		}
+		return limiters.toArray(new RateLimiter[limiters.size()]);
+	}
+
+	/**
+	 * Asks all matching veto listeners whether the event should be vetoed.
+	 * 
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 * @return <code>true</code> if a veto listener vetoed the event
+	 */
+	protected boolean isVetoed(String topic, Object event) {
+		Set<VetoListener> vetoListeners = collectVetoListeners(event.getClass(), topic);
+		return isVetoed(vetoListeners.toArray(new VetoListener[vetoListeners.size()]), topic, event);
+	}
+
+	/**
+	 * Asks the given veto listeners whether the event should be vetoed.
+	 */
+	boolean isVetoed(VetoListener[] vetoListeners, String topic, Object event) {
+		EventBusMetrics metrics = this.metrics;
 		for (VetoListener vetoListener : vetoListeners) {
+			long start = (metrics != null ? System.nanoTime() : 0);
 			try {
 				if (vetoListener.shouldVeto(topic, event)) {
 					if (log.isInfoEnabled())
 						log.info(vetoListener + " vetoed event {topic=" + topic + ", event=" + event + "}");
-					return false;
+					return true;
 				}
 			} catch (RuntimeException e) {
 				if (log.isErrorEnabled())
 					log.error(vetoListener + " threw an exception while checking for veto of event {topic=" + topic + ", event=" + event + "}", e);
 				throw e;
+			} finally {
+				if (metrics != null)
+					metrics.recordVetoListener(vetoListener, System.nanoTime() - start);
 			}
 		}
+		return false;
+	}
 
-		// publish
-		Set<EventSubscriber> subscribers = new LinkedHashSet<EventSubscriber>();
-		if (this.subscribers != null) {
-			synchronized (this.subscribers) {
-				subscribers.addAll(this.subscribers);
-			}
-		}
-		subscribers.addAll(getSubscribersForClass(eventClass));
-		if (topic != null)
-			subscribers.addAll(getSubscribersForTopic(topic));
+	/**
+	 * Delivers the event to all matching subscribers.
+	 * 
+	 * @param topic
+	 *            the topic of the event
+	 * @param event
+	 *            the event object
+	 */
+	protected void deliver(String topic, Object event) {
+		Set<EventSubscriber> subscribers = collectSubscribers(event.getClass(), topic);
+		deliver(subscribers.toArray(new EventSubscriber[subscribers.size()]), topic, event);
+	}
 
+	/**
+	 * Delivers the event to the given subscribers.
+	 */
+	void deliver(EventSubscriber[] subscribers, String topic, Object event) {
+		EventBusMetrics metrics = this.metrics;
 		for (EventSubscriber subscriber : subscribers) {
+			long start = (metrics != null ? System.nanoTime() : 0);
 			try {
 				subscriber.onEvent(topic, event);
 			} catch (RuntimeException e) {
 				if (log.isErrorEnabled())
 					log.error(subscriber + " threw an exception while handling event {topic=" + topic + ", event=" + event + "}", e);
 				throw e;
+			} finally {
+				if (metrics != null)
+					metrics.recordSubscriber(subscriber, System.nanoTime() - start);
 			}
 		}
+	}
 
-		return true;
+	/**
+	 * @param eventClass
+	 *            the class of the event
+	 * @param topic
+	 *            the topic of the event, may be <code>null</code>
+	 * @return all veto listeners matching the class or the topic
+	 */
+	protected Set<VetoListener> collectVetoListeners(Class<?> eventClass, String topic) {
+		Set<VetoListener> vetoListeners = new LinkedHashSet<VetoListener>();
+		ListenerSet<VetoListener> all = this.vetoListeners;
+		if (all != null)
+			all.collect(vetoListeners);
+		vetoListeners.addAll(getVetoListenersForClass(eventClass));
+		if (topic != null)
+			vetoListeners.addAll(getVetoListenersForTopic(topic));
+		return vetoListeners;
+	}
+
+	/**
+	 * @param eventClass
+	 *            the class of the event
+	 * @param topic
+	 *            the topic of the event, may be <code>null</code>
+	 * @return all subscribers matching the class or the topic
+	 */
+	protected Set<EventSubscriber> collectSubscribers(Class<?> eventClass, String topic) {
+		Set<EventSubscriber> subscribers = new LinkedHashSet<EventSubscriber>();
+		ListenerSet<EventSubscriber> all = this.subscribers;
+		if (all != null)
+			all.collect(subscribers);
+		subscribers.addAll(getSubscribersForClass(eventClass));
+		if (topic != null)
+			subscribers.addAll(getSubscribersForTopic(topic));
+		return subscribers;
 	}
 
 	/**
@@ -467,21 +1201,7 @@ public class EventBus {
 	 */
 	protected Set<EventSubscriber> getSubscribersForTopic(String topic) {
 		Set<EventSubscriber> subscribers = new LinkedHashSet<EventSubscriber>();
-		if (subscribersForExactTopic != null) {
-			synchronized (subscribersForExactTopic) {
-				Set<EventSubscriber> set = subscribersForExactTopic.get(topic);
-				if (set != null)
-					subscribers.addAll(set);
-			}
-		}
-		if (subscribersForTopic != null) {
-			synchronized (subscribersForTopic) {
-				for (Pattern p : subscribersForTopic.keySet()) {
-					if (p.matcher(topic).matches())
-						subscribers.addAll(subscribersForTopic.get(p));
-				}
-			}
-		}
+		collectForTopic(subscribersForExactTopic, subscribersForTopic, topic, subscribers);
 		return subscribers;
 	}
 
@@ -492,22 +1212,7 @@ public class EventBus {
 	 */
 	protected Set<EventSubscriber> getSubscribersForClass(Class<?> clazz) {
 		Set<EventSubscriber> subscribers = new LinkedHashSet<EventSubscriber>();
-		if (subscribersForExactClass != null) {
-			synchronized (subscribersForExactClass) {
-				Set<EventSubscriber> set = subscribersForExactClass.get(clazz);
-				if (set != null)
-					subscribers.addAll(set);
-			}
-		}
-		if (subscribersForClass != null) {
-			synchronized (subscribersForClass) {
-				for (Class<?> c : subscribersForClass.keySet()) {
-					if (c.isAssignableFrom(clazz)) {
-						subscribers.addAll(subscribersForClass.get(c));
-					}
-				}
-			}
-		}
+		collectForClass(subscribersForExactClass, subscribersForClass, clazz, subscribers);
 		return subscribers;
 	}
 
@@ -518,21 +1223,7 @@ public class EventBus {
 	 */
 	protected Set<VetoListener> getVetoListenersForTopic(String topic) {
 		Set<VetoListener> listeners = new LinkedHashSet<VetoListener>();
-		if (vetoListenersForExactTopic != null) {
-			synchronized (vetoListenersForExactTopic) {
-				Set<VetoListener> set = vetoListenersForExactTopic.get(topic);
-				if (set != null)
-					listeners.addAll(set);
-			}
-		}
-		if (vetoListenersForTopic != null) {
-			synchronized (vetoListenersForTopic) {
-				for (Pattern p : vetoListenersForTopic.keySet()) {
-					if (p.matcher(topic).matches())
-						listeners.addAll(vetoListenersForTopic.get(p));
-				}
-			}
-		}
+		collectForTopic(vetoListenersForExactTopic, vetoListenersForTopic, topic, listeners);
 		return listeners;
 	}
 
@@ -542,23 +1233,44 @@ public class EventBus {
 	 * @return a collection of matching veto listeners
 	 */
 	protected Set<VetoListener> getVetoListenersForClass(Class<?> clazz) {
-		LinkedHashSet<VetoListener> listeners = new LinkedHashSet<VetoListener>();
-		if (vetoListenersForExactClass != null) {
-			synchronized (vetoListenersForExactClass) {
-				Set<VetoListener> set = vetoListenersForExactClass.get(clazz);
-				if (set != null)
-					listeners.addAll(set);
+		Set<VetoListener> listeners = new LinkedHashSet<VetoListener>();
+		collectForClass(vetoListenersForExactClass, vetoListenersForClass, clazz, listeners);
+		return listeners;
+	}
+
+	/**
+	 * Adds the listeners registered exactly for the topic and those registered for a pattern matching the topic to the given collection. Reads the
+	 * registries without locking.
+	 */
+	private static <V> void collectForTopic(ListenerRegistry<String, V> exact, ListenerRegistry<Pattern, V> patterns, String topic,
+			Collection<? super V> out) {
+		if (exact != null)
+			exact.collect(topic, out);
+		if (patterns != null) {
+			ListenerRegistry.Table table = patterns.table();
+			Object[] entries = table.entries;
+			for (int i = 0; i < 2 * table.size; i += 2) {
+				if (((Pattern) entries[i]).matcher(topic).matches())
+					ListenerSet.<V> collect(entries[i + 1], out);
 			}
 		}
-		if (vetoListenersForClass != null) {
-			synchronized (vetoListenersForClass) {
-				for (Class<?> c : vetoListenersForClass.keySet()) {
-					if (c.isAssignableFrom(clazz)) {
-						listeners.addAll(vetoListenersForClass.get(c));
-					}
-				}
+	}
+
+	/**
+	 * Adds the listeners registered exactly for the class and those registered for a superclass or interface of the class to the given collection.
+	 * Reads the registries without locking.
+	 */
+	private static <V> void collectForClass(ListenerRegistry<Class<?>, V> exact, ListenerRegistry<Class<?>, V> assignable, Class<?> clazz,
+			Collection<? super V> out) {
+		if (exact != null)
+			exact.collect(clazz, out);
+		if (assignable != null) {
+			ListenerRegistry.Table table = assignable.table();
+			Object[] entries = table.entries;
+			for (int i = 0; i < 2 * table.size; i += 2) {
+				if (((Class<?>) entries[i]).isAssignableFrom(clazz))
+					ListenerSet.<V> collect(entries[i + 1], out);
 			}
 		}
-		return listeners;
 	}
 }
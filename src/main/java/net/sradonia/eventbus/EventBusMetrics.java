@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.sradonia.util.StripedCounter;
+
+/**
+ * <p>
+ * Collects invocation statistics of the {@link EventSubscriber}s and {@link VetoListener}s of one or more {@link EventBus} instances.
+ * </p>
+ * 
+ * <p>
+ * For every listener the number of invocations, the cumulative and the maximum invocation time are recorded. Every n-th invocation of a listener is
+ * sampled into a latency histogram. Invocations taking longer than the {@link #setSlowThreshold(long, TimeUnit) slow threshold} flag the listener as
+ * slow and log a warning the first time.
+ * </p>
+ * 
+ * <p>
+ * Example:
+ * 
+ * <pre>
+ * EventBusMetrics metrics = new EventBusMetrics();
+ * metrics.registerMBean(&quot;default&quot;);
+ * EventBus.getEventBus(&quot;default&quot;).setMetrics(metrics);
+ * </pre>
+ * 
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class EventBusMetrics implements EventBusMetricsMBean {
+	private static Log log = LogFactory.getLog(EventBusMetrics.class);
+
+	private static final Comparator<ListenerStatistics> SLOWEST_FIRST = new Comparator<ListenerStatistics>() {
+		public int compare(ListenerStatistics o1, ListenerStatistics o2) {
+			long a1 = o1.getAverageNanos();
+			long a2 = o2.getAverageNanos();
+			return a1 < a2 ? 1 : (a1 == a2 ? 0 : -1);
+		}
+	};
+
+	private final ConcurrentMap<EventSubscriber, Recorder> subscribers = new ConcurrentHashMap<EventSubscriber, Recorder>();
+	private final ConcurrentMap<VetoListener, Recorder> vetoListeners = new ConcurrentHashMap<VetoListener, Recorder>();
+
+	private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile int sampleInterval = 16;
+
+	private ObjectName objectName;
+
+	private class Recorder {
+		final StripedCounter invocations = new StripedCounter();
+		final StripedCounter totalNanos = new StripedCounter();
+		final StripedCounter slowInvocations = new StripedCounter();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLongArray histogram = new AtomicLongArray(64);
+		volatile boolean flagged;
+		/**
+		 * Counts the invocations up to the next sample. Kept per listener, as a counter shared by all listeners of a thread would always sample
+		 * the same listeners when they are invoked in a fixed order. Updated without synchronization, a lost update only delays a sample.
+		 */
+		int sampleCounter;
+
+		void record(Object listener, long nanos) {
+			if (nanos < 0) // the clock isn't guaranteed to be monotonic on every platform
+				nanos = 0;
+			invocations.increment();
+			totalNanos.add(nanos);
+
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+				max = maxNanos.get();
+
+			if (++sampleCounter >= sampleInterval) {
+				sampleCounter = 0;
+				histogram.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+			}
+
+			if (nanos > slowThresholdNanos) {
+				slowInvocations.increment();
+				if (!flagged) {
+					flagged = true;
+					if (log.isWarnEnabled())
+						log.warn(listener + " is slow: invocation took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+				}
+			}
+		}
+
+		ListenerStatistics snapshot(Object listener, boolean vetoListener) {
+			long[] histogram = new long[this.histogram.length()];
+			for (int i = 0; i < histogram.length; i++)
+				histogram[i] = this.histogram.get(i);
+			return new ListenerStatistics(listener, vetoListener, invocations.sum(), totalNanos.sum(), maxNanos.get(), slowInvocations.sum(),
+					histogram);
+		}
+
+		void reset() {
+			invocations.reset();
+			totalNanos.reset();
+			slowInvocations.reset();
+			maxNanos.set(0);
+			for (int i = 0; i < histogram.length(); i++)
+				histogram.set(i, 0);
+			flagged = false;
+		}
+	}
+
+	/**
+	 * Records an invocation of an event subscriber. Called by the {@link EventBus}.
+	 * 
+	 * @param subscriber
+	 *            the invoked subscriber
+	 * @param nanos
+	 *            the invocation time in nanoseconds
+	 */
+	public void recordSubscriber(EventSubscriber subscriber, long nanos) {
+		Recorder recorder = subscribers.get(subscriber);
+		if (recorder == null) {
+			recorder = new Recorder();
+			Recorder existing = subscribers.putIfAbsent(subscriber, recorder);
+			if (existing != null)
+				recorder = existing;
+		}
+		recorder.record(subscriber, nanos);
+	}
+
+	/**
+	 * Records an invocation of a veto listener. Called by the {@link EventBus}.
+	 * 
+	 * @param listener
+	 *            the invoked veto listener
+	 * @param nanos
+	 *            the invocation time in nanoseconds
+	 */
+	public void recordVetoListener(VetoListener listener, long nanos) {
+		Recorder recorder = vetoListeners.get(listener);
+		if (recorder == null) {
+			recorder = new Recorder();
+			Recorder existing = vetoListeners.putIfAbsent(listener, recorder);
+			if (existing != null)
+				recorder = existing;
+		}
+		recorder.record(listener, nanos);
+	}
+
+	/**
+	 * Creates a snapshot of the statistics of all instrumented listeners.
+	 * 
+	 * @return the statistics, slowest listener (by average invocation time) first
+	 */
+	public List<ListenerStatistics> snapshot() {
+		List<ListenerStatistics> statistics = new ArrayList<ListenerStatistics>(vetoListeners.size() + subscribers.size());
+		for (Map.Entry<VetoListener, Recorder> entry : vetoListeners.entrySet())
+			statistics.add(entry.getValue().snapshot(entry.getKey(), true));
+		for (Map.Entry<EventSubscriber, Recorder> entry : subscribers.entrySet())
+			statistics.add(entry.getValue().snapshot(entry.getKey(), false));
+		Collections.sort(statistics, SLOWEST_FIRST);
+		return statistics;
+	}
+
+	/**
+	 * Creates a snapshot of the statistics of all listeners flagged as slow.
+	 * 
+	 * @return the statistics, slowest listener (by average invocation time) first
+	 */
+	public List<ListenerStatistics> snapshotSlowListeners() {
+		List<ListenerStatistics> statistics = snapshot();
+		List<ListenerStatistics> slow = new ArrayList<ListenerStatistics>();
+		for (ListenerStatistics s : statistics) {
+			if (s.isSlow())
+				slow.add(s);
+		}
+		return slow;
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the invocation time above which a listener is flagged as slow
+	 */
+	public long getSlowThreshold(TimeUnit unit) {
+		return unit.convert(slowThresholdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the invocation time above which a listener is flagged as slow. Default is 100 milliseconds.
+	 * 
+	 * @param threshold
+	 *            the threshold
+	 * @param unit
+	 *            the unit of the threshold
+	 */
+	public void setSlowThreshold(long threshold, TimeUnit unit) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("threshold can't be negative");
+		this.slowThresholdNanos = unit.toNanos(threshold);
+	}
+
+	public long getSlowThresholdMillis() {
+		return getSlowThreshold(TimeUnit.MILLISECONDS);
+	}
+
+	public void setSlowThresholdMillis(long millis) {
+		setSlowThreshold(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return every how many invocations of a listener one invocation is sampled into the latency histogram
+	 */
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Sets every how many invocations of a listener one invocation is sampled into the latency histogram. Default is 16.
+	 * 
+	 * @param sampleInterval
+	 *            the sample interval, <code>1</code> to sample every invocation
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		if (sampleInterval < 1)
+			throw new IllegalArgumentException("sampleInterval has to be > 0");
+		this.sampleInterval = sampleInterval;
+	}
+
+	public long getTotalInvocations() {
+		long total = 0;
+		for (Recorder recorder : vetoListeners.values())
+			total += recorder.invocations.sum();
+		for (Recorder recorder : subscribers.values())
+			total += recorder.invocations.sum();
+		return total;
+	}
+
+	public String[] getListenerStatistics() {
+		return toStrings(snapshot());
+	}
+
+	public String[] getSlowListenerStatistics() {
+		return toStrings(snapshotSlowListeners());
+	}
+
+	private static String[] toStrings(List<ListenerStatistics> statistics) {
+		String[] strings = new String[statistics.size()];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = statistics.get(i).toString();
+		return strings;
+	}
+
+	public void reset() {
+		for (Recorder recorder : vetoListeners.values())
+			recorder.reset();
+		for (Recorder recorder : subscribers.values())
+			recorder.reset();
+	}
+
+	/**
+	 * Registers these metrics as MBean named <code>net.sradonia.eventbus:type=EventBusMetrics,name=<i>name</i></code> on the platform MBean server.
+	 * 
+	 * @param name
+	 *            the name of the MBean
+	 * @return the object name used to register the MBean
+	 * @throws JMException
+	 *             if the MBean can't be registered
+	 */
+	public synchronized ObjectName registerMBean(String name) throws JMException {
+		if (objectName != null)
+			unregisterMBean();
+		ObjectName objectName = new ObjectName("net.sradonia.eventbus:type=EventBusMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Unregisters the MBean registered by {@link #registerMBean(String)}.
+	 * 
+	 * @throws JMException
+	 *             if the MBean can't be unregistered
+	 */
+	public synchronized void unregisterMBean() throws JMException {
+		if (objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		objectName = null;
+	}
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+/**
+ * JMX management interface of {@link EventBusMetrics}.
+ * 
+ * @author Stefan Rado
+ */
+public interface EventBusMetricsMBean {
+
+	/**
+	 * @return the invocation time in milliseconds above which a listener is flagged as slow
+	 */
+	public long getSlowThresholdMillis();
+
+	/**
+	 * @param millis
+	 *            the invocation time in milliseconds above which a listener is flagged as slow
+	 */
+	public void setSlowThresholdMillis(long millis);
+
+	/**
+	 * @return the total number of recorded listener invocations
+	 */
+	public long getTotalInvocations();
+
+	/**
+	 * @return a description of the statistics of every instrumented listener, slowest first
+	 */
+	public String[] getListenerStatistics();
+
+	/**
+	 * @return a description of the statistics of every listener flagged as slow, slowest first
+	 */
+	public String[] getSlowListenerStatistics();
+
+	/**
+	 * Resets all statistics.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * A compact, insertion-ordered multimap from subscription keys (classes, topics or patterns) to listeners, used by the {@link EventBus}.
+ * </p>
+ * 
+ * <p>
+ * Keys and listener slots are stored alternately in one flat array. A slot holds a single listener inline and only becomes an array when a second
+ * listener is added for the same key, see {@link ListenerSet}. Registries with many keys additionally keep an open addressing hash index of int
+ * positions for exact lookups. Every modification publishes a new immutable {@link Table}, so lookups and iteration never need a lock.
+ * </p>
+ * 
+ * @author Stefan Rado
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the listener type
+ */
+public class ListenerRegistry<K, V> {
+
+	/**
+	 * Number of keys up to which exact lookups scan the entries instead of using the hash index.
+	 */
+	private static final int INDEX_THRESHOLD = 8;
+
+	/**
+	 * <p>
+	 * An immutable view of the registry. New keys are appended to the spare capacity of the entries array and inserted into free cells of the index
+	 * in place, as readers of older tables only look at their first <code>size</code> entries. Both arrays are only copied when they are full, so
+	 * adding <code>n</code> keys takes amortized linear time.
+	 * </p>
+	 */
+	static final class Table {
+		/**
+		 * Keys and listener slots alternately, only the first <code>2 * size</code> elements belong to this table.
+		 */
+		final Object[] entries;
+		final int size;
+		/**
+		 * Open addressing hash index holding the entry number plus one, <code>0</code> for a free cell. <code>null</code> for small registries.
+		 */
+		final int[] index;
+
+		Table(Object[] entries, int size, int[] index) {
+			this.entries = entries;
+			this.size = size;
+			this.index = index;
+		}
+
+		/**
+		 * @return the entry number of the key, <code>-1</code> if it isn't contained
+		 */
+		int find(Object key) {
+			if (index == null) {
+				for (int i = 0; i < size; i++) {
+					if (entries[2 * i].equals(key))
+						return i;
+				}
+				return -1;
+			}
+			int mask = index.length - 1;
+			for (int h = hash(key) & mask;; h = (h + 1) & mask) {
+				int n = index[h] - 1;
+				if (n < 0)
+					return -1;
+				// entries appended after this table has been published are skipped
+				if (n < size && entries[2 * n].equals(key))
+					return n;
+			}
+		}
+	}
+
+	private static final Table EMPTY = new Table(new Object[0], 0, null);
+
+	private volatile Table table = EMPTY;
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static void insert(int[] index, Object[] entries, int n) {
+		int mask = index.length - 1;
+		int h = hash(entries[2 * n]) & mask;
+		while (index[h] != 0)
+			h = (h + 1) & mask;
+		index[h] = n + 1;
+	}
+
+	/**
+	 * Adds a listener for the given key if it isn't already registered for it.
+	 * 
+	 * @param key
+	 *            the subscription key
+	 * @param listener
+	 *            the listener to add
+	 * @return <code>true</code> if the registry changed
+	 */
+	public synchronized boolean add(K key, V listener) {
+		if (key == null)
+			throw new IllegalArgumentException("key can't be null");
+		Table table = this.table;
+		int n = table.find(key);
+		if (n >= 0) {
+			Object slot = ListenerSet.add(table.entries[2 * n + 1], listener);
+			if (slot == table.entries[2 * n + 1])
+				return false;
+			// the slot of an existing key is visible to older tables, so the entries have to be copied
+			Object[] entries = table.entries.clone();
+			entries[2 * n + 1] = slot;
+			this.table = new Table(entries, table.size, table.index);
+			return true;
+		}
+
+		Object slot = ListenerSet.add(null, listener);
+		Object[] entries = table.entries;
+		int size = table.size;
+		if (2 * size + 2 > entries.length) {
+			Object[] grown = new Object[Math.max(8, entries.length * 2)];
+			System.arraycopy(entries, 0, grown, 0, 2 * size);
+			entries = grown;
+		}
+		entries[2 * size] = key;
+		entries[2 * size + 1] = slot;
+		size++;
+
+		int[] index = table.index;
+		if (size > INDEX_THRESHOLD) {
+			if (index == null || 2 * size > index.length) {
+				// keep the load factor at most 1/2
+				index = new int[Integer.highestOneBit(4 * size - 1)];
+				for (int i = 0; i < size; i++)
+					insert(index, entries, i);
+			} else {
+				insert(index, entries, size - 1);
+			}
+		}
+		this.table = new Table(entries, size, index);
+		return true;
+	}
+
+	/**
+	 * Adds all listeners registered for exactly the given key to the given collection.
+	 * 
+	 * @param key
+	 *            the subscription key
+	 * @param out
+	 *            the collection to add to
+	 */
+	public void collect(K key, Collection<? super V> out) {
+		Table table = this.table;
+		int n = table.find(key);
+		if (n >= 0)
+			ListenerSet.<V> collect(table.entries[2 * n + 1], out);
+	}
+
+	/**
+	 * Returns the current table. Its first <code>2 * size</code> entries are alternating keys and listener slots, which must not be modified; use
+	 * {@link ListenerSet#collect(Object, Collection)} to read a slot.
+	 */
+	Table table() {
+		return table;
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return table.size;
+	}
+
+	/**
+	 * @return <code>true</code> if no listener is registered
+	 */
+	public boolean isEmpty() {
+		return table.size == 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		Table table = this.table;
+		for (int i = 0; i < table.size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(table.entries[2 * i]).append('=').append(ListenerSet.size(table.entries[2 * i + 1])).append(" listeners");
+		}
+		return sb.append('}').toString();
+	}
+}
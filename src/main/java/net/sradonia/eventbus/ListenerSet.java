@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * A compact, insertion-ordered set of listeners used by the {@link EventBus} registries.
+ * </p>
+ * 
+ * <p>
+ * The set is stored in a single slot: <code>null</code> while empty, the listener itself while it holds exactly one listener, and an array only when
+ * it grows beyond that. Modifications replace the slot (copy-on-write), so readers never need a lock.
+ * </p>
+ * 
+ * @author Stefan Rado
+ * @param <V>
+ *            the listener type
+ */
+public class ListenerSet<V> {
+
+	private volatile Object slot;
+
+	/**
+	 * Adds a listener if it isn't already contained.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 * @return <code>true</code> if the set changed
+	 */
+	public synchronized boolean add(V listener) {
+		Object newSlot = add(slot, listener);
+		if (newSlot == slot)
+			return false;
+		slot = newSlot;
+		return true;
+	}
+
+	/**
+	 * Adds all contained listeners to the given collection.
+	 * 
+	 * @param out
+	 *            the collection to add to
+	 */
+	public void collect(Collection<? super V> out) {
+		collect(slot, out);
+	}
+
+	/**
+	 * @return the number of contained listeners
+	 */
+	public int size() {
+		return size(slot);
+	}
+
+	/**
+	 * @return <code>true</code> if no listener is contained
+	 */
+	public boolean isEmpty() {
+		return slot == null;
+	}
+
+	/* slot helpers, shared with ListenerRegistry */
+
+	/**
+	 * @return the new slot, or the given slot if the listener was already contained
+	 */
+	static Object add(Object slot, Object listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("listener can't be null");
+		if (slot == null)
+			return listener;
+		if (!(slot instanceof Object[]))
+			return slot.equals(listener) ? slot : new Object[] { slot, listener };
+
+		Object[] array = (Object[]) slot;
+		for (Object element : array) {
+			if (element.equals(listener))
+				return slot;
+		}
+		Object[] newArray = new Object[array.length + 1];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		newArray[array.length] = listener;
+		return newArray;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> void collect(Object slot, Collection<? super V> out) {
+		if (slot == null)
+			return;
+		if (!(slot instanceof Object[])) {
+			out.add((V) slot);
+			return;
+		}
+		for (Object element : (Object[]) slot)
+			out.add((V) element);
+	}
+
+	static int size(Object slot) {
+		if (slot == null)
+			return 0;
+		return (slot instanceof Object[]) ? ((Object[]) slot).length : 1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		Object slot = this.slot;
+		if (slot instanceof Object[]) {
+			Object[] array = (Object[]) slot;
+			for (int i = 0; i < array.length; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(array[i]);
+			}
+		} else if (slot != null) {
+			sb.append(slot);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+/**
+ * An immutable snapshot of the invocation statistics of a single {@link EventSubscriber} or {@link VetoListener}, created by
+ * {@link EventBusMetrics#snapshot()}.
+ * 
+ * @author Stefan Rado
+ */
+public class ListenerStatistics {
+
+	private final Object listener;
+	private final boolean vetoListener;
+	private final long invocations;
+	private final long totalNanos;
+	private final long maxNanos;
+	private final long slowInvocations;
+	private final long[] histogram;
+	private final long samples;
+
+	ListenerStatistics(Object listener, boolean vetoListener, long invocations, long totalNanos, long maxNanos, long slowInvocations,
+			long[] histogram) {
+		this.listener = listener;
+		this.vetoListener = vetoListener;
+		this.invocations = invocations;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+		this.slowInvocations = slowInvocations;
+		this.histogram = histogram;
+		long samples = 0;
+		for (long count : histogram)
+			samples += count;
+		this.samples = samples;
+	}
+
+	/**
+	 * @return the instrumented {@link EventSubscriber} or {@link VetoListener}
+	 */
+	public Object getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return <code>true</code> if the statistics belong to a {@link VetoListener}, <code>false</code> for an {@link EventSubscriber}
+	 */
+	public boolean isVetoListener() {
+		return vetoListener;
+	}
+
+	/**
+	 * @return the number of invocations
+	 */
+	public long getInvocations() {
+		return invocations;
+	}
+
+	/**
+	 * @return the cumulative invocation time in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return the average invocation time in nanoseconds
+	 */
+	public long getAverageNanos() {
+		return invocations == 0 ? 0 : totalNanos / invocations;
+	}
+
+	/**
+	 * @return the longest invocation time in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/**
+	 * @return the number of invocations which took longer than the slow threshold
+	 */
+	public long getSlowInvocations() {
+		return slowInvocations;
+	}
+
+	/**
+	 * @return <code>true</code> if at least one invocation took longer than the slow threshold
+	 */
+	public boolean isSlow() {
+		return slowInvocations > 0;
+	}
+
+	/**
+	 * @return the number of invocations sampled into the latency histogram
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns a copy of the sampled latency histogram. Bucket <code>i</code> counts the invocations that took between <code>2^(i-1)</code> and
+	 * <code>2^i - 1</code> nanoseconds.
+	 * 
+	 * @return the latency histogram
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * Estimates a latency percentile from the sampled histogram. The result is the upper bound of the histogram bucket containing the percentile, so
+	 * it is accurate up to a factor of two.
+	 * 
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return the estimated latency in nanoseconds, <code>0</code> if nothing was sampled yet
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile has to be between 0 and 100");
+		if (samples == 0)
+			return 0;
+		long rank = (long) Math.ceil(samples * percentile / 100);
+		long count = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			count += histogram[i];
+			if (count >= rank && count > 0)
+				return Math.min(maxNanos, i == 0 ? 0 : (1L << i) - 1);
+		}
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return (vetoListener ? "veto listener " : "subscriber ") + listener + ": invocations=" + invocations + ", avg=" + getAverageNanos()
+				+ "ns, p99=" + getPercentileNanos(99) + "ns, max=" + maxNanos + "ns, slow=" + slowInvocations;
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+
+import net.sradonia.time.Timeout;
+
+/**
+ * The future of a request waiting for replies. The result is either the first reply or a list of all collected replies.
+ * 
+ * @author Stefan Rado
+ */
+class PendingRequest extends FutureTask<Object> {
+
+	private static final Callable<Object> NOTHING = new Callable<Object>() {
+		public Object call() {
+			return null;
+		}
+	};
+
+	private final EventBus eventBus;
+	private final long correlationId;
+	private final int expectedReplies;
+	private final List<Object> replies;
+
+	volatile Timeout timeout;
+
+	/**
+	 * @param expectedReplies
+	 *            the number of replies to collect before completing, <code>0</code> to complete with the first reply, a negative value to collect
+	 *            replies until the timeout
+	 */
+	PendingRequest(EventBus eventBus, long correlationId, int expectedReplies) {
+		super(NOTHING);
+		this.eventBus = eventBus;
+		this.correlationId = correlationId;
+		this.expectedReplies = expectedReplies;
+		this.replies = (expectedReplies != 0 ? new ArrayList<Object>() : null);
+	}
+
+	EventBus getEventBus() {
+		return eventBus;
+	}
+
+	long getCorrelationId() {
+		return correlationId;
+	}
+
+	synchronized boolean offer(Object reply) {
+		if (isDone())
+			return false;
+		if (replies == null) {
+			set(reply);
+		} else {
+			replies.add(reply);
+			if (replies.size() == expectedReplies)
+				set(new ArrayList<Object>(replies));
+		}
+		return true;
+	}
+
+	synchronized void expire() {
+		if (isDone())
+			return;
+		if (replies == null)
+			setException(new TimeoutException("no reply to request " + correlationId));
+		else
+			set(new ArrayList<Object>(replies));
+	}
+
+	synchronized void fail(Throwable t) {
+		setException(t);
+	}
+
+	@Override
+	protected void done() {
+		eventBus.requestDone(this);
+	}
+
+	@Override
+	public void run() {
+		// completed by replies only
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sradonia.util.StripedCounter;
+
+/**
+ * <p>
+ * A lock-free token bucket limiting the rate of events published on an {@link EventBus}. Created by
+ * {@link EventBus#setRateLimit(String, double, int, ThrottlePolicy)} and {@link EventBus#setRateLimit(Class, double, int, ThrottlePolicy)}.
+ * </p>
+ * 
+ * <p>
+ * The bucket is implemented as a single atomic "theoretical arrival time" (generic cell rate algorithm), so acquiring a token is one
+ * compare-and-set without any locking.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class RateLimiter {
+
+	private final double rate;
+	private final int burst;
+	private final ThrottlePolicy policy;
+
+	private final long interval;
+	private final long tolerance;
+	private final AtomicLong theoreticalArrival;
+
+	private final StripedCounter passed = new StripedCounter();
+	private final StripedCounter throttled = new StripedCounter();
+
+	/**
+	 * Creates a new rate limiter.
+	 * 
+	 * @param rate
+	 *            the number of events allowed per second
+	 * @param burst
+	 *            the number of events allowed at once after a period of inactivity
+	 * @param policy
+	 *            what to do with events exceeding the limit
+	 */
+	public RateLimiter(double rate, int burst, ThrottlePolicy policy) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate has to be > 0");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst has to be > 0");
+		if (policy == null)
+			throw new IllegalArgumentException("policy can't be null");
+		this.rate = rate;
+		this.burst = burst;
+		this.policy = policy;
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.tolerance = interval * (burst - 1);
+		this.theoreticalArrival = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Tries to take a token from the bucket.
+	 * 
+	 * @return <code>true</code> if a token was available
+	 */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long tat = theoreticalArrival.get();
+			long base = (tat - now > 0 ? tat : now);
+			if (base - now > tolerance)
+				return false;
+			if (theoreticalArrival.compareAndSet(tat, base + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * Reserves the next token, even if it isn't available yet.
+	 * 
+	 * @return the time in nanoseconds until the reserved token becomes available, <code>0</code> if it is available immediately
+	 */
+	public long reserve() {
+		long now = System.nanoTime();
+		while (true) {
+			long tat = theoreticalArrival.get();
+			long base = (tat - now > 0 ? tat : now);
+			if (theoreticalArrival.compareAndSet(tat, base + interval))
+				return Math.max(0, base - now - tolerance);
+		}
+	}
+
+	/**
+	 * Applies the policy to an event. Called by the {@link EventBus} for every matching event.
+	 * 
+	 * @return <code>true</code> if the event may be delivered, <code>false</code> if it has to be dropped
+	 */
+	boolean admit() {
+		if (policy == ThrottlePolicy.DELAY) {
+			long wait = reserve();
+			if (wait > 0) {
+				throttled.increment();
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else {
+				passed.increment();
+			}
+			return true;
+		}
+
+		if (tryAcquire()) {
+			passed.increment();
+			return true;
+		}
+		throttled.increment();
+		return false;
+	}
+
+	/**
+	 * @return the number of events allowed per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the number of events allowed at once after a period of inactivity
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * @return what to do with events exceeding the limit
+	 */
+	public ThrottlePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of events that passed without being throttled
+	 */
+	public long getPassedCount() {
+		return passed.sum();
+	}
+
+	/**
+	 * @return the number of events that have been rejected, sampled out or delayed
+	 */
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimiter[rate=" + rate + "/s, burst=" + burst + ", policy=" + policy + ", throttled=" + getThrottledCount() + "]";
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+/**
+ * <p>
+ * The envelope published by {@link EventBus#request(String, Object, long, java.util.concurrent.TimeUnit)}. Subscribers of the request topic
+ * receive this object as event and answer using {@link #reply(Object)}.
+ * </p>
+ * 
+ * <p>
+ * Example responder:
+ * 
+ * <pre>
+ * eventBus.subscribeExactly(&quot;quote&quot;, new EventSubscriber() {
+ * 	public void onEvent(String topic, Object event) {
+ * 		Request request = (Request) event;
+ * 		request.reply(lookupQuote((String) request.getPayload()));
+ * 	}
+ * });
+ * </pre>
+ * 
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class Request {
+
+	private final EventBus eventBus;
+	private final long correlationId;
+	private final Object payload;
+
+	Request(EventBus eventBus, long correlationId, Object payload) {
+		this.eventBus = eventBus;
+		this.correlationId = correlationId;
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the id used to match replies to this request
+	 */
+	public long getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * @return the request event passed by the requester
+	 */
+	public Object getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Replies to this request. Equal to calling {@link EventBus#reply(long, Object)} with this request's correlation id.
+	 * 
+	 * @param reply
+	 *            the reply object
+	 * @return <code>true</code> if the reply has been accepted, <code>false</code> if the request has already been completed, timed out or
+	 *         cancelled
+	 */
+	public boolean reply(Object reply) {
+		return eventBus.reply(correlationId, reply);
+	}
+
+	@Override
+	public String toString() {
+		return "Request[" + correlationId + ": " + payload + "]";
+	}
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+/**
+ * Indicates how an {@link EventBus} treats events exceeding a {@link RateLimiter rate limit}.
+ * 
+ * @author Stefan Rado
+ */
+public enum ThrottlePolicy {
+	/**
+	 * The event is dropped and {@link EventBus#publish(String, Object)} returns <code>false</code>, just like a vetoed event.
+	 */
+	REJECT,
+
+	/**
+	 * The publishing thread is delayed until the event fits into the rate limit. No event is dropped.
+	 */
+	DELAY,
+
+	/**
+	 * The event is dropped silently and {@link EventBus#publish(String, Object)} returns <code>true</code>. Subscribers receive a sample of the
+	 * events at the limited rate.
+	 */
+	SAMPLE
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+/**
+ * <p>
+ * An interned topic of an {@link EventBus}, obtained via {@link EventBus#topic(String)}.
+ * </p>
+ * 
+ * <p>
+ * Every topic gets a dense integer id when it is interned. The bus caches the resolved rate limits, veto listeners and subscribers per topic id, so
+ * publishing with {@link EventBus#publishInterned(Topic, Object)} neither hashes the topic string nor matches it against the subscribed patterns again.
+ * Topics are only equal to themselves.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public final class Topic {
+
+	private final EventBus eventBus;
+	private final String name;
+	private final int id;
+
+	Topic(EventBus eventBus, String name, int id) {
+		this.eventBus = eventBus;
+		this.name = name;
+		this.id = id;
+	}
+
+	/**
+	 * @return the bus this topic has been interned by
+	 */
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * @return the topic string
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of this topic, unique per bus
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
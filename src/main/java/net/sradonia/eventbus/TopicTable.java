@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The symbol table of an {@link EventBus}, mapping topic strings to {@link Topic}s with dense ids.
+ * </p>
+ * 
+ * <p>
+ * The resolved rate limits, veto listeners and subscribers of each topic are cached in an array indexed by topic id. Every entry holds the
+ * resolution for the event class last published under the topic. The bus invalidates all entries at once by incrementing the version whenever a
+ * subscription or rate limit changes.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+class TopicTable {
+
+	static final class Dispatch {
+		final int version;
+		final Class<?> type;
+		final RateLimiter[] rateLimiters;
+		final VetoListener[] vetoListeners;
+		final EventSubscriber[] subscribers;
+
+		Dispatch(int version, Class<?> type, RateLimiter[] rateLimiters, Set<VetoListener> vetoListeners, Set<EventSubscriber> subscribers) {
+			this.version = version;
+			this.type = type;
+			this.rateLimiters = rateLimiters;
+			this.vetoListeners = vetoListeners.toArray(new VetoListener[vetoListeners.size()]);
+			this.subscribers = subscribers.toArray(new EventSubscriber[subscribers.size()]);
+		}
+	}
+
+	private final EventBus eventBus;
+	private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile Dispatch[] dispatch = new Dispatch[16];
+	private int implicitCount; // guarded by this
+
+	TopicTable(EventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * @return the interned topic, <code>null</code> if the topic hasn't been interned yet
+	 */
+	Topic get(String name) {
+		return topics.get(name);
+	}
+
+	/**
+	 * Interns a topic explicitly, without any limit.
+	 * 
+	 * @return the interned topic
+	 */
+	Topic intern(String name) {
+		Topic topic = topics.get(name);
+		if (topic != null)
+			return topic;
+		synchronized (this) {
+			topic = topics.get(name);
+			if (topic == null)
+				topic = add(name);
+			return topic;
+		}
+	}
+
+	/**
+	 * Interns a topic implicitly, on publishing under its name.
+	 * 
+	 * @param limit
+	 *            the maximum number of implicitly interned topics; if reached, no new topic will be interned. Explicitly interned topics don't count.
+	 * @return the interned topic, <code>null</code> if the limit has been reached
+	 */
+	Topic internImplicitly(String name, int limit) {
+		Topic topic = topics.get(name);
+		if (topic != null)
+			return topic;
+		synchronized (this) {
+			topic = topics.get(name);
+			if (topic == null) {
+				if (implicitCount >= limit)
+					return null;
+				topic = add(name);
+				implicitCount++;
+			}
+			return topic;
+		}
+	}
+
+	/**
+	 * Has to be called holding the lock.
+	 */
+	private Topic add(String name) {
+		int id = topics.size();
+		if (id >= dispatch.length) {
+			Dispatch[] grown = new Dispatch[dispatch.length * 2];
+			System.arraycopy(dispatch, 0, grown, 0, dispatch.length);
+			dispatch = grown;
+		}
+		Topic topic = new Topic(eventBus, name, id);
+		topics.put(name, topic);
+		return topic;
+	}
+
+	/**
+	 * @return the number of interned topics
+	 */
+	int size() {
+		return topics.size();
+	}
+
+	/**
+	 * Returns the listeners for events of the given class published under the given topic, resolving them if the cached entry is stale.
+	 */
+	Dispatch resolve(Topic topic, Class<?> type) {
+		int version = this.version.get();
+		Dispatch[] dispatch = this.dispatch;
+		Dispatch entry = dispatch[topic.getId()];
+		if (entry != null && entry.version == version && entry.type == type)
+			return entry;
+
+		String name = topic.getName();
+		entry = new Dispatch(version, type, eventBus.collectRateLimiters(type, name), eventBus.collectVetoListeners(type, name),
+				eventBus.collectSubscribers(type, name));
+		// may be lost if the array grows concurrently, it will be resolved again then
+		dispatch[topic.getId()] = entry;
+		return entry;
+	}
+
+	/**
+	 * Invalidates all cached entries.
+	 */
+	void invalidate() {
+		version.incrementAndGet();
+	}
+}
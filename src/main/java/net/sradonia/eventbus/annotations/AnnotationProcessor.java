@@ -22,6 +22,7 @@ import java.lang.reflect.Method;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import net.sradonia.eventbus.EdtEventSubscriber;
 import net.sradonia.eventbus.EventBus;
 import net.sradonia.eventbus.annotations.SubscriptionType;
 
@@ -87,6 +88,10 @@ public class AnnotationProcessor {
 
 		MethodSignature methodSig = checkSubscriptionMethod(object, method);
 
+		net.sradonia.eventbus.EventSubscriber subscriber = new ProxySubscriber(object, method, methodSig.type);
+		if (annotation.thread() == ThreadMode.EDT)
+			subscriber = new EdtEventSubscriber(subscriber);
+
 		SubscriptionType subscriptionType = annotation.type();
 		if (subscriptionType == SubscriptionType.CLASS) {
 			Class<?> eventClass = annotation.eventClass();
@@ -99,9 +104,9 @@ public class AnnotationProcessor {
 			}
 
 			if (exact) {
-				eventBus.subscribeExactly(eventClass, new ProxySubscriber(object, method, methodSig.type));
+				eventBus.subscribeExactly(eventClass, subscriber);
 			} else {
-				eventBus.subscribe(eventClass, new ProxySubscriber(object, method, methodSig.type));
+				eventBus.subscribe(eventClass, subscriber);
 			}
 
 		} else if (subscriptionType == SubscriptionType.TOPIC) {
@@ -117,9 +122,9 @@ public class AnnotationProcessor {
 			}
 
 			if (exact) {
-				eventBus.subscribeExactly(eventTopic, new ProxySubscriber(object, method, methodSig.type));
+				eventBus.subscribeExactly(eventTopic, subscriber);
 			} else {
-				eventBus.subscribe(eventTopic, new ProxySubscriber(object, method, methodSig.type));
+				eventBus.subscribe(eventTopic, subscriber);
 			}
 
 		}
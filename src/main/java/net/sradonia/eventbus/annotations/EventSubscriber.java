@@ -76,4 +76,11 @@ public @interface EventSubscriber {
 	 * Default is <code>false</code>.
 	 */
 	boolean exact() default false;
+
+	/**
+	 * The thread the annotated method will be invoked on.
+	 * 
+	 * Default is {@link ThreadMode#PUBLISHER}.
+	 */
+	ThreadMode thread() default ThreadMode.PUBLISHER;
 }
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.annotations;
+
+/**
+ * Indicates on which thread an annotated subscriber method will be invoked.
+ * 
+ * @author Stefan Rado
+ */
+public enum ThreadMode {
+	/**
+	 * The method is invoked directly by the thread publishing the event.
+	 */
+	PUBLISHER,
+
+	/**
+	 * The method is invoked on the AWT event dispatch thread. Events are coalesced using an {@link net.sradonia.eventbus.EdtEventSubscriber}.
+	 */
+	EDT
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.journal;
+
+import java.io.IOException;
+
+/**
+ * Converts events to bytes and back so they can be stored in an {@link EventJournal}.
+ * 
+ * @author Stefan Rado
+ */
+public interface EventCodec {
+
+	/**
+	 * Encodes an event.
+	 * 
+	 * @param event
+	 *            the event to encode
+	 * @return the encoded event
+	 * @throws IOException
+	 *             if the event can't be encoded
+	 */
+	public byte[] encode(Object event) throws IOException;
+
+	/**
+	 * Decodes an event previously encoded by {@link #encode(Object)}.
+	 * 
+	 * @param data
+	 *            the array holding the encoded event
+	 * @param offset
+	 *            the offset of the encoded event in the array
+	 * @param length
+	 *            the length of the encoded event
+	 * @return the decoded event
+	 * @throws IOException
+	 *             if the data can't be decoded
+	 */
+	public Object decode(byte[] data, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import net.sradonia.eventbus.EventBus;
+import net.sradonia.eventbus.EventSubscriber;
+
+/**
+ * <p>
+ * A persistent journal of events, stored in memory-mapped segment files.
+ * </p>
+ * 
+ * <p>
+ * The journal is an {@link EventSubscriber}, so the topics to store are selected by subscribing it to an {@link EventBus}:
+ * 
+ * <pre>
+ * EventJournal journal = new EventJournal(new File(&quot;journal&quot;));
+ * eventBus.subscribe(&quot;orders\\..*&quot;, journal);
+ * </pre>
+ * 
+ * </p>
+ * 
+ * <p>
+ * Every event gets a sequence number. Appending only copies the encoded event into a memory-mapped file, so producers don't wait for any disk I/O.
+ * Changes are written to disk by the operating system or explicitly using {@link #flush()}. When a segment is full a new one will be started and old
+ * segments are deleted according to the {@link #setMaxSegments(int) retention} settings.
+ * </p>
+ * 
+ * <p>
+ * Stored events can be replayed from any sequence number into a bus or a single subscriber. Events replayed by a thread are not journaled again if
+ * the journal is subscribed to the target bus.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class EventJournal implements EventSubscriber {
+	private static Log log = LogFactory.getLog(EventJournal.class);
+
+	private final File directory;
+	private final EventCodec codec;
+
+	private int segmentSize = 64 * 1024 * 1024;
+	private int segmentCapacity = 1024 * 1024;
+	private int maxSegments;
+	private long retentionTime;
+
+	private final List<JournalSegment> segments = new ArrayList<JournalSegment>();
+	private JournalSegment current;
+	private boolean closed;
+
+	private final ThreadLocal<Boolean> replaying = new ThreadLocal<Boolean>();
+
+	/**
+	 * Opens a journal in the given directory using a {@link SerializingEventCodec}. Existing segments will be reopened.
+	 * 
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @throws IOException
+	 *             if the directory can't be created or the existing segments can't be opened
+	 */
+	public EventJournal(File directory) throws IOException {
+		this(directory, new SerializingEventCodec());
+	}
+
+	/**
+	 * Opens a journal in the given directory. Existing segments will be reopened.
+	 * 
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param codec
+	 *            the codec used to encode and decode events
+	 * @throws IOException
+	 *             if the directory can't be created or the existing segments can't be opened
+	 */
+	public EventJournal(File directory, EventCodec codec) throws IOException {
+		if (codec == null)
+			throw new IllegalArgumentException("codec can't be null");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("can't create journal directory " + directory);
+		this.directory = directory;
+		this.codec = codec;
+
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(JournalSegment.DATA_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		for (String name : names) {
+			long baseSequence = Long.parseLong(name.substring(0, name.length() - JournalSegment.DATA_SUFFIX.length()));
+			segments.add(new JournalSegment(directory, baseSequence, segmentSize, segmentCapacity));
+		}
+		if (!segments.isEmpty())
+			current = segments.get(segments.size() - 1);
+
+		if (log.isInfoEnabled())
+			log.info("opened EventJournal in " + directory + " with " + segments.size() + " segments");
+	}
+
+	/**
+	 * @return the size of newly created segment data files in bytes
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the size of newly created segment data files. Reopened segments keep their size. Default is 64 MiB.
+	 * 
+	 * @param segmentSize
+	 *            the segment size in bytes
+	 */
+	public void setSegmentSize(int segmentSize) {
+		if (segmentSize < 1024)
+			throw new IllegalArgumentException("segmentSize has to be at least 1024 bytes");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return the maximum number of events in newly created segments
+	 */
+	public int getSegmentCapacity() {
+		return segmentCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of events in newly created segments, which determines the size of the sequence index. Default is 1048576.
+	 * 
+	 * @param segmentCapacity
+	 *            the maximum number of events per segment
+	 */
+	public void setSegmentCapacity(int segmentCapacity) {
+		if (segmentCapacity < 1)
+			throw new IllegalArgumentException("segmentCapacity has to be > 0");
+		this.segmentCapacity = segmentCapacity;
+	}
+
+	/**
+	 * @return the maximum number of segments kept, <code>0</code> for no limit
+	 */
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * Sets the maximum number of segments to keep. When a new segment is started, the oldest ones will be deleted. Default is <code>0</code>, which
+	 * keeps all segments.
+	 * 
+	 * @param maxSegments
+	 *            the maximum number of segments, <code>0</code> for no limit
+	 */
+	public void setMaxSegments(int maxSegments) {
+		if (maxSegments < 0)
+			throw new IllegalArgumentException("maxSegments can't be negative");
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * @return the time in milliseconds after which full segments are deleted, <code>0</code> for no limit
+	 */
+	public long getRetentionTime() {
+		return retentionTime;
+	}
+
+	/**
+	 * Sets the time after which full segments are deleted. The time is measured from the last event appended to the segment. Expired segments are
+	 * deleted whenever events are appended or replayed, or the {@link #getFirstSequence() first sequence} is queried. Default is <code>0</code>,
+	 * which keeps all segments.
+	 * 
+	 * @param retentionTime
+	 *            the retention time in milliseconds, <code>0</code> for no limit
+	 */
+	public void setRetentionTime(long retentionTime) {
+		if (retentionTime < 0)
+			throw new IllegalArgumentException("retentionTime can't be negative");
+		this.retentionTime = retentionTime;
+	}
+
+	/**
+	 * Journals the event, unless it is currently replayed by this thread.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the event can't be stored
+	 */
+	public void onEvent(String topic, Object event) {
+		if (replaying.get() != null)
+			return;
+		try {
+			append(topic, event);
+		} catch (IOException e) {
+			throw new IllegalStateException("couldn't journal event {topic=" + topic + ", event=" + event + "}", e);
+		}
+	}
+
+	/**
+	 * Appends an event to the journal.
+	 * 
+	 * @param topic
+	 *            the topic of the event, may be <code>null</code>
+	 * @param event
+	 *            the event object
+	 * @return the sequence number of the stored event
+	 * @throws IOException
+	 *             if the event can't be encoded or a new segment can't be created
+	 */
+	public long append(String topic, Object event) throws IOException {
+		byte[] topicBytes = (topic != null ? topic.getBytes("UTF-8") : null);
+		byte[] eventBytes = codec.encode(event);
+		long timestamp = System.currentTimeMillis();
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("journal is closed");
+			if (current == null || !current.append(timestamp, topicBytes, eventBytes)) {
+				if (!JournalSegment.fits(segmentSize, topicBytes, eventBytes))
+					throw new IOException("event too large for segment size " + segmentSize + ": " + eventBytes.length + " bytes");
+				rollover();
+				if (!current.append(timestamp, topicBytes, eventBytes))
+					throw new IOException("event doesn't fit into new segment " + current.getBaseSequence() + ": " + eventBytes.length + " bytes");
+			} else {
+				applyRetention(timestamp);
+			}
+			return current.getEndSequence() - 1;
+		}
+	}
+
+	/**
+	 * Starts a new segment and applies the retention settings. Has to be called while holding the lock.
+	 */
+	private void rollover() throws IOException {
+		long baseSequence = 0;
+		if (current != null) {
+			baseSequence = current.getEndSequence();
+			if (baseSequence == current.getBaseSequence()) {
+				// an empty segment, e.g. reopened with a smaller size, would be reopened again as the new one gets the same files
+				if (!current.delete())
+					throw new IOException("couldn't replace empty journal segment " + baseSequence + " in " + directory);
+				segments.remove(current);
+			} else {
+				current.force();
+			}
+		}
+		current = new JournalSegment(directory, baseSequence, segmentSize, segmentCapacity);
+		segments.add(current);
+		if (log.isDebugEnabled())
+			log.debug("started journal segment " + baseSequence + " in " + directory);
+		applyRetention(System.currentTimeMillis());
+	}
+
+	/**
+	 * Deletes the segments exceeding the retention settings, except the current one. Has to be called while holding the lock.
+	 */
+	private void applyRetention(long now) {
+		long oldest = now - retentionTime;
+		while (segments.size() > 1) {
+			JournalSegment segment = segments.get(0);
+			if ((maxSegments > 0 && segments.size() > maxSegments) || (retentionTime > 0 && segment.getLastAppendTime() < oldest)) {
+				segments.remove(0);
+				if (!segment.delete() && log.isWarnEnabled())
+					log.warn("couldn't delete journal segment " + segment.getBaseSequence() + " in " + directory);
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence number of the oldest stored event
+	 */
+	public synchronized long getFirstSequence() {
+		applyRetention(System.currentTimeMillis());
+		return segments.isEmpty() ? 0 : segments.get(0).getBaseSequence();
+	}
+
+	/**
+	 * @return the sequence number the next appended event will get
+	 */
+	public synchronized long getNextSequence() {
+		return current == null ? 0 : current.getEndSequence();
+	}
+
+	/**
+	 * Publishes all stored events starting at the given sequence number on the given bus. If older events have already been deleted, the replay
+	 * starts with the oldest stored event.
+	 * 
+	 * @param fromSequence
+	 *            the sequence number of the first event to replay
+	 * @param eventBus
+	 *            the bus to publish the events on
+	 * @return the sequence number following the last replayed event
+	 * @throws IOException
+	 *             if an event can't be decoded
+	 */
+	public long replay(long fromSequence, final EventBus eventBus) throws IOException {
+		return replay(fromSequence, new EventSubscriber() {
+			public void onEvent(String topic, Object event) {
+				eventBus.publish(topic, event);
+			}
+		});
+	}
+
+	/**
+	 * Delivers all stored events starting at the given sequence number to the given subscriber. If older events have already been deleted, the
+	 * replay starts with the oldest stored event.
+	 * 
+	 * @param fromSequence
+	 *            the sequence number of the first event to replay
+	 * @param subscriber
+	 *            the subscriber to deliver the events to
+	 * @return the sequence number following the last replayed event
+	 * @throws IOException
+	 *             if an event can't be decoded
+	 */
+	public long replay(long fromSequence, final EventSubscriber subscriber) throws IOException {
+		List<JournalSegment> snapshot;
+		long toSequence;
+		synchronized (this) {
+			applyRetention(System.currentTimeMillis());
+			snapshot = new ArrayList<JournalSegment>(segments);
+			toSequence = getNextSequence();
+		}
+
+		boolean nested = replaying.get() != null;
+		replaying.set(Boolean.TRUE);
+		try {
+			for (JournalSegment segment : snapshot) {
+				if (segment.getEndSequence() <= fromSequence)
+					continue;
+				segment.read(fromSequence, toSequence, new JournalSegment.RecordVisitor() {
+					public void visit(long sequence, long timestamp, String topic, byte[] event, int length) throws IOException {
+						subscriber.onEvent(topic, codec.decode(event, 0, length));
+					}
+				});
+			}
+		} finally {
+			if (!nested)
+				replaying.remove();
+		}
+		return toSequence;
+	}
+
+	/**
+	 * Writes all appended events to the storage device.
+	 */
+	public synchronized void flush() {
+		if (current != null)
+			current.force();
+	}
+
+	/**
+	 * Flushes and closes the journal. Further events can't be appended.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		if (log.isInfoEnabled())
+			log.info("closed EventJournal in " + directory);
+	}
+
+	@Override
+	public String toString() {
+		return "EventJournal[" + directory + "]";
+	}
+}
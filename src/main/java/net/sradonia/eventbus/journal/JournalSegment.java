@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A single memory-mapped segment of an {@link EventJournal}, consisting of a data file and a sequence index file.
+ * </p>
+ * 
+ * <p>
+ * The data file starts with an 8 byte header (magic number and format version) followed by the records:
+ * <table>
+ * <tr>
+ * <th>Length</th>
+ * <th>Content</th>
+ * </tr>
+ * <tr>
+ * <td>4 bytes</td>
+ * <td>Length x of the remaining record in bytes (integer)</td>
+ * </tr>
+ * <tr>
+ * <td>8 bytes</td>
+ * <td>Sequence number (long)</td>
+ * </tr>
+ * <tr>
+ * <td>8 bytes</td>
+ * <td>Timestamp in milliseconds (long)</td>
+ * </tr>
+ * <tr>
+ * <td>4 bytes</td>
+ * <td>Length t of the topic in bytes, -1 for the <code>null</code> topic (integer)</td>
+ * </tr>
+ * <tr>
+ * <td>t bytes</td>
+ * <td>The UTF-8 encoded topic</td>
+ * </tr>
+ * <tr>
+ * <td>x-20-t bytes</td>
+ * <td>The encoded event</td>
+ * </tr>
+ * </table>
+ * </p>
+ * 
+ * <p>
+ * The index file holds one integer per record: the position of the record in the data file. An entry of <code>0</code> marks the end of the
+ * segment. The index entry is written last, so a record torn by a crash is never visible.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+class JournalSegment {
+
+	static final String DATA_SUFFIX = ".journal";
+	static final String INDEX_SUFFIX = ".index";
+
+	private static final int MAGIC = 0x53454a31; // "SEJ1"
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 4;
+
+	private final long baseSequence;
+	private final File dataFile;
+	private final File indexFile;
+	private final MappedByteBuffer data;
+	private final MappedByteBuffer index;
+
+	private volatile int count;
+	private long lastAppendTime;
+
+	/**
+	 * Opens an existing segment or creates a new one.
+	 * 
+	 * @param directory
+	 *            the journal directory
+	 * @param baseSequence
+	 *            the sequence number of the first record in this segment
+	 * @param dataSize
+	 *            the size of the data file for new segments
+	 * @param indexCapacity
+	 *            the maximum number of records for new segments
+	 * @throws IOException
+	 *             if the segment files can't be opened or are corrupt
+	 */
+	JournalSegment(File directory, long baseSequence, int dataSize, int indexCapacity) throws IOException {
+		this.baseSequence = baseSequence;
+		String name = String.format("%020d", baseSequence);
+		this.dataFile = new File(directory, name + DATA_SUFFIX);
+		this.indexFile = new File(directory, name + INDEX_SUFFIX);
+
+		boolean create = !dataFile.exists();
+		data = map(dataFile, create ? dataSize : -1);
+		index = map(indexFile, create ? indexCapacity * 4 : -1);
+
+		if (create) {
+			data.putInt(MAGIC);
+			data.putInt(1);
+			lastAppendTime = System.currentTimeMillis();
+		} else {
+			if (data.getInt(0) != MAGIC)
+				throw new IOException("not a journal segment: " + dataFile);
+			lastAppendTime = dataFile.lastModified();
+			count = findCount();
+			if (count == 0) {
+				data.position(HEADER_SIZE);
+			} else {
+				int last = index.getInt((count - 1) * 4);
+				data.position(last + 4 + data.getInt(last));
+			}
+		}
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size >= 0)
+				raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Binary search for the first unused index entry.
+	 */
+	private int findCount() {
+		int low = 0;
+		int high = index.capacity() / 4;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (index.getInt(mid * 4) != 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Appends a record. Has to be called by one thread at a time.
+	 * 
+	 * @return <code>false</code> if the record doesn't fit into this segment any more
+	 */
+	boolean append(long timestamp, byte[] topic, byte[] event) {
+		int length = RECORD_HEADER_SIZE + (topic != null ? topic.length : 0) + event.length;
+		int position = data.position();
+		// keep 4 zero bytes as end marker
+		if (count >= index.capacity() / 4 || length > data.capacity() - position - 4)
+			return false;
+
+		data.position(position + 4);
+		data.putLong(baseSequence + count);
+		data.putLong(timestamp);
+		if (topic != null) {
+			data.putInt(topic.length);
+			data.put(topic);
+		} else {
+			data.putInt(-1);
+		}
+		data.put(event);
+		data.putInt(position, length - 4);
+		index.putInt(count * 4, position);
+
+		lastAppendTime = timestamp;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Checks whether a record of the given size could ever be stored in a segment of this size.
+	 */
+	static boolean fits(int dataSize, byte[] topic, byte[] event) {
+		return RECORD_HEADER_SIZE + (topic != null ? topic.length : 0) + event.length <= dataSize - HEADER_SIZE - 4;
+	}
+
+	/**
+	 * Reads records starting at the given sequence number.
+	 * 
+	 * @param fromSequence
+	 *            the sequence number of the first record to read
+	 * @param toSequence
+	 *            the sequence number after the last record to read
+	 * @param visitor
+	 *            the visitor called for each record
+	 * @throws IOException
+	 *             if the visitor fails
+	 */
+	void read(long fromSequence, long toSequence, RecordVisitor visitor) throws IOException {
+		ByteBuffer view = data.duplicate();
+		int from = (int) Math.max(0, fromSequence - baseSequence);
+		int to = (int) Math.min(count, toSequence - baseSequence);
+		byte[] buffer = new byte[256];
+		for (int i = from; i < to; i++) {
+			int position = index.getInt(i * 4);
+			int length = view.getInt(position);
+			view.position(position + 4);
+			long sequence = view.getLong();
+			long timestamp = view.getLong();
+			int topicLength = view.getInt();
+			String topic = null;
+			int payloadLength = length - (RECORD_HEADER_SIZE - 4);
+			if (topicLength >= 0) {
+				payloadLength -= topicLength;
+				if (buffer.length < topicLength)
+					buffer = new byte[topicLength];
+				view.get(buffer, 0, topicLength);
+				topic = new String(buffer, 0, topicLength, "UTF-8");
+			}
+			if (buffer.length < payloadLength)
+				buffer = new byte[payloadLength];
+			view.get(buffer, 0, payloadLength);
+			visitor.visit(sequence, timestamp, topic, buffer, payloadLength);
+		}
+	}
+
+	/**
+	 * Writes all changes to the storage device.
+	 */
+	void force() {
+		data.force();
+		index.force();
+	}
+
+	/**
+	 * Deletes the segment files. The segment must not be used afterwards.
+	 */
+	boolean delete() {
+		return dataFile.delete() & indexFile.delete();
+	}
+
+	long getBaseSequence() {
+		return baseSequence;
+	}
+
+	/**
+	 * @return the sequence number following the last record of this segment
+	 */
+	long getEndSequence() {
+		return baseSequence + count;
+	}
+
+	long getLastAppendTime() {
+		return lastAppendTime;
+	}
+
+	/**
+	 * Callback for {@link JournalSegment#read(long, long, RecordVisitor)}.
+	 */
+	interface RecordVisitor {
+		void visit(long sequence, long timestamp, String topic, byte[] event, int length) throws IOException;
+	}
+
+}
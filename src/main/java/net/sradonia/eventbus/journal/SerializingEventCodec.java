@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * {@link EventCodec} using standard Java serialization. Events have to implement {@link Serializable}.
+ * 
+ * @author Stefan Rado
+ */
+public class SerializingEventCodec implements EventCodec {
+
+	public byte[] encode(Object event) throws IOException {
+		if (!(event instanceof Serializable))
+			throw new NotSerializableException(event.getClass().getName());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(event);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public Object decode(byte[] data, int offset, int length) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("can't decode event", e);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,428 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A pool of {@link ByteBuffer}s in power-of-two size classes.
+ * </p>
+ * 
+ * <p>
+ * Every thread keeps a small cache of released buffers per size class, so a thread acquiring and releasing buffers doesn't synchronize at all.
+ * Buffers exceeding a thread's cache, for example because they are acquired by a receiver thread and released by a worker thread, are moved to a
+ * shared lock-free depot where other threads pick them up. Only threads which acquire buffers get a cache, so buffers released by threads which
+ * never acquire any, like the handler threads of a thread-per-task executor, go straight to the depot. Virtual threads never get a cache. Requests
+ * larger than the largest size class are allocated and dropped unpooled.
+ * </p>
+ * 
+ * <p>
+ * A buffer must not be used after it has been released. With {@link #setLeakDetection(boolean) leak detection} enabled, buffers that are garbage
+ * collected without being released and buffers released twice are logged together with the stack trace of their acquisition. Leak detection is
+ * meant for debugging as it records a stack trace for every buffer; it can be enabled for the shared pools with the system property
+ * <code>net.sradonia.io.BufferPool.leakDetection=true</code>.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class BufferPool {
+	private static Log log = LogFactory.getLog(BufferPool.class);
+
+	private static final boolean LEAK_DETECTION = Boolean.getBoolean(BufferPool.class.getName() + ".leakDetection");
+
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method isVirtual;
+		try {
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (Exception e) {
+			isVirtual = null;
+		}
+		IS_VIRTUAL = isVirtual;
+	}
+
+	private static class HeapHolder {
+		static final BufferPool pool = new BufferPool(false);
+	}
+
+	private static class DirectHolder {
+		static final BufferPool pool = new BufferPool(true);
+	}
+
+	/**
+	 * Gets the shared pool of heap buffers, whose backing arrays can be used with streams and {@link java.net.DatagramPacket}s.
+	 * 
+	 * @return the shared heap buffer pool
+	 */
+	public static BufferPool getHeapPool() {
+		return HeapHolder.pool;
+	}
+
+	/**
+	 * Gets the shared pool of direct buffers, which avoid a copy when used with channels.
+	 * 
+	 * @return the shared direct buffer pool
+	 */
+	public static BufferPool getDirectPool() {
+		return DirectHolder.pool;
+	}
+
+	private final boolean direct;
+	private final int minShift;
+	private final int maxShift;
+	private final int threadCacheSize;
+	private final int depotSize;
+
+	private final Queue<ByteBuffer>[] depots;
+	private final AtomicInteger[] depotCounts;
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong unpooledAllocations = new AtomicLong();
+
+	private volatile boolean leakDetection = LEAK_DETECTION;
+	private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+	private final Map<Integer, List<Acquisition>> acquisitions = new HashMap<Integer, List<Acquisition>>();
+
+	/**
+	 * Per-thread stacks of released buffers, one per size class.
+	 */
+	private class ThreadCache {
+		final ByteBuffer[][] buffers = new ByteBuffer[maxShift - minShift + 1][threadCacheSize];
+		final int[] sizes = new int[maxShift - minShift + 1];
+	}
+
+	/**
+	 * Records where a tracked buffer has last been acquired and whether it has been released since. Released buffers stay recorded while they are
+	 * pooled to recognize a second release.
+	 */
+	private static class Acquisition extends WeakReference<ByteBuffer> {
+		final int identity;
+		Throwable trace; // guarded by acquisitions
+		boolean released; // guarded by acquisitions
+
+		Acquisition(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.identity = System.identityHashCode(buffer);
+		}
+
+		void acquired(ByteBuffer buffer) {
+			trace = new Throwable("buffer of " + buffer.capacity() + " bytes acquired here");
+			released = false;
+		}
+	}
+
+	/**
+	 * Creates a pool with size classes from 256 bytes to 64 KiB, caching 8 buffers per size class and thread and 256 buffers per size class in the
+	 * shared depot.
+	 * 
+	 * @param direct
+	 *            whether to allocate direct buffers
+	 */
+	public BufferPool(boolean direct) {
+		this(direct, 256, 64 * 1024, 8, 256);
+	}
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param direct
+	 *            whether to allocate direct buffers
+	 * @param minSize
+	 *            the smallest size class, rounded up to a power of two
+	 * @param maxSize
+	 *            the largest size class, rounded up to a power of two
+	 * @param threadCacheSize
+	 *            the number of buffers per size class each thread keeps for itself
+	 * @param depotSize
+	 *            the number of buffers per size class kept in the shared depot
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(boolean direct, int minSize, int maxSize, int threadCacheSize, int depotSize) {
+		if (minSize < 1 || maxSize < minSize || maxSize > (1 << 30))
+			throw new IllegalArgumentException("sizes have to be 1 <= minSize <= maxSize <= 2^30");
+		if (threadCacheSize < 0 || depotSize < 0)
+			throw new IllegalArgumentException("cache sizes can't be negative");
+		this.direct = direct;
+		this.minShift = shift(minSize);
+		this.maxShift = shift(maxSize);
+		this.threadCacheSize = threadCacheSize;
+		this.depotSize = depotSize;
+
+		int classes = maxShift - minShift + 1;
+		depots = new Queue[classes];
+		depotCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			depots[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			depotCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return the exponent of the smallest power of two >= size
+	 */
+	private static int shift(int size) {
+		return (size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1));
+	}
+
+	/**
+	 * Acquires a buffer of at least the given size. The buffer is cleared and its limit is set to the requested size.
+	 * 
+	 * @param size
+	 *            the number of bytes needed
+	 * @return the buffer, which has to be {@link #release(ByteBuffer) released} when it isn't used anymore
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size can't be negative");
+		int shift = Math.max(minShift, shift(size));
+		ByteBuffer buffer;
+		if (shift > maxShift) {
+			unpooledAllocations.incrementAndGet();
+			buffer = allocate(size);
+		} else {
+			int sizeClass = shift - minShift;
+			ThreadCache cache = threadCache.get();
+			if (cache == null && threadCacheSize > 0 && !isVirtual(Thread.currentThread())) {
+				cache = new ThreadCache();
+				threadCache.set(cache);
+			}
+			int cached = (cache != null ? cache.sizes[sizeClass] : 0);
+			if (cached > 0) {
+				cache.sizes[sizeClass] = --cached;
+				buffer = cache.buffers[sizeClass][cached];
+				cache.buffers[sizeClass][cached] = null;
+			} else {
+				buffer = depots[sizeClass].poll();
+				if (buffer != null) {
+					depotCounts[sizeClass].decrementAndGet();
+				} else {
+					allocations.incrementAndGet();
+					buffer = allocate(1 << shift);
+				}
+			}
+			buffer.clear();
+		}
+		buffer.limit(size);
+		if (leakDetection)
+			track(buffer);
+		return buffer;
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Returns a buffer acquired from this pool. Buffers not fitting into a size class of this pool are dropped.
+	 * 
+	 * @param buffer
+	 *            the buffer to release, may be <code>null</code>
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		if (leakDetection && !untrack(buffer))
+			return;
+		int capacity = buffer.capacity();
+		if (buffer.isDirect() != direct || Integer.bitCount(capacity) != 1)
+			return;
+		int shift = shift(capacity);
+		if (shift < minShift || shift > maxShift)
+			return;
+
+		int sizeClass = shift - minShift;
+		ThreadCache cache = threadCache.get(); // threads not acquiring buffers don't get a cache
+		int cached = (cache != null ? cache.sizes[sizeClass] : threadCacheSize);
+		if (cached < threadCacheSize) {
+			cache.buffers[sizeClass][cached] = buffer;
+			cache.sizes[sizeClass] = cached + 1;
+		} else if (depotCounts[sizeClass].incrementAndGet() <= depotSize) {
+			depots[sizeClass].offer(buffer);
+		} else {
+			depotCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the record of the buffer, <code>null</code> if it has never been tracked. Has to be called holding the lock.
+	 */
+	private Acquisition find(ByteBuffer buffer) {
+		List<Acquisition> list = acquisitions.get(System.identityHashCode(buffer));
+		if (list != null) {
+			for (Acquisition acquisition : list) {
+				if (acquisition.get() == buffer)
+					return acquisition;
+			}
+		}
+		return null;
+	}
+
+	private void track(ByteBuffer buffer) {
+		reportLeaks();
+		synchronized (acquisitions) {
+			Acquisition acquisition = find(buffer);
+			if (acquisition == null) {
+				acquisition = new Acquisition(buffer, collected);
+				List<Acquisition> list = acquisitions.get(acquisition.identity);
+				if (list == null) {
+					list = new ArrayList<Acquisition>(1);
+					acquisitions.put(acquisition.identity, list);
+				}
+				list.add(acquisition);
+			}
+			acquisition.acquired(buffer);
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the buffer has been tracked and is already released
+	 */
+	private boolean untrack(ByteBuffer buffer) {
+		synchronized (acquisitions) {
+			Acquisition acquisition = find(buffer);
+			if (acquisition == null)
+				return true; // acquired before leak detection has been enabled
+			if (!acquisition.released) {
+				acquisition.released = true;
+				acquisition.trace = null;
+				return true;
+			}
+		}
+		if (log.isWarnEnabled())
+			log.warn("released a buffer of " + buffer.capacity() + " bytes which isn't acquired", new Throwable("released here"));
+		return false;
+	}
+
+	private void reportLeaks() {
+		Acquisition acquisition;
+		while ((acquisition = (Acquisition) collected.poll()) != null) {
+			Throwable trace;
+			synchronized (acquisitions) {
+				List<Acquisition> list = acquisitions.get(acquisition.identity);
+				if (list == null || !list.remove(acquisition))
+					continue;
+				if (list.isEmpty())
+					acquisitions.remove(acquisition.identity);
+				if (acquisition.released)
+					continue; // dropped by the pool after being released
+				trace = acquisition.trace;
+			}
+			if (log.isWarnEnabled())
+				log.warn("buffer has been garbage collected without being released", trace);
+		}
+	}
+
+	/**
+	 * @return true if leaked and double-released buffers are logged
+	 */
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * Enables or disables the detection of leaked and double-released buffers. Only buffers acquired while enabled are tracked.
+	 * 
+	 * @param leakDetection
+	 *            true to log leaked and double-released buffers
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		if (!leakDetection) {
+			synchronized (acquisitions) {
+				acquisitions.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of buffers currently tracked by the leak detection
+	 */
+	public int getTrackedCount() {
+		reportLeaks();
+		int count = 0;
+		synchronized (acquisitions) {
+			for (List<Acquisition> list : acquisitions.values()) {
+				for (Acquisition acquisition : list) {
+					if (!acquisition.released)
+						count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return whether this pool allocates direct buffers
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return the capacity of the largest size class
+	 */
+	public int getMaxPooledSize() {
+		return 1 << maxShift;
+	}
+
+	/**
+	 * @return the number of buffers allocated for a size class, which stops growing once the pool has warmed up
+	 */
+	public long getAllocationCount() {
+		return allocations.get();
+	}
+
+	/**
+	 * @return the number of buffers allocated because they exceeded the largest size class
+	 */
+	public long getUnpooledAllocationCount() {
+		return unpooledAllocations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[" + (direct ? "direct" : "heap") + ", " + (1 << minShift) + "-" + (1 << maxShift) + " bytes]";
+	}
+}
@@ -102,6 +102,13 @@ public final class ByteArrayBuffer {
 		return b;
 	}
 
+	/**
+	 * Gives direct access to the internal array, which holds {@link #length()} valid bytes. The array is replaced when the buffer grows.
+	 */
+	public byte[] buffer() {
+		return this.buffer;
+	}
+
 	public int byteAt(int i) {
 		return this.buffer[i];
 	}
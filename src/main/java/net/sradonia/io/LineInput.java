@@ -304,7 +304,7 @@ public class LineInput extends FilterInputStream {
 		int avail = this.avail - pos;
 		if (avail <= 0) {
 			fill();
-			avail = avail - pos;
+			avail = this.avail - pos;
 		}
 
 		if (avail <= 0) {
@@ -322,7 +322,7 @@ public class LineInput extends FilterInputStream {
 		int avail = this.avail - pos;
 		if (avail <= 0) {
 			fill();
-			avail = avail - pos;
+			avail = this.avail - pos;
 		}
 
 		if (avail <= 0) {
@@ -17,6 +17,7 @@
  *****************************************************************************/
 package net.sradonia.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -33,11 +34,11 @@ import java.io.InputStream;
  */
 public class MultiChannelInputStream {
 
-	public class Packet {
+	public static class Packet {
 		private int channel;
 		private byte[] data;
 
-		private Packet(int channel, byte[] data) {
+		public Packet(int channel, byte[] data) {
 			this.channel = channel;
 			this.data = data;
 		}
@@ -57,16 +58,40 @@ public class MultiChannelInputStream {
 	}
 
 	private InputStream is;
+	private final int maxPacketLength;
 
+	/**
+	 * Creates a stream accepting packets of up to 1 MiB.
+	 */
 	public MultiChannelInputStream(InputStream is) {
+		this(is, 1024 * 1024);
+	}
+
+	/**
+	 * Creates a stream accepting packets of up to the given length.
+	 * 
+	 * @param maxPacketLength
+	 *            the maximum payload length in bytes, longer packets are rejected with an {@link IOException} before allocating their buffer
+	 */
+	public MultiChannelInputStream(InputStream is, int maxPacketLength) {
+		if (maxPacketLength < 0)
+			throw new IllegalArgumentException("maxPacketLength can't be negative");
 		this.is = is;
+		this.maxPacketLength = maxPacketLength;
+	}
+
+	public int getMaxPacketLength() {
+		return maxPacketLength;
 	}
 
 	public Packet readPacket() throws IOException {
 		synchronized (is) {
 			byte[] header = new byte[10];
-			if (is.read(header) == -1)
+			int first = is.read();
+			if (first == -1)
 				return null;
+			header[0] = (byte) first;
+			readFully(header, 1, header.length - 1);
 
 			if (header[0] != 0x01) // SOH (Start of Heading)
 				throw new IOException("Packet header didn't start with SOH (0x01)");
@@ -76,12 +101,24 @@ public class MultiChannelInputStream {
 			int channel = (((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff));
 
 			int length = (((header[5] & 0xff) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff));
+			if (length < 0 || length > maxPacketLength)
+				throw new IOException("Illegal packet length " + length + ", maximum is " + maxPacketLength);
 
 			byte[] data = new byte[length];
-			is.read(data);
+			readFully(data, 0, length);
 
 			return new Packet(channel, data);
 		}
 	}
 
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = is.read(b, off, len);
+			if (n < 0)
+				throw new EOFException("Stream ended within a packet");
+			off += n;
+			len -= n;
+		}
+	}
+
 }
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+
+/**
+ * <p>
+ * Access to the <code>SO_REUSEPORT</code> socket option, which allows several sockets to be bound to the same port. The operating system then
+ * balances incoming connections or packets across them, so each socket can be served by its own thread.
+ * </p>
+ * 
+ * <p>
+ * The option is accessed by reflection as it is only available since Java 9 and only supported on some platforms, like Linux and BSD.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public final class ReusePort {
+
+	private static final Object SO_REUSEPORT;
+	private static final Class<?> SOCKET_OPTION;
+
+	static {
+		Object option = null;
+		Class<?> socketOption = null;
+		try {
+			socketOption = Class.forName("java.net.SocketOption");
+			option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			// supported by the platform?
+			Method supportedOptions = ServerSocket.class.getMethod("supportedOptions");
+			ServerSocket probe = new ServerSocket();
+			try {
+				if (!((Set<?>) supportedOptions.invoke(probe)).contains(option))
+					option = null;
+			} finally {
+				probe.close();
+			}
+		} catch (Exception e) {
+			option = null;
+		}
+		SO_REUSEPORT = option;
+		SOCKET_OPTION = socketOption;
+	}
+
+	private ReusePort() {
+	}
+
+	/**
+	 * Channel implementations are not accessible, so the method has to be looked up on a public type.
+	 */
+	private static Class<?> publicType(Object socket) throws ClassNotFoundException {
+		if (socket instanceof ServerSocket)
+			return ServerSocket.class;
+		if (socket instanceof DatagramSocket)
+			return DatagramSocket.class;
+		if (socket instanceof Socket)
+			return Socket.class;
+		return Class.forName("java.nio.channels.NetworkChannel");
+	}
+
+	/**
+	 * @return <code>true</code> if <code>SO_REUSEPORT</code> is supported by the JVM and the platform
+	 */
+	public static boolean isSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Enables <code>SO_REUSEPORT</code> on an unbound socket or channel.
+	 * 
+	 * @param socket
+	 *            a {@link ServerSocket}, {@link DatagramSocket} or network channel
+	 * @throws IOException
+	 *             if the option can't be set
+	 * @throws UnsupportedOperationException
+	 *             if the option isn't supported, see {@link #isSupported()}
+	 */
+	public static void enable(Object socket) throws IOException {
+		if (SO_REUSEPORT == null)
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported");
+		try {
+			publicType(socket).getMethod("setOption", SOCKET_OPTION, Object.class).invoke(socket, SO_REUSEPORT, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("couldn't set SO_REUSEPORT", e.getCause());
+		} catch (Exception e) {
+			throw new IOException("couldn't set SO_REUSEPORT", e);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A single thread multiplexing any number of non-blocking channels using a {@link Selector}.
+ * </p>
+ * 
+ * <p>
+ * Channels are registered together with a {@link Handler} which is called by the loop thread whenever the channel is ready for one of its interest
+ * operations. Tasks that have to run on the loop thread, like registering a channel or changing interest operations from another thread, are
+ * submitted via {@link #execute(Runnable)}.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class SelectorLoop implements Executor {
+
+	/**
+	 * The callback interface for channels registered on a {@link SelectorLoop}. All methods are called by the loop thread.
+	 */
+	public interface Handler {
+
+		/**
+		 * Is called when the channel is ready for at least one of its interest operations.
+		 * 
+		 * @param key
+		 *            the selection key of the channel
+		 */
+		public void ready(SelectionKey key);
+
+		/**
+		 * Is called for every registered channel when the loop stops. The channel should be closed.
+		 * 
+		 * @param key
+		 *            the selection key of the channel
+		 */
+		public void loopStopped(SelectionKey key);
+	}
+
+	/**
+	 * Milliseconds to wait after the selector failed.
+	 */
+	private static final long SELECT_FAILURE_PAUSE = 100;
+
+	private final Thread thread;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	private volatile boolean started;
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a new loop. The loop thread is started by {@link #start()}.
+	 * 
+	 * @param threadFactory
+	 *            the factory creating the loop thread
+	 * @throws IOException
+	 *             if the selector can't be opened
+	 */
+	public SelectorLoop(ThreadFactory threadFactory) throws IOException {
+		if (threadFactory == null)
+			throw new IllegalArgumentException("threadFactory can't be null");
+		selector = Selector.open();
+		thread = threadFactory.newThread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		});
+	}
+
+	/**
+	 * Starts the loop thread.
+	 */
+	public synchronized void start() {
+		if (started)
+			throw new IllegalStateException("loop has already been started");
+		started = true;
+		thread.start();
+	}
+
+	/**
+	 * Stops the loop thread. Tasks already submitted are still run, then all registered handlers are notified by
+	 * {@link Handler#loopStopped(SelectionKey)}.
+	 * 
+	 * @param wait
+	 *            whether to wait for the loop thread to terminate
+	 */
+	public void stop(boolean wait) {
+		stopped = true;
+		selector.wakeup();
+		if (wait && started && !inLoop()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the loop has been started and not been stopped yet
+	 */
+	public boolean isRunning() {
+		return started && !stopped && thread.isAlive();
+	}
+
+	/**
+	 * @return <code>true</code> if called by the loop thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the task on the loop thread. If called by the loop thread, the task is run after the current selection round.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the loop has been stopped
+	 */
+	public void execute(Runnable task) {
+		if (task == null)
+			throw new IllegalArgumentException("task can't be null");
+		if (stopped)
+			throw new RejectedExecutionException("loop has been stopped");
+		tasks.add(task);
+		// the loop may have stopped meanwhile: if the task is still queued, it would never run
+		if (stopped && tasks.remove(task))
+			throw new RejectedExecutionException("loop has been stopped");
+		if (!inLoop() && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Registers a channel on this loop. Has to be called by the loop thread, see {@link #execute(Runnable)}.
+	 * 
+	 * @param channel
+	 *            the channel, already configured to be non-blocking
+	 * @param ops
+	 *            the initial interest operations
+	 * @param handler
+	 *            the handler to call when the channel is ready
+	 * @return the selection key of the channel
+	 * @throws ClosedChannelException
+	 *             if the channel has been closed
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		if (!inLoop())
+			throw new IllegalStateException("channels have to be registered by the loop thread");
+		if (handler == null)
+			throw new IllegalArgumentException("handler can't be null");
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * @return the number of channels currently registered on this loop
+	 */
+	public int getChannelCount() {
+		return selector.keys().size();
+	}
+
+	private void loop() {
+		try {
+			while (!stopped) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					// don't spin if the selector keeps failing
+					try {
+						Thread.sleep(SELECT_FAILURE_PAUSE);
+					} catch (InterruptedException ie) {
+						stopped = true;
+					}
+				}
+				wakeupPending.set(false);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					try {
+						((Handler) key.attachment()).ready(key);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+
+				runTasks();
+			}
+		} finally {
+			// also if the loop died, so execute() rejects new tasks
+			stopped = true;
+			// tasks queued before the loop stopped may still register channels. Every task is either run here or removed and rejected by execute().
+			Set<SelectionKey> notified = new HashSet<SelectionKey>();
+			do {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				for (SelectionKey key : selector.keys()) {
+					if (!notified.add(key))
+						continue;
+					try {
+						((Handler) key.attachment()).loopStopped(key);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			} while (!tasks.isEmpty());
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void runTasks() {
+		// only run the tasks queued so far, tasks added by tasks run in the next round
+		for (int i = tasks.size(); i > 0; i--) {
+			Runnable task = tasks.poll();
+			if (task == null)
+				break;
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		if (!tasks.isEmpty())
+			selector.wakeup();
+	}
+
+	@Override
+	public String toString() {
+		return "SelectorLoop[" + thread.getName() + ", channels=" + getChannelCount() + "]";
+	}
+}
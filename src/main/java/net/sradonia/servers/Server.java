@@ -17,8 +17,21 @@
  *****************************************************************************/
 package net.sradonia.servers;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sradonia.io.BufferPool;
+import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.RenamingThreadFactory;
+import net.sradonia.threads.VirtualThreadFactory;
+
 /**
  * Abstract Server implementation.
  * 
@@ -35,6 +48,20 @@ public abstract class Server<ListenerClass> {
 	protected Thread thread;
 	protected static AtomicInteger threadcount = new AtomicInteger(0);
 
+	protected ExecutorService executor;
+	protected int corePoolSize = 0;
+	protected int maximumPoolSize = Integer.MAX_VALUE;
+	protected int queueCapacity = 0;
+	protected RejectedExecutionHandler rejectionPolicy = new ThreadPoolExecutor.AbortPolicy();
+	protected boolean virtualThreads;
+	protected BufferPool bufferPool = BufferPool.getHeapPool();
+
+	protected final Object drainLock = new Object();
+	protected volatile boolean draining;
+	protected volatile long drainDeadline;
+	protected volatile boolean abortHandlers;
+	protected volatile ShutdownResult shutdownResult;
+
 	/**
 	 * Gets the port the server listens on. Reveals nothing about the current running state.
 	 * 
@@ -105,6 +132,198 @@ public abstract class Server<ListenerClass> {
 		this.listener = listener;
 	}
 
+	/**
+	 * Gets the executor injected via {@link #setExecutor(ExecutorService)}.
+	 * 
+	 * @return the executor running the handlers, <code>null</code> if the server creates its own worker pool
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor running the connection or packet handlers. The executor may be shared by several servers and won't be shut down when the
+	 * server stops. Will return without any changes when the server is currently running.
+	 * 
+	 * @param executor
+	 *            the executor, <code>null</code> to let the server create its own worker pool on start
+	 * @see #setWorkerPool(int, int, int)
+	 */
+	public void setExecutor(ExecutorService executor) {
+		if (isRunning())
+			return;
+		this.executor = executor;
+	}
+
+	/**
+	 * Configures the worker pool the server creates on start if no executor has been {@link #setExecutor(ExecutorService) injected}. Will return
+	 * without any changes when the server is currently running. The default is an unbounded pool without queue, creating a thread for every
+	 * concurrent handler.
+	 * 
+	 * @param corePoolSize
+	 *            the number of threads kept even if idle
+	 * @param maximumPoolSize
+	 *            the maximum number of threads
+	 * @param queueCapacity
+	 *            the number of handlers waiting for a free thread before new ones are rejected, <code>0</code> to hand over directly
+	 * @see #setRejectionPolicy(RejectedExecutionHandler)
+	 */
+	public void setWorkerPool(int corePoolSize, int maximumPoolSize, int queueCapacity) {
+		if (isRunning())
+			return;
+		if (corePoolSize < 0 || maximumPoolSize < 1 || maximumPoolSize < corePoolSize)
+			throw new IllegalArgumentException("pool sizes have to be 0 <= corePoolSize <= maximumPoolSize and maximumPoolSize > 0");
+		if (queueCapacity < 0)
+			throw new IllegalArgumentException("queueCapacity can't be negative");
+		this.corePoolSize = corePoolSize;
+		this.maximumPoolSize = maximumPoolSize;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getCorePoolSize() {
+		return corePoolSize;
+	}
+
+	public int getMaximumPoolSize() {
+		return maximumPoolSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Gets the policy applied by the server's own worker pool when all threads are busy and the queue is full.
+	 * 
+	 * @return the rejection policy
+	 */
+	public RejectedExecutionHandler getRejectionPolicy() {
+		return rejectionPolicy;
+	}
+
+	/**
+	 * Sets the policy applied by the server's own worker pool when all threads are busy and the queue is full. The default
+	 * {@link ThreadPoolExecutor.AbortPolicy} rejects the connection or packet, see the server implementations for how rejections are handled. Will
+	 * return without any changes when the server is currently running.
+	 * 
+	 * @param rejectionPolicy
+	 *            the new rejection policy
+	 */
+	public void setRejectionPolicy(RejectedExecutionHandler rejectionPolicy) {
+		if (isRunning())
+			return;
+		if (rejectionPolicy == null)
+			throw new IllegalArgumentException("rejectionPolicy can't be null");
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * Returns whether the handlers should run on virtual threads.
+	 * 
+	 * @return true when a virtual thread should be started for every handler
+	 * @see #setVirtualThreads(boolean)
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets whether the server should start a virtual thread for every connection or packet handler instead of using a worker pool. This allows a
+	 * huge number of concurrently blocked handlers at the cost of a few hundred bytes each. If the running JVM doesn't support virtual threads (see
+	 * {@link VirtualThreadFactory#isAvailable()}), the configured worker pool is used. An {@link #setExecutor(ExecutorService) injected executor}
+	 * takes precedence. Will return without any changes when the server is currently running.
+	 * 
+	 * @param virtualThreads
+	 *            true to run every handler on its own virtual thread
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (!isRunning())
+			this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Gets the pool the server takes its receive buffers from.
+	 * 
+	 * @return the buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the pool the server takes its receive buffers from. The pool may be shared by several servers. Default is the shared
+	 * {@link BufferPool#getHeapPool() heap buffer pool}. Will return without any changes when the server is currently running.
+	 * 
+	 * @param bufferPool
+	 *            the new buffer pool, has to provide heap buffers as the server passes their arrays to the sockets
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if (isRunning())
+			return;
+		if (bufferPool == null)
+			throw new IllegalArgumentException("bufferPool can't be null");
+		if (bufferPool.isDirect())
+			throw new IllegalArgumentException("bufferPool has to provide heap buffers");
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Returns the injected executor or creates the server's own worker pool. Called by the server thread on start.
+	 * 
+	 * @return the executor to run the handlers with
+	 */
+	protected ExecutorService createWorkerPool() {
+		if (executor != null)
+			return executor;
+		if (virtualThreads) {
+			ExecutorService virtualExecutor = new VirtualThreadFactory(Thread.currentThread().getName() + "-HandlerThread-").newThreadPerTaskExecutor();
+			if (virtualExecutor != null)
+				return virtualExecutor;
+		}
+		BlockingQueue<Runnable> queue;
+		if (queueCapacity == 0)
+			queue = new SynchronousQueue<Runnable>();
+		else if (queueCapacity == Integer.MAX_VALUE)
+			queue = new LinkedBlockingQueue<Runnable>();
+		else
+			queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+		return new ThreadPoolExecutor(corePoolSize, maximumPoolSize, 60L, TimeUnit.SECONDS, queue, new DaemonThreadFactory(new RenamingThreadFactory(
+				Thread.currentThread().getName() + "-HandlerThread-"), daemon), rejectionPolicy);
+	}
+
+	/**
+	 * Shuts the worker pool down if it has been created by {@link #createWorkerPool()}. Injected executors are left running. If the handlers are
+	 * aborted, the handlers still queued are removed from the pool and passed to {@link #discardHandler(Runnable)}.
+	 * 
+	 * @param pool
+	 *            the pool returned by {@link #createWorkerPool()}
+	 */
+	protected void releaseWorkerPool(ExecutorService pool) {
+		if (pool != null && pool != executor) {
+			if (abortHandlers) {
+				for (Runnable handler : pool.shutdownNow())
+					discardHandler(handler);
+			} else {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Releases the resources and counters of a handler removed from the worker pool before it has been started. The default implementation runs
+	 * the handler on the calling thread: while the handlers are aborted, they only release what they hold without calling the listener.
+	 * 
+	 * @param handler
+	 *            the handler which will never be run by the pool
+	 */
+	protected void discardHandler(Runnable handler) {
+		try {
+			handler.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Returns the current running state.
 	 * 
@@ -124,6 +343,8 @@ public abstract class Server<ListenerClass> {
 	 */
 	public void setRunning(boolean on) {
 		if (on && !isRunning()) {
+			draining = false;
+			abortHandlers = false;
 			thread = new Thread() {
 				public void run() {
 					runServer();
@@ -137,6 +358,103 @@ public abstract class Server<ListenerClass> {
 		}
 	}
 
+	/**
+	 * Stops the server gracefully: it stops accepting connections or packets at once, waits for the ones still being handled until the timeout
+	 * elapses and then aborts the remaining ones. Blocks until the server thread has terminated. See the server implementations for what is waited
+	 * for and how it is aborted.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait for in-flight connections or packets, <code>0</code> to abort them immediately
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return how many connections or packets were drained and how many were aborted
+	 * @see #setRunning(boolean)
+	 */
+	public ShutdownResult shutdown(long timeout, TimeUnit unit) {
+		Thread serverThread = thread;
+		if (serverThread == null || !serverThread.isAlive())
+			return new ShutdownResult(0, 0);
+		shutdownResult = null;
+		drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+		draining = true;
+		setRunning(false);
+		try {
+			serverThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ShutdownResult result = shutdownResult;
+		return (result != null ? result : new ShutdownResult(0, 0));
+	}
+
+	/**
+	 * Drains the server if it is stopped by {@link #shutdown(long, TimeUnit)}. Has to be called by the server thread after it stopped accepting and
+	 * before it releases the worker pool and closes the connections.
+	 */
+	protected void drainOnShutdown() {
+		if (!draining)
+			return;
+		boolean interrupted = Thread.interrupted(); // the server thread has been interrupted to stop accepting
+		try {
+			ShutdownResult result = drain(drainDeadline);
+			if (result.getAbortedCount() > 0)
+				abortHandlers = true;
+			shutdownResult = result;
+		} finally {
+			draining = false;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the connections or packets still being handled and aborts the remaining ones at the deadline. Called by
+	 * {@link #drainOnShutdown()}. The default implementation doesn't wait at all.
+	 * 
+	 * @param deadline
+	 *            the deadline in terms of {@link System#nanoTime()}
+	 * @return how many connections or packets were drained and how many were aborted
+	 */
+	protected ShutdownResult drain(long deadline) {
+		return new ShutdownResult(0, 0);
+	}
+
+	/**
+	 * Waits until the given counter drops to zero or the deadline has passed. Implementations have to call {@link #notifyDrain()} whenever they
+	 * decrement the counter.
+	 * 
+	 * @param inFlight
+	 *            the number of connections or packets still being handled
+	 * @param deadline
+	 *            the deadline in terms of {@link System#nanoTime()}
+	 * @return the value of the counter at the end
+	 */
+	protected int awaitDrained(AtomicInteger inFlight, long deadline) {
+		synchronized (drainLock) {
+			long remaining;
+			while (inFlight.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			return inFlight.get();
+		}
+	}
+
+	/**
+	 * Wakes up {@link #awaitDrained(AtomicInteger, long)} while the server is draining.
+	 */
+	protected void notifyDrain() {
+		if (draining) {
+			synchronized (drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
 	/**
 	 * This method is called by a separate server thread. It opens the implementation-specific Sockets, handles the incoming connections and passes
 	 * them to the listener.
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers;
+
+/**
+ * The outcome of a {@link Server#shutdown(long, java.util.concurrent.TimeUnit) graceful shutdown}: how many connections or packets were still being
+ * handled when the server stopped accepting, and how many of them had to be aborted because they didn't finish before the deadline.
+ * 
+ * @author Stefan Rado
+ */
+public final class ShutdownResult {
+
+	private final int drained;
+	private final int aborted;
+
+	public ShutdownResult(int drained, int aborted) {
+		this.drained = drained;
+		this.aborted = aborted;
+	}
+
+	/**
+	 * @return the number of connections or packets finished before the deadline
+	 */
+	public int getDrainedCount() {
+		return drained;
+	}
+
+	/**
+	 * @return the number of connections or packets force-closed or discarded at the deadline
+	 */
+	public int getAbortedCount() {
+		return aborted;
+	}
+
+	/**
+	 * @return true when nothing had to be aborted
+	 */
+	public boolean isComplete() {
+		return aborted == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ShutdownResult[drained=" + drained + ", aborted=" + aborted + "]";
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import net.sradonia.time.HashedTimingWheel;
+import net.sradonia.time.Timeout;
+
+/**
+ * <p>
+ * Tracks the activity of a connection and closes it when it has been idle for too long or exceeded its maximum lifetime.
+ * </p>
+ * 
+ * <p>
+ * Recording activity only stores a timestamp. A single timeout per connection is scheduled on a timing wheel for the earliest possible expiry; when
+ * it fires, the timestamps are checked and the timeout is rescheduled if there has been activity in the meantime.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+abstract class ConnectionActivity implements Runnable {
+
+	private final HashedTimingWheel wheel;
+	private final long readIdleNanos;
+	private final long writeIdleNanos;
+	private final long lifetimeDeadline;
+
+	private volatile long lastRead;
+	private volatile long lastWrite;
+	private volatile Timeout timeout;
+	private volatile boolean stopped;
+
+	/**
+	 * @param readIdleNanos
+	 *            the maximum time without reading, <code>0</code> for no limit
+	 * @param writeIdleNanos
+	 *            the maximum time without writing, <code>0</code> for no limit
+	 * @param lifetimeNanos
+	 *            the maximum lifetime, <code>0</code> for no limit
+	 */
+	ConnectionActivity(HashedTimingWheel wheel, long readIdleNanos, long writeIdleNanos, long lifetimeNanos) {
+		long now = System.nanoTime();
+		this.wheel = wheel;
+		this.readIdleNanos = readIdleNanos;
+		this.writeIdleNanos = writeIdleNanos;
+		this.lifetimeDeadline = (lifetimeNanos > 0 ? now + lifetimeNanos : 0);
+		this.lastRead = now;
+		this.lastWrite = now;
+	}
+
+	void read() {
+		lastRead = System.nanoTime();
+	}
+
+	void wrote() {
+		lastWrite = System.nanoTime();
+	}
+
+	/**
+	 * Schedules the first check.
+	 */
+	void start() {
+		run();
+	}
+
+	/**
+	 * Cancels the pending check. Called when the connection is closed.
+	 */
+	void stop() {
+		stopped = true;
+		Timeout timeout = this.timeout;
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * Checks the timestamps, expires the connection or schedules the next check.
+	 */
+	public void run() {
+		if (stopped)
+			return;
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+
+		if (lifetimeDeadline != 0) {
+			long remaining = lifetimeDeadline - now;
+			if (remaining <= 0) {
+				expire(new SocketTimeoutException("maximum connection lifetime exceeded"));
+				return;
+			}
+			next = Math.min(next, remaining);
+		}
+		if (readIdleNanos > 0) {
+			long remaining = lastRead + readIdleNanos - now;
+			if (remaining <= 0) {
+				expire(new SocketTimeoutException("read idle timeout"));
+				return;
+			}
+			next = Math.min(next, remaining);
+		}
+		if (writeIdleNanos > 0) {
+			long remaining = lastWrite + writeIdleNanos - now;
+			if (remaining <= 0) {
+				expire(new SocketTimeoutException("write idle timeout"));
+				return;
+			}
+			next = Math.min(next, remaining);
+		}
+
+		if (next != Long.MAX_VALUE) {
+			timeout = wheel.schedule(this, next, TimeUnit.NANOSECONDS);
+			if (stopped) // closed concurrently
+				timeout.cancel();
+		}
+	}
+
+	/**
+	 * Closes the connection. Called by the timing wheel thread.
+	 * 
+	 * @param reason
+	 *            the reason to report to the listener
+	 */
+	abstract void expire(SocketTimeoutException reason);
+}
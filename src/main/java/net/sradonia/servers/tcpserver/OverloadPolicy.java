@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+/**
+ * Defines how a {@link TcpServer} sheds load once its connection or handoff limits are reached.
+ * 
+ * @author Stefan Rado
+ * @see TcpServer#setMaxConnections(int)
+ * @see TcpServer#setMaxPendingHandoffs(int)
+ */
+public enum OverloadPolicy {
+
+	/**
+	 * New connections are accepted and closed immediately, so clients fail fast and may try another server.
+	 */
+	CLOSE,
+
+	/**
+	 * The server stops accepting until it falls below its limits again. New connections wait in the backlog of the operating system, which drops
+	 * them when it is full.
+	 */
+	STOP_ACCEPTING
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sradonia.servers.SelectorLoop;
+
+/**
+ * A non-blocking connection of a {@link TcpServer}, assigned to one of the server's event loops.
+ * 
+ * <p>
+ * Reading and writing never blocks and is normally done by the {@link TcpChannelListener} callbacks on the event loop thread. The interest
+ * operations may be changed by any thread.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class TcpChannel implements SelectorLoop.Handler {
+
+	private final TcpServer parent;
+	private final SocketChannel channel;
+	private final SelectorLoop loop;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private volatile SelectionKey key;
+	private volatile Object attachment;
+
+	volatile ConnectionActivity activity;
+
+	TcpChannel(TcpServer parent, SocketChannel channel, SelectorLoop loop) {
+		this.parent = parent;
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	/**
+	 * Registers the channel on its loop and notifies the listener. Closes the channel if the loop has already been stopped.
+	 */
+	void register() {
+		try {
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						key = loop.register(channel, SelectionKey.OP_READ, TcpChannel.this);
+						parent.trackActivity(TcpChannel.this);
+						parent.callOnAccept(TcpChannel.this);
+					} catch (IOException e) {
+						parent.callOnChannelIOException(TcpChannel.this, e, "Couldn't register connection");
+						close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			close();
+		}
+	}
+
+	public void ready(SelectionKey key) {
+		if (key.isReadable())
+			parent.callOnReadable(this);
+		if (key.isValid() && key.isWritable())
+			parent.callOnWritable(this);
+	}
+
+	public void loopStopped(SelectionKey key) {
+		close();
+	}
+
+	/**
+	 * Reads a sequence of bytes from the connection without blocking.
+	 * 
+	 * @param buffer
+	 *            the buffer to read into
+	 * @return the number of bytes read, possibly <code>0</code>, or <code>-1</code> if the peer has closed the connection
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public int read(ByteBuffer buffer) throws IOException {
+		int n = channel.read(buffer);
+		ConnectionActivity activity = this.activity;
+		if (n > 0 && activity != null)
+			activity.read();
+		return n;
+	}
+
+	/**
+	 * Writes a sequence of bytes to the connection without blocking. If not all bytes could be written, the remaining ones should be written when
+	 * the connection becomes writable again, see {@link #setWriteInterest(boolean)}.
+	 * 
+	 * @param buffer
+	 *            the buffer to write from
+	 * @return the number of bytes written, possibly <code>0</code>
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public int write(ByteBuffer buffer) throws IOException {
+		int n = channel.write(buffer);
+		ConnectionActivity activity = this.activity;
+		if (n > 0 && activity != null)
+			activity.wrote();
+		return n;
+	}
+
+	/**
+	 * Sets whether {@link TcpChannelListener#onReadable(TcpServer, TcpChannel)} should be called when data arrives. Enabled by default.
+	 * 
+	 * @param interested
+	 *            whether the listener is interested in reading
+	 */
+	public void setReadInterest(boolean interested) {
+		setInterest(SelectionKey.OP_READ, interested);
+	}
+
+	/**
+	 * Sets whether {@link TcpChannelListener#onWritable(TcpServer, TcpChannel)} should be called when the connection becomes writable. Should only be
+	 * enabled while there is pending data that couldn't be written. Disabled by default.
+	 * 
+	 * @param interested
+	 *            whether the listener is interested in writing
+	 */
+	public void setWriteInterest(boolean interested) {
+		setInterest(SelectionKey.OP_WRITE, interested);
+	}
+
+	private void setInterest(final int op, final boolean interested) {
+		if (loop.inLoop()) {
+			SelectionKey key = this.key;
+			if (key != null && key.isValid())
+				key.interestOps(interested ? key.interestOps() | op : key.interestOps() & ~op);
+		} else {
+			try {
+				loop.execute(new Runnable() {
+					public void run() {
+						setInterest(op, interested);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// loop stopped, the channel is being closed
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection. The listener will be notified once, even if this method is called several times.
+	 */
+	public void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		ConnectionActivity activity = this.activity;
+		if (activity != null)
+			activity.stop();
+		SelectionKey key = this.key;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		parent.channels.remove(this);
+		parent.connectionReleased();
+		parent.callOnClose(this);
+	}
+
+	/**
+	 * @return <code>true</code> if the connection hasn't been closed yet
+	 */
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	/**
+	 * @return the underlying channel
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the socket of the underlying channel, for example to query the addresses or to set socket options
+	 */
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	/**
+	 * @return the event loop this connection is assigned to
+	 */
+	public SelectorLoop getLoop() {
+		return loop;
+	}
+
+	public TcpServer getTcpServer() {
+		return parent;
+	}
+
+	/**
+	 * @return the object attached by {@link #setAttachment(Object)}
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Attaches an arbitrary object to the connection, for example the state of a protocol.
+	 * 
+	 * @param attachment
+	 *            the object to attach
+	 */
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	@Override
+	public String toString() {
+		return "TcpChannel[" + channel.socket().getRemoteSocketAddress() + "]";
+	}
+}
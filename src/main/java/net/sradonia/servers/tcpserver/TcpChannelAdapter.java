@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+import java.io.IOException;
+
+/**
+ * @author Stefan Rado
+ */
+public class TcpChannelAdapter implements TcpChannelListener {
+
+	public void onAccept(TcpServer src, TcpChannel channel) throws IOException {
+	}
+
+	public void onReadable(TcpServer src, TcpChannel channel) throws IOException {
+	}
+
+	public void onWritable(TcpServer src, TcpChannel channel) throws IOException {
+	}
+
+	public void onClose(TcpServer src, TcpChannel channel) {
+	}
+
+	public void onIOException(TcpServer src, TcpChannel channel, IOException e, String info) {
+	}
+
+}
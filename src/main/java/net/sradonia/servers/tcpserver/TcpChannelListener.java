@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+import java.io.IOException;
+
+/**
+ * The listener interface for connections of a {@link TcpServer} running in non-blocking mode. The class interested in processing these events
+ * implements this interface and registers itself to the {@link TcpServer} either via the constructor or via the
+ * {@link TcpServer#setChannelListener(TcpChannelListener)} method.
+ * 
+ * <p>
+ * All methods of a connection are called by the event loop thread the connection is assigned to, so they must never block. An {@link IOException}
+ * thrown by one of the methods is reported to {@link #onIOException(TcpServer, TcpChannel, IOException, String)} and closes the connection.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public interface TcpChannelListener {
+
+	/**
+	 * Is called when a new connection has been accepted. The connection is initially interested in reading.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param channel
+	 *            the newly accepted connection
+	 * @throws IOException
+	 *             to close the connection
+	 */
+	public void onAccept(TcpServer src, TcpChannel channel) throws IOException;
+
+	/**
+	 * Is called when data can be read from the connection without blocking. Reading <code>-1</code> bytes means the peer has closed the connection.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param channel
+	 *            the readable connection
+	 * @throws IOException
+	 *             to close the connection
+	 */
+	public void onReadable(TcpServer src, TcpChannel channel) throws IOException;
+
+	/**
+	 * Is called when data can be written to the connection without blocking. Only called while the connection is interested in writing, see
+	 * {@link TcpChannel#setWriteInterest(boolean)}.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param channel
+	 *            the writable connection
+	 * @throws IOException
+	 *             to close the connection
+	 */
+	public void onWritable(TcpServer src, TcpChannel channel) throws IOException;
+
+	/**
+	 * Is called when the connection has been closed.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param channel
+	 *            the closed connection
+	 */
+	public void onClose(TcpServer src, TcpChannel channel);
+
+	/**
+	 * Is called when an {@link IOException} occured on a connection. The connection will be closed afterwards.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param channel
+	 *            the connection
+	 * @param e
+	 *            the reason for the event
+	 * @param info
+	 *            an additional message describing the situation when the exception was thrown
+	 */
+	public void onIOException(TcpServer src, TcpChannel channel, IOException e, String info);
+}
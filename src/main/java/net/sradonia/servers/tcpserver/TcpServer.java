@@ -20,15 +20,33 @@ package net.sradonia.servers.tcpserver;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.sradonia.servers.ReusePort;
+import net.sradonia.servers.SelectorLoop;
 import net.sradonia.servers.Server;
+import net.sradonia.servers.ShutdownResult;
 import net.sradonia.threads.DaemonThreadFactory;
 import net.sradonia.threads.RenamingThreadFactory;
+import net.sradonia.time.HashedTimingWheel;
 
 /**
  * Simple TCP Server with possibility to start/stop and restart.
@@ -37,17 +55,62 @@ import net.sradonia.threads.RenamingThreadFactory;
  * 
  * When a new connection is established a newly created {@link TcpServerServerSocket}-Instance will call the associated {@link TcpServerListener} to
  * handle the connection. The TCP connection will remain open after the handler has finished until the explicit call of the
- * {@link TcpServerServerSocket#close()} method.
+ * {@link TcpServerServerSocket#close()} method. The handlers are run by the worker pool configured in {@link Server}; a connection rejected by the
+ * pool is closed immediately, notifying the listener via {@link TcpServerListener#onDisconnect(TcpServer, TcpServerSocket)}.
  * 
  * When the port is set to 0 when the server is started, any available port will be used which can be found via the {@link #getPort()} method.
  * 
+ * When a {@link TcpChannelListener} is set, the server runs in non-blocking mode instead: accepted connections are distributed over a fixed number
+ * of event loop threads, each multiplexing its connections with a {@link java.nio.channels.Selector}, and the channel listener is called whenever a
+ * connection becomes readable or writable. The {@link TcpServerListener} is then only notified about the server's state.
+ * 
  * @author Stefan Rado
  */
 public class TcpServer extends Server<TcpServerListener> {
 
+	private static class ReaperHolder {
+		static final HashedTimingWheel wheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 512, new DaemonThreadFactory(
+				new RenamingThreadFactory("TcpServer-IdleReaper-")));
+	}
+
 	protected TcpServerServerSocket socket;
 	protected boolean keepAlive = true;
 
+	protected volatile long readIdleTimeout;
+	protected volatile long writeIdleTimeout;
+	protected volatile long maxConnectionLifetime;
+
+	protected TcpChannelListener channelListener;
+	protected int eventLoopCount = Runtime.getRuntime().availableProcessors();
+	protected ServerSocketChannel serverChannel;
+	protected SelectorLoop[] eventLoops;
+	protected SelectorLoop[] sharedEventLoops;
+	protected final Set<TcpChannel> channels = Collections.newSetFromMap(new ConcurrentHashMap<TcpChannel, Boolean>());
+
+	protected final AtomicLong rejectedConnections = new AtomicLong();
+	protected final AtomicLong acceptedConnections = new AtomicLong();
+	protected final AtomicInteger activeConnections = new AtomicInteger();
+	protected final AtomicInteger pendingHandoffs = new AtomicInteger();
+	protected final AtomicInteger activeHandlers = new AtomicInteger();
+	protected final Object admissionLock = new Object();
+	private volatile int admissionWaiters; // guarded by admissionLock
+
+	protected volatile int maxConnections;
+	protected volatile int maxPendingHandoffs;
+	protected volatile OverloadPolicy overloadPolicy = OverloadPolicy.CLOSE;
+	protected final AtomicInteger nextEventLoop = new AtomicInteger();
+	protected final Set<TcpServerSocket> connections = Collections.newSetFromMap(new ConcurrentHashMap<TcpServerSocket, Boolean>());
+
+	protected InetAddress bindAddress;
+	protected int backlog = 50;
+	protected int acceptorCount = 1;
+	protected boolean reusePort;
+	protected boolean tcpNoDelay;
+	protected int receiveBufferSize;
+	protected int sendBufferSize;
+	protected final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<ServerSocket>();
+	protected final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<ServerSocketChannel>();
+
 	/**
 	 * Creates a new <code>TcpServer</code> instance with the given port and listener and sets the threadmode to daemon.
 	 * 
@@ -74,6 +137,520 @@ public class TcpServer extends Server<TcpServerListener> {
 		setDaemon(daemon);
 	}
 
+	/**
+	 * Creates a new <code>TcpServer</code> instance running in non-blocking mode with the given port and channel listener and sets the threadmode.
+	 * 
+	 * @param port
+	 *            the TCP port this server will listen on
+	 * @param channelListener
+	 *            the listener handling the connections
+	 * @param daemon
+	 *            whether the server and event loop threads should be started as daemons or not
+	 */
+	public TcpServer(int port, TcpChannelListener channelListener, boolean daemon) {
+		this(port, new TcpServerAdapter(), daemon);
+		setChannelListener(channelListener);
+	}
+
+	/**
+	 * Gets the listener handling the connections in non-blocking mode.
+	 * 
+	 * @return the channel listener, <code>null</code> if the server runs in blocking mode
+	 */
+	public TcpChannelListener getChannelListener() {
+		return channelListener;
+	}
+
+	/**
+	 * Sets the listener handling the connections in non-blocking mode. Will return without any changes when the server is currently running.
+	 * 
+	 * @param channelListener
+	 *            the channel listener, <code>null</code> to run the server in blocking mode calling the {@link TcpServerListener} for every
+	 *            connection
+	 */
+	public void setChannelListener(TcpChannelListener channelListener) {
+		if (isRunning())
+			return;
+		this.channelListener = channelListener;
+	}
+
+	/**
+	 * @return the number of event loop threads used in non-blocking mode
+	 */
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	/**
+	 * Sets the number of event loop threads used in non-blocking mode. Will return without any changes when the server is currently running. The
+	 * default is the number of available processors.
+	 * 
+	 * @param eventLoopCount
+	 *            the number of event loops
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		if (isRunning())
+			return;
+		if (eventLoopCount < 1)
+			throw new IllegalArgumentException("eventLoopCount has to be > 0");
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	/**
+	 * Gets the event loops currently used in non-blocking mode, for example to share them with a
+	 * {@link net.sradonia.servers.udpserver.UdpServer}.
+	 * 
+	 * @return the running event loops, <code>null</code> if the server isn't running in non-blocking mode
+	 */
+	public SelectorLoop[] getEventLoops() {
+		SelectorLoop[] loops = eventLoops;
+		return (loops != null ? loops.clone() : null);
+	}
+
+	/**
+	 * Sets already running event loops to use in non-blocking mode instead of starting own ones, so several servers can share their threads. Shared
+	 * loops aren't stopped when the server stops; the server closes its connections instead. Will return without any changes when the server is
+	 * currently running.
+	 * 
+	 * @param loops
+	 *            the loops to distribute the connections over, <code>null</code> to start {@link #setEventLoopCount(int) own loops}
+	 */
+	public void setEventLoops(SelectorLoop[] loops) {
+		if (isRunning())
+			return;
+		if (loops != null && loops.length == 0)
+			throw new IllegalArgumentException("loops can't be empty");
+		this.sharedEventLoops = (loops != null ? loops.clone() : null);
+	}
+
+	/**
+	 * @return the number of connections closed right after accepting because the server was overloaded or the worker pool rejected them
+	 */
+	public long getRejectedConnectionCount() {
+		return rejectedConnections.get();
+	}
+
+	/**
+	 * @return the number of connections admitted since the server has been created
+	 */
+	public long getAcceptedConnectionCount() {
+		return acceptedConnections.get();
+	}
+
+	/**
+	 * @return the number of admitted connections which haven't been closed yet
+	 */
+	public int getActiveConnectionCount() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * @return the number of connections handed over to the worker pool whose handler hasn't been started yet
+	 */
+	public int getPendingHandoffCount() {
+		return pendingHandoffs.get();
+	}
+
+	/**
+	 * @return the number of connection handlers which have been handed over to the worker pool and haven't returned yet
+	 */
+	public int getActiveHandlerCount() {
+		return activeHandlers.get();
+	}
+
+	/**
+	 * @return the maximum number of concurrently open connections, <code>0</code> for no limit
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the maximum number of concurrently open connections. Once reached, the {@link #setOverloadPolicy(OverloadPolicy) overload policy}
+	 * applies to new connections.
+	 * 
+	 * @param maxConnections
+	 *            the maximum number of connections, <code>0</code> for no limit
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 0)
+			throw new IllegalArgumentException("maxConnections can't be negative");
+		this.maxConnections = maxConnections;
+		admissionChanged();
+	}
+
+	/**
+	 * @return the maximum number of connections waiting for a worker thread, <code>0</code> for no limit
+	 */
+	public int getMaxPendingHandoffs() {
+		return maxPendingHandoffs;
+	}
+
+	/**
+	 * Sets the maximum number of connections handed over to the worker pool but not yet picked up by a worker thread. Once reached, the
+	 * {@link #setOverloadPolicy(OverloadPolicy) overload policy} applies to new connections. Only used in blocking mode.
+	 * 
+	 * @param maxPendingHandoffs
+	 *            the maximum number of pending handoffs, <code>0</code> for no limit
+	 */
+	public void setMaxPendingHandoffs(int maxPendingHandoffs) {
+		if (maxPendingHandoffs < 0)
+			throw new IllegalArgumentException("maxPendingHandoffs can't be negative");
+		this.maxPendingHandoffs = maxPendingHandoffs;
+		admissionChanged();
+	}
+
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy;
+	}
+
+	/**
+	 * Sets how new connections are handled while the server is at one of its limits. The default is {@link OverloadPolicy#CLOSE}.
+	 * 
+	 * @param overloadPolicy
+	 *            the new overload policy
+	 */
+	public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+		if (overloadPolicy == null)
+			throw new IllegalArgumentException("overloadPolicy can't be null");
+		this.overloadPolicy = overloadPolicy;
+		admissionChanged();
+	}
+
+	/**
+	 * @return <code>true</code> if the server is at one of its limits
+	 */
+	public boolean isOverloaded() {
+		int maxConnections = this.maxConnections;
+		int maxPendingHandoffs = this.maxPendingHandoffs;
+		return (maxConnections > 0 && activeConnections.get() >= maxConnections)
+				|| (maxPendingHandoffs > 0 && pendingHandoffs.get() >= maxPendingHandoffs);
+	}
+
+	/**
+	 * Blocks the calling acceptor while the server is overloaded and the policy is {@link OverloadPolicy#STOP_ACCEPTING}.
+	 * 
+	 * @throws InterruptedException
+	 *             if the acceptor has been interrupted while waiting
+	 */
+	protected void awaitAdmission() throws InterruptedException {
+		if (overloadPolicy != OverloadPolicy.STOP_ACCEPTING || !isOverloaded())
+			return;
+		synchronized (admissionLock) {
+			admissionWaiters++;
+			try {
+				while (overloadPolicy == OverloadPolicy.STOP_ACCEPTING && isOverloaded())
+					admissionLock.wait();
+			} finally {
+				admissionWaiters--;
+			}
+		}
+	}
+
+	/**
+	 * Counts a newly accepted connection unless the server is overloaded.
+	 * 
+	 * @return <code>true</code> if the connection has been admitted, <code>false</code> if it should be closed
+	 */
+	protected boolean admitConnection() {
+		int maxPendingHandoffs = this.maxPendingHandoffs;
+		if (maxPendingHandoffs > 0 && pendingHandoffs.get() >= maxPendingHandoffs)
+			return false;
+		while (true) {
+			int active = activeConnections.get();
+			int maxConnections = this.maxConnections;
+			if (maxConnections > 0 && active >= maxConnections)
+				return false;
+			if (activeConnections.compareAndSet(active, active + 1)) {
+				acceptedConnections.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Called when an admitted connection has been closed.
+	 */
+	protected void connectionReleased() {
+		activeConnections.decrementAndGet();
+		admissionChanged();
+		notifyDrain();
+	}
+
+	/**
+	 * Wakes up acceptors waiting for admission, regardless of the current policy, as it may just have been changed.
+	 */
+	protected void admissionChanged() {
+		if (admissionWaiters > 0) {
+			synchronized (admissionLock) {
+				admissionLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the local address the server binds to, <code>null</code> for all addresses
+	 */
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	/**
+	 * Sets the local address the server binds to. Will return without any changes when the server is currently running.
+	 * 
+	 * @param bindAddress
+	 *            the local address, <code>null</code> to listen on all addresses
+	 */
+	public void setBindAddress(InetAddress bindAddress) {
+		if (!isRunning())
+			this.bindAddress = bindAddress;
+	}
+
+	/**
+	 * @return the maximum length of the queue of incoming connections not accepted yet
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Sets the maximum length of the queue of incoming connections not accepted yet. The operating system may limit this value. Will return without
+	 * any changes when the server is currently running. The default is 50.
+	 * 
+	 * @param backlog
+	 *            the backlog
+	 */
+	public void setBacklog(int backlog) {
+		if (isRunning())
+			return;
+		if (backlog < 1)
+			throw new IllegalArgumentException("backlog has to be > 0");
+		this.backlog = backlog;
+	}
+
+	/**
+	 * @return the number of threads accepting connections
+	 */
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+
+	/**
+	 * Sets the number of threads accepting connections. Without {@link #setReusePort(boolean) SO_REUSEPORT} they all accept on the same socket,
+	 * otherwise each of them binds its own socket to the port. Will return without any changes when the server is currently running. The default is
+	 * 1.
+	 * 
+	 * @param acceptorCount
+	 *            the number of acceptor threads
+	 */
+	public void setAcceptorCount(int acceptorCount) {
+		if (isRunning())
+			return;
+		if (acceptorCount < 1)
+			throw new IllegalArgumentException("acceptorCount has to be > 0");
+		this.acceptorCount = acceptorCount;
+	}
+
+	/**
+	 * @return whether every acceptor binds its own socket using <code>SO_REUSEPORT</code>
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	/**
+	 * Sets whether every acceptor thread binds its own socket to the port using <code>SO_REUSEPORT</code>, letting the operating system balance the
+	 * incoming connections. Only available on some platforms, see {@link ReusePort#isSupported()}. Will return without any changes when the server
+	 * is currently running.
+	 * 
+	 * @param reusePort
+	 *            true to use a socket per acceptor
+	 * @throws UnsupportedOperationException
+	 *             if <code>SO_REUSEPORT</code> isn't supported
+	 */
+	public void setReusePort(boolean reusePort) {
+		if (isRunning())
+			return;
+		if (reusePort && !ReusePort.isSupported())
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+		this.reusePort = reusePort;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Sets whether <code>TCP_NODELAY</code> should be enabled on accepted connections, disabling Nagle's algorithm.
+	 * 
+	 * @param tcpNoDelay
+	 *            true to send small segments immediately
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the receive buffer size of the listening and the accepted sockets. Changes apply to listening sockets on the next start.
+	 * 
+	 * @param receiveBufferSize
+	 *            the size in bytes, <code>0</code> for the system default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0)
+			throw new IllegalArgumentException("receiveBufferSize can't be negative");
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the send buffer size of accepted sockets.
+	 * 
+	 * @param sendBufferSize
+	 *            the size in bytes, <code>0</code> for the system default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0)
+			throw new IllegalArgumentException("sendBufferSize can't be negative");
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the time after which a connection nothing has been read from is closed, <code>0</code> if disabled
+	 */
+	public long getReadIdleTimeout(TimeUnit unit) {
+		return unit.convert(readIdleTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the time after which a connection nothing has been read from is closed. Applies to connections accepted afterwards.
+	 * 
+	 * <p>
+	 * Idle connections are closed via {@link TcpServerSocket#close()} or {@link TcpChannel#close()}, so the listener is notified as usual, after
+	 * being passed a {@link java.net.SocketTimeoutException} describing the reason. In blocking mode only reads through
+	 * {@link TcpServerSocket#getInputStream()} count as activity. The timeouts are checked by a timing wheel shared by all servers with a precision
+	 * of about 100 milliseconds.
+	 * </p>
+	 * 
+	 * @param timeout
+	 *            the timeout, <code>0</code> to disable
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setReadIdleTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout can't be negative");
+		this.readIdleTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the time after which a connection nothing has been written to is closed, <code>0</code> if disabled
+	 */
+	public long getWriteIdleTimeout(TimeUnit unit) {
+		return unit.convert(writeIdleTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the time after which a connection nothing has been written to is closed. Applies to connections accepted afterwards. See
+	 * {@link #setReadIdleTimeout(long, TimeUnit)} for details.
+	 * 
+	 * @param timeout
+	 *            the timeout, <code>0</code> to disable
+	 * @param unit
+	 *            the unit of the timeout
+	 */
+	public void setWriteIdleTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout can't be negative");
+		this.writeIdleTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the time after which every connection is closed, <code>0</code> if disabled
+	 */
+	public long getMaxConnectionLifetime(TimeUnit unit) {
+		return unit.convert(maxConnectionLifetime, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the time after which every connection is closed, regardless of its activity. Applies to connections accepted afterwards. See
+	 * {@link #setReadIdleTimeout(long, TimeUnit)} for details.
+	 * 
+	 * @param lifetime
+	 *            the maximum lifetime, <code>0</code> to disable
+	 * @param unit
+	 *            the unit of the lifetime
+	 */
+	public void setMaxConnectionLifetime(long lifetime, TimeUnit unit) {
+		if (lifetime < 0)
+			throw new IllegalArgumentException("lifetime can't be negative");
+		this.maxConnectionLifetime = unit.toNanos(lifetime);
+	}
+
+	/**
+	 * Starts tracking the activity of an accepted connection if any idle timeout or lifetime is configured.
+	 */
+	protected void trackActivity(final TcpServerSocket connection) {
+		long readIdle = readIdleTimeout, writeIdle = writeIdleTimeout, lifetime = maxConnectionLifetime;
+		if (readIdle == 0 && writeIdle == 0 && lifetime == 0)
+			return;
+		ConnectionActivity activity = new ConnectionActivity(ReaperHolder.wheel, readIdle, writeIdle, lifetime) {
+			@Override
+			void expire(SocketTimeoutException reason) {
+				callOnIOException(connection, reason, "Closing idle connection");
+				try {
+					connection.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		connection.activity = activity;
+		activity.start();
+	}
+
+	/**
+	 * Starts tracking the activity of an accepted channel if any idle timeout or lifetime is configured. Idle channels are closed by their event
+	 * loop.
+	 */
+	protected void trackActivity(final TcpChannel channel) {
+		long readIdle = readIdleTimeout, writeIdle = writeIdleTimeout, lifetime = maxConnectionLifetime;
+		if (readIdle == 0 && writeIdle == 0 && lifetime == 0)
+			return;
+		ConnectionActivity activity = new ConnectionActivity(ReaperHolder.wheel, readIdle, writeIdle, lifetime) {
+			@Override
+			void expire(final SocketTimeoutException reason) {
+				Runnable close = new Runnable() {
+					public void run() {
+						if (channel.isOpen()) {
+							callOnChannelIOException(channel, reason, "Closing idle connection");
+							channel.close();
+						}
+					}
+				};
+				try {
+					channel.getLoop().execute(close);
+				} catch (RejectedExecutionException e) {
+					close.run();
+				}
+			}
+		};
+		channel.activity = activity;
+		activity.start();
+	}
+
 	public void setKeepAlive(boolean keepAlive) {
 		this.keepAlive = keepAlive;
 	}
@@ -91,12 +668,8 @@ public class TcpServer extends Server<TcpServerListener> {
 	@Override
 	public void setRunning(boolean on) {
 		super.setRunning(on);
-		if (thread.isInterrupted() && socket != null) {
-			try {
-				socket.close();
-			} catch (IOException e) {
-			}
-		}
+		if (thread != null && thread.isInterrupted())
+			closeServerSockets();
 	}
 
 	protected class ConnectionHandler implements Runnable {
@@ -109,15 +682,24 @@ public class TcpServer extends Server<TcpServerListener> {
 		}
 
 		public void run() {
+			parent.pendingHandoffs.decrementAndGet();
+			parent.admissionChanged();
 			try {
-				parent.callOnConnect(connection);
-			} finally {
-				if (!parent.isKeepAlive()) {
-					try {
-						connection.close();
-					} catch (IOException e) {
+				if (parent.abortHandlers)
+					return; // already force-closed by shutdown()
+				try {
+					parent.callOnConnect(connection);
+				} finally {
+					if (!parent.isKeepAlive()) {
+						try {
+							connection.close();
+						} catch (IOException e) {
+						}
 					}
 				}
+			} finally {
+				parent.activeHandlers.decrementAndGet();
+				parent.notifyDrain();
 			}
 		}
 	}
@@ -131,6 +713,14 @@ public class TcpServer extends Server<TcpServerListener> {
 			this.parent = parent;
 		}
 
+		/**
+		 * Creates an unbound server socket, which can be configured before calling {@link #bind(java.net.SocketAddress, int)}.
+		 */
+		public TcpServerServerSocket(TcpServer parent) throws IOException {
+			super();
+			this.parent = parent;
+		}
+
 		@Override
 		public TcpServerSocket accept() throws IOException {
 			if (isClosed())
@@ -139,44 +729,316 @@ public class TcpServer extends Server<TcpServerListener> {
 				throw new SocketException("Socket is not bound yet");
 			TcpServerSocket s = new TcpServerSocket(parent);
 			implAccept(s);
+			try {
+				parent.configureSocket(s);
+			} catch (SocketException e) {
+				s.close();
+				throw e;
+			}
 			return s;
 		}
 	}
 
+	/**
+	 * Waits until all connection handlers queued in or running on the worker pool have returned, then closes all connections which are still
+	 * open. Connections kept open by {@link #setKeepAlive(boolean) keep-alive} without a running handler, as well as all connections of the
+	 * non-blocking mode, are idle and count as drained. Handlers still running at the deadline are aborted: closing their sockets notifies
+	 * {@link TcpServerListener#onDisconnect(TcpServer, TcpServerSocket)} and makes blocked handlers fail with an {@link IOException}, handlers which
+	 * haven't been started yet are discarded.
+	 */
+	@Override
+	protected ShutdownResult drain(long deadline) {
+		int open = activeConnections.get();
+		int remaining = awaitDrained(activeHandlers, deadline);
+		for (TcpServerSocket connection : connections) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+		for (TcpChannel channel : channels)
+			channel.close();
+		return new ShutdownResult(Math.max(0, open - remaining), remaining);
+	}
+
 	@Override
 	protected void runServer() {
+		if (channelListener != null)
+			runEventLoops();
+		else
+			runBlocking();
+	}
+
+	/**
+	 * Creates and binds a server socket using the configured bind address, backlog, receive buffer size and <code>SO_REUSEPORT</code> setting.
+	 */
+	protected TcpServerServerSocket openServerSocket(int port) throws IOException {
+		TcpServerServerSocket socket = new TcpServerServerSocket(this);
+		try {
+			if (receiveBufferSize > 0)
+				socket.setReceiveBufferSize(receiveBufferSize); // has to be set before binding to apply to accepted sockets
+			if (reusePort)
+				ReusePort.enable(socket);
+			socket.bind(new InetSocketAddress(bindAddress, port), backlog);
+			socket.setSoTimeout(0); // wait forever
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		serverSockets.add(socket);
+		return socket;
+	}
+
+	/**
+	 * Creates and binds a server socket channel using the configured bind address, backlog, receive buffer size and <code>SO_REUSEPORT</code>
+	 * setting.
+	 */
+	protected ServerSocketChannel openServerChannel(int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			if (receiveBufferSize > 0)
+				channel.socket().setReceiveBufferSize(receiveBufferSize);
+			if (reusePort)
+				ReusePort.enable(channel);
+			channel.socket().bind(new InetSocketAddress(bindAddress, port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		serverChannels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Applies the configured socket options to an accepted socket.
+	 */
+	protected void configureSocket(Socket socket) throws SocketException {
+		if (tcpNoDelay)
+			socket.setTcpNoDelay(true);
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	/**
+	 * Starts the additional acceptor threads. The server thread itself is the first acceptor.
+	 * 
+	 * @param acceptors
+	 *            the accept loops to run, one per additional thread
+	 * @return the started threads
+	 */
+	protected Thread[] startAcceptors(Runnable[] acceptors) {
+		ThreadFactory factory = new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread().getName() + "-Acceptor-"), daemon);
+		Thread[] threads = new Thread[acceptors.length];
+		for (int i = 0; i < acceptors.length; i++) {
+			threads[i] = factory.newThread(acceptors[i]);
+			threads[i].start();
+		}
+		return threads;
+	}
+
+	protected void stopAcceptors(Thread[] threads) {
+		if (threads == null)
+			return;
+		closeServerSockets();
+		for (Thread t : threads) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Closes all listening sockets and channels, which terminates all accept loops.
+	 */
+	protected void closeServerSockets() {
+		for (ServerSocket s : serverSockets) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+		for (ServerSocketChannel c : serverChannels) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	protected void runBlocking() {
 		ExecutorService threadPool = null;
+		Thread[] acceptors = null;
 		try {
-			socket = new TcpServerServerSocket(this, port);
+			socket = openServerSocket(port);
 			port = socket.getLocalPort();
-			socket.setSoTimeout(0); // wait forever
+
+			// with SO_REUSEPORT every acceptor gets its own socket, otherwise they share one
+			TcpServerServerSocket[] sockets = new TcpServerServerSocket[acceptorCount - 1];
+			for (int i = 0; i < sockets.length; i++)
+				sockets[i] = (reusePort ? openServerSocket(port) : socket);
 
 			callOnServerStarted();
 
-			ThreadFactory factory = new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread().getName() + "-HandlerThread-"), daemon);
-			threadPool = Executors.newCachedThreadPool(factory);
-			while (!Thread.currentThread().isInterrupted()) {
+			final ExecutorService pool = threadPool = createWorkerPool();
+			Runnable[] loops = new Runnable[sockets.length];
+			for (int i = 0; i < sockets.length; i++) {
+				final TcpServerServerSocket s = sockets[i];
+				loops[i] = new Runnable() {
+					public void run() {
+						acceptBlocking(s, pool);
+					}
+				};
+			}
+			acceptors = startAcceptors(loops);
+			acceptBlocking(socket, pool);
+		} catch (BindException e) {
+			thread = null;
+			callOnIOException(null, e, "Can't bind port");
+		} catch (IOException e) {
+			thread = null;
+			callOnIOException(null, e, "Couldn't open ServerSocket on port " + port + "!");
+		} finally {
+			closeServerSockets();
+			stopAcceptors(acceptors);
+			serverSockets.clear();
+			drainOnShutdown();
+			releaseWorkerPool(threadPool);
+
+			callOnServerStopped();
+		}
+	}
+
+	protected void acceptBlocking(TcpServerServerSocket socket, ExecutorService threadPool) {
+		while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+			try {
+				awaitAdmission();
+				TcpServerSocket connection = socket.accept();
+				if (!admitConnection()) {
+					rejectedConnections.incrementAndGet();
+					connection.close();
+					continue;
+				}
+				connection.admitted = true;
+				connections.add(connection);
+				trackActivity(connection);
+				pendingHandoffs.incrementAndGet();
+				activeHandlers.incrementAndGet();
 				try {
-					threadPool.execute(new ConnectionHandler(this, socket.accept()));
-				} catch (IOException e) {
-					if (!Thread.currentThread().isInterrupted())
-						callOnIOException(null, e, "Error while receiving");
+					threadPool.execute(new ConnectionHandler(this, connection));
+				} catch (RejectedExecutionException e) {
+					pendingHandoffs.decrementAndGet();
+					activeHandlers.decrementAndGet();
+					rejectedConnections.incrementAndGet();
+					connection.close();
 				}
+			} catch (InterruptedException e) {
+				break; // interrupted by setRunning(false) while waiting for admission
+			} catch (IOException e) {
+				if (!Thread.currentThread().isInterrupted() && !socket.isClosed())
+					callOnIOException(null, e, "Error while receiving");
 			}
+		}
+	}
+
+	protected void runEventLoops() {
+		SelectorLoop[] shared = sharedEventLoops;
+		SelectorLoop[] loops = (shared != null ? shared : new SelectorLoop[eventLoopCount]);
+		Thread[] acceptors = null;
+		try {
+			serverChannel = openServerChannel(port);
+			port = serverChannel.socket().getLocalPort();
+
+			ServerSocketChannel[] channels = new ServerSocketChannel[acceptorCount - 1];
+			for (int i = 0; i < channels.length; i++)
+				channels[i] = (reusePort ? openServerChannel(port) : serverChannel);
+
+			if (shared == null) {
+				ThreadFactory factory = new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread().getName() + "-EventLoop-"), daemon);
+				for (int i = 0; i < loops.length; i++) {
+					loops[i] = new SelectorLoop(factory);
+					loops[i].start();
+				}
+			}
+			eventLoops = loops;
+
+			callOnServerStarted();
+
+			final SelectorLoop[] targets = loops;
+			Runnable[] acceptLoops = new Runnable[channels.length];
+			for (int i = 0; i < channels.length; i++) {
+				final ServerSocketChannel c = channels[i];
+				acceptLoops[i] = new Runnable() {
+					public void run() {
+						acceptNonBlocking(c, targets);
+					}
+				};
+			}
+			acceptors = startAcceptors(acceptLoops);
+			acceptNonBlocking(serverChannel, loops);
 		} catch (BindException e) {
 			thread = null;
 			callOnIOException(null, e, "Can't bind port");
 		} catch (IOException e) {
 			thread = null;
-			callOnIOException(null, e, "Couldn't open ServerSocket on port " + port + "!");
+			callOnIOException(null, e, "Couldn't open ServerSocketChannel on port " + port + "!");
 		} finally {
-			if (threadPool != null)
-				threadPool.shutdown();
+			closeServerSockets();
+			stopAcceptors(acceptors);
+			serverChannels.clear();
+			drainOnShutdown();
+			if (shared == null) {
+				for (SelectorLoop loop : loops) {
+					if (loop != null)
+						loop.stop(true);
+				}
+			} else {
+				for (TcpChannel channel : channels)
+					channel.close();
+			}
+			eventLoops = null;
 
 			callOnServerStopped();
 		}
 	}
 
+	protected void acceptNonBlocking(ServerSocketChannel serverChannel, SelectorLoop[] loops) {
+		while (!Thread.currentThread().isInterrupted() && serverChannel.isOpen()) {
+			try {
+				awaitAdmission();
+				SocketChannel channel = serverChannel.accept();
+				if (!admitConnection()) {
+					rejectedConnections.incrementAndGet();
+					channel.close();
+					continue;
+				}
+				try {
+					channel.configureBlocking(false);
+					configureSocket(channel.socket());
+				} catch (IOException e) {
+					channel.close();
+					connectionReleased();
+					throw e;
+				}
+				int next = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+				TcpChannel tcpChannel = new TcpChannel(this, channel, loops[next]);
+				channels.add(tcpChannel);
+				tcpChannel.register();
+			} catch (InterruptedException e) {
+				break; // interrupted by setRunning(false) while waiting for admission
+			} catch (AsynchronousCloseException e) {
+				break; // closed by setRunning(false)
+			} catch (IOException e) {
+				if (!Thread.currentThread().isInterrupted() && serverChannel.isOpen())
+					callOnIOException(null, e, "Error while accepting");
+			}
+		}
+	}
+
 	/* Listener callers */
 	protected void callOnServerStarted() {
 		try {
@@ -218,6 +1080,55 @@ public class TcpServer extends Server<TcpServerListener> {
 		}
 	}
 
+	protected void callOnAccept(TcpChannel channel) {
+		try {
+			channelListener.onAccept(this, channel);
+		} catch (IOException e) {
+			callOnChannelIOException(channel, e, "Error while accepting");
+			channel.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void callOnReadable(TcpChannel channel) {
+		try {
+			channelListener.onReadable(this, channel);
+		} catch (IOException e) {
+			callOnChannelIOException(channel, e, "Error while reading");
+			channel.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void callOnWritable(TcpChannel channel) {
+		try {
+			channelListener.onWritable(this, channel);
+		} catch (IOException e) {
+			callOnChannelIOException(channel, e, "Error while writing");
+			channel.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void callOnClose(TcpChannel channel) {
+		try {
+			channelListener.onClose(this, channel);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void callOnChannelIOException(TcpChannel channel, IOException e, String msg) {
+		try {
+			channelListener.onIOException(this, channel, e, msg);
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		}
+	}
+
 	/**
 	 * Opens a new socket, connects it to the given address and port and returns the new {@link TcpServerServerSocket} associated with this server
 	 * instance.
@@ -17,7 +17,11 @@
  *****************************************************************************/
 package net.sradonia.servers.tcpserver;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -32,6 +36,9 @@ public class TcpServerSocket extends Socket {
 	private TcpServer parent;
 	private boolean calledOnDisconnect;
 
+	volatile ConnectionActivity activity;
+	volatile boolean admitted;
+
 	public TcpServerSocket(TcpServer parent) {
 		this.parent = parent;
 	}
@@ -63,13 +70,73 @@ public class TcpServerSocket extends Socket {
 		close();
 	}
 
+	/**
+	 * Returns the input stream of the socket. If the server tracks idle connections, reading from the stream counts as activity.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		final ConnectionActivity activity = this.activity;
+		if (activity == null)
+			return super.getInputStream();
+		return new FilterInputStream(super.getInputStream()) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					activity.read();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					activity.read();
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Returns the output stream of the socket. If the server tracks idle connections, writing to the stream counts as activity.
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		final ConnectionActivity activity = this.activity;
+		if (activity == null)
+			return super.getOutputStream();
+		return new FilterOutputStream(super.getOutputStream()) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				activity.wrote();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				activity.wrote();
+			}
+		};
+	}
+
 	@Override
 	public void close() throws IOException {
+		ConnectionActivity activity = this.activity;
+		if (activity != null)
+			activity.stop();
 		super.close();
-		if (!calledOnDisconnect) {
-			parent.callOnDisconnect(this);
+		synchronized (this) {
+			// may be closed concurrently by the handler and the idle reaper
+			if (calledOnDisconnect)
+				return;
 			calledOnDisconnect = true;
 		}
+		if (admitted) {
+			parent.connections.remove(this);
+			parent.connectionReleased();
+		}
+		parent.callOnDisconnect(this);
 	}
 
 	public TcpServer getTcpServer() {
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import net.sradonia.io.BufferPool;
+import net.sradonia.servers.tcpserver.TcpServerSocket;
+
+/**
+ * A connection of a {@link CodecPipeline}. Outbound messages are encoded into a pooled buffer and sent with a single write on {@link #flush()}.
+ * Writing and flushing is thread-safe, so replies may be sent from other threads as well.
+ * 
+ * @author Stefan Rado
+ * @param <I>
+ *            the type of the inbound messages
+ * @param <O>
+ *            the type of the outbound messages
+ */
+public class CodecConnection<I, O> {
+
+	private final CodecPipeline<I, O> pipeline;
+	private final TcpServerSocket socket;
+	private final OutputStream out;
+
+	private ByteBuffer buffer;
+	private boolean terminated; // guarded by this
+	private final OutputStream bufferStream = new OutputStream() {
+		@Override
+		public void write(int b) {
+			ensureCapacity(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(len);
+			buffer.put(b, off, len);
+		}
+	};
+
+	private volatile Object attachment;
+
+	CodecConnection(CodecPipeline<I, O> pipeline, TcpServerSocket socket) throws IOException {
+		this.pipeline = pipeline;
+		this.socket = socket;
+		this.out = socket.getOutputStream();
+	}
+
+	/**
+	 * Encodes the message into the output buffer. The buffer is flushed automatically when it exceeds the
+	 * {@link CodecPipeline#setFlushThreshold(int) flush threshold}.
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @throws IOException
+	 *             if the message can't be encoded, the buffer can't be flushed or the connection has been closed or terminated
+	 */
+	public synchronized void write(O message) throws IOException {
+		if (terminated)
+			throw new IOException("Connection has been closed");
+		if (buffer == null) {
+			buffer = pipeline.getBufferPool().acquire(pipeline.getOutputBufferSize());
+			buffer.limit(buffer.capacity());
+		}
+		pipeline.getEncoder().encode(message, bufferStream);
+		if (buffer.position() >= pipeline.getFlushThreshold())
+			flush();
+	}
+
+	/**
+	 * Replaces the buffer by a larger one from the pool if the given number of bytes doesn't fit anymore.
+	 */
+	private void ensureCapacity(int length) {
+		if (buffer.remaining() >= length)
+			return;
+		BufferPool pool = pipeline.getBufferPool();
+		ByteBuffer grown = pool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		grown.limit(grown.capacity());
+		buffer.flip();
+		grown.put(buffer);
+		pool.release(buffer);
+		buffer = grown;
+	}
+
+	/**
+	 * Encodes the message and flushes the output buffer.
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @throws IOException
+	 *             if the message can't be encoded or sent
+	 */
+	public synchronized void writeAndFlush(O message) throws IOException {
+		write(message);
+		flush();
+	}
+
+	/**
+	 * Sends all buffered messages with a single write and returns the buffer to the pool.
+	 * 
+	 * @throws IOException
+	 *             if the messages can't be sent
+	 */
+	public synchronized void flush() throws IOException {
+		ByteBuffer buffer = this.buffer;
+		if (buffer == null)
+			return;
+		this.buffer = null;
+		try {
+			if (buffer.position() > 0) {
+				out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+				out.flush();
+			}
+		} finally {
+			pipeline.getBufferPool().release(buffer);
+		}
+	}
+
+	/**
+	 * Flushes the buffered messages and closes the connection.
+	 * 
+	 * @throws IOException
+	 *             if the connection can't be closed
+	 */
+	public void close() throws IOException {
+		try {
+			synchronized (this) {
+				terminated = true;
+				flush();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Returns the buffer without sending it. Called when the connection is terminated; further writes are rejected, as their buffer would never be
+	 * returned.
+	 */
+	synchronized void discard() {
+		terminated = true;
+		if (buffer != null) {
+			pipeline.getBufferPool().release(buffer);
+			buffer = null;
+		}
+	}
+
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	public TcpServerSocket getSocket() {
+		return socket;
+	}
+
+	public CodecPipeline<I, O> getPipeline() {
+		return pipeline;
+	}
+
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	@Override
+	public String toString() {
+		return "CodecConnection[" + socket + "]";
+	}
+}
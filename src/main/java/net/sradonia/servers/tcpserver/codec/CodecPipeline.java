@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+
+import net.sradonia.io.BufferPool;
+import net.sradonia.io.LineInput;
+import net.sradonia.servers.tcpserver.TcpServer;
+import net.sradonia.servers.tcpserver.TcpServerAdapter;
+import net.sradonia.servers.tcpserver.TcpServerSocket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A {@link net.sradonia.servers.tcpserver.TcpServerListener} running the framing loop of a connection: the inbound byte stream is split into
+ * messages by a {@link FrameDecoder}, every message is passed to a {@link MessageHandler} and the replies are turned into frames by a
+ * {@link FrameEncoder}. The connection is closed when the client closes its end of the stream or the handler throws an {@link IOException}.
+ * Errors reading, decoding or handling messages are passed to {@link #onIOException(TcpServer, TcpServerSocket, IOException, String)}, which logs
+ * them.
+ * </p>
+ * 
+ * <p>
+ * Requests pipelined by the client are decoded one after the other, while the replies are collected in a pooled buffer and sent with a single write
+ * once no further request is buffered.
+ * </p>
+ * 
+ * <p>
+ * Example:
+ * 
+ * <pre>
+ * LineCodec codec = new LineCodec();
+ * TcpServer server = new TcpServer(7, new CodecPipeline&lt;String, String&gt;(codec, codec, new MessageHandler&lt;String, String&gt;() {
+ * 	public void onMessage(CodecConnection&lt;String, String&gt; connection, String line) throws IOException {
+ * 		connection.write(line);
+ * 	}
+ * }));
+ * </pre>
+ * 
+ * </p>
+ * 
+ * @author Stefan Rado
+ * @param <I>
+ *            the type of the inbound messages
+ * @param <O>
+ *            the type of the outbound messages
+ */
+public class CodecPipeline<I, O> extends TcpServerAdapter {
+
+	private static final Log log = LogFactory.getLog(CodecPipeline.class);
+
+	private final FrameDecoder<I> decoder;
+	private final FrameEncoder<O> encoder;
+	private final MessageHandler<I, O> handler;
+
+	private int inputBufferSize = 8192;
+	private int outputBufferSize = 4096;
+	private int flushThreshold = 64 * 1024;
+	private BufferPool bufferPool = BufferPool.getHeapPool();
+
+	/**
+	 * Creates a new pipeline.
+	 * 
+	 * @param decoder
+	 *            the decoder splitting the inbound stream into messages
+	 * @param encoder
+	 *            the encoder writing the outbound messages
+	 * @param handler
+	 *            the handler called for every inbound message
+	 */
+	public CodecPipeline(FrameDecoder<I> decoder, FrameEncoder<O> encoder, MessageHandler<I, O> handler) {
+		if (decoder == null)
+			throw new IllegalArgumentException("decoder can't be null");
+		if (encoder == null)
+			throw new IllegalArgumentException("encoder can't be null");
+		if (handler == null)
+			throw new IllegalArgumentException("handler can't be null");
+		this.decoder = decoder;
+		this.encoder = encoder;
+		this.handler = handler;
+	}
+
+	public FrameDecoder<I> getDecoder() {
+		return decoder;
+	}
+
+	public FrameEncoder<O> getEncoder() {
+		return encoder;
+	}
+
+	public MessageHandler<I, O> getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return the size of the input buffer of each connection in bytes
+	 */
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+
+	/**
+	 * Sets the size of the input buffer of each connection, which is also the maximum line length of delimiter-based decoders. Default is 8192
+	 * bytes. Applies to connections established afterwards.
+	 * 
+	 * @param inputBufferSize
+	 *            the buffer size in bytes
+	 */
+	public void setInputBufferSize(int inputBufferSize) {
+		if (inputBufferSize < 1)
+			throw new IllegalArgumentException("inputBufferSize has to be > 0");
+		this.inputBufferSize = inputBufferSize;
+	}
+
+	/**
+	 * @return the initial capacity of the output buffers in bytes
+	 */
+	public int getOutputBufferSize() {
+		return outputBufferSize;
+	}
+
+	/**
+	 * Sets the initial capacity of the output buffers. Buffers are replaced by larger ones from the pool as needed. Default is 4096 bytes.
+	 * 
+	 * @param outputBufferSize
+	 *            the capacity in bytes
+	 */
+	public void setOutputBufferSize(int outputBufferSize) {
+		if (outputBufferSize < 1)
+			throw new IllegalArgumentException("outputBufferSize has to be > 0");
+		this.outputBufferSize = outputBufferSize;
+	}
+
+	/**
+	 * @return the number of buffered bytes at which a connection flushes automatically
+	 */
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * Sets the number of buffered bytes at which a connection flushes automatically, which limits the size of a write batch. Default is 64 KiB.
+	 * 
+	 * @param flushThreshold
+	 *            the threshold in bytes
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		if (flushThreshold < 1)
+			throw new IllegalArgumentException("flushThreshold has to be > 0");
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * @return the pool the output buffers are taken from
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the pool the output buffers are taken from. Default is the shared {@link BufferPool#getHeapPool() heap buffer pool}.
+	 * 
+	 * @param bufferPool
+	 *            the buffer pool, has to provide heap buffers as their arrays are written to the socket
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if (bufferPool == null)
+			throw new IllegalArgumentException("bufferPool can't be null");
+		if (bufferPool.isDirect())
+			throw new IllegalArgumentException("bufferPool has to provide heap buffers");
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Runs the framing loop of the connection until the stream ends.
+	 */
+	@Override
+	public void onConnect(TcpServer src, TcpServerSocket socket) {
+		CodecConnection<I, O> connection = null;
+		try {
+			LineInput in = new LineInput(socket.getInputStream(), inputBufferSize);
+			connection = new CodecConnection<I, O>(this, socket);
+			I message;
+			while ((message = decoder.decode(in)) != null) {
+				handler.onMessage(connection, message);
+				if (in.available() == 0)
+					connection.flush();
+			}
+		} catch (IOException e) {
+			if (!socket.isClosed())
+				onIOException(src, socket, e, "Error in codec pipeline");
+		} finally {
+			if (connection != null) {
+				// send the replies to the messages decoded so far
+				try {
+					if (!socket.isClosed())
+						connection.flush();
+				} catch (IOException e) {
+				}
+				connection.discard();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Logs the error as a warning. Override to handle the errors of the pipeline and the server differently.
+	 */
+	@Override
+	public void onIOException(TcpServer src, TcpServerSocket connection, IOException e, String info) {
+		if (log.isWarnEnabled()) {
+			if (connection != null)
+				log.warn(info + " (" + connection.getRemoteSocketAddress() + ")", e);
+			else
+				log.warn(info, e);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+
+import net.sradonia.io.LineInput;
+
+/**
+ * Splits the byte stream of a connection into messages. A decoder is shared by all connections of a {@link CodecPipeline} and therefore has to be
+ * stateless or thread-safe.
+ * 
+ * @author Stefan Rado
+ * @param <T>
+ *            the type of the decoded messages
+ */
+public interface FrameDecoder<T> {
+
+	/**
+	 * Reads the next message from the connection, blocking until it is complete.
+	 * 
+	 * @param in
+	 *            the buffered input of the connection
+	 * @return the decoded message, <code>null</code> if the stream ended between two messages
+	 * @throws IOException
+	 *             if the stream can't be read, ends within a message or contains an invalid frame
+	 */
+	public T decode(LineInput in) throws IOException;
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns outbound messages into frames. An encoder is shared by all connections of a {@link CodecPipeline} and therefore has to be stateless or
+ * thread-safe.
+ * 
+ * @author Stefan Rado
+ * @param <T>
+ *            the type of the encoded messages
+ */
+public interface FrameEncoder<T> {
+
+	/**
+	 * Writes the frame of the given message.
+	 * 
+	 * @param message
+	 *            the message to encode
+	 * @param out
+	 *            the output buffer of the connection, which is sent on the next flush
+	 * @throws IOException
+	 *             if the message can't be encoded
+	 */
+	public void encode(T message, OutputStream out) throws IOException;
+}
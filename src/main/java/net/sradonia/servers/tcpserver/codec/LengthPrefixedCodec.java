@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.sradonia.io.LineInput;
+
+/**
+ * Frames messages with a 4 byte big-endian length prefix followed by the payload.
+ * 
+ * @author Stefan Rado
+ */
+public class LengthPrefixedCodec implements FrameDecoder<byte[]>, FrameEncoder<byte[]> {
+
+	private final int maxFrameLength;
+
+	/**
+	 * Creates a codec accepting frames of up to 1 MiB.
+	 */
+	public LengthPrefixedCodec() {
+		this(1024 * 1024);
+	}
+
+	/**
+	 * Creates a codec accepting frames of up to the given length.
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum payload length in bytes, longer frames are rejected with an {@link IOException}
+	 */
+	public LengthPrefixedCodec(int maxFrameLength) {
+		if (maxFrameLength < 0)
+			throw new IllegalArgumentException("maxFrameLength can't be negative");
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public byte[] decode(LineInput in) throws IOException {
+		int b0 = in.read();
+		if (b0 < 0)
+			return null;
+		int b1 = in.read();
+		int b2 = in.read();
+		int b3 = in.read();
+		if ((b1 | b2 | b3) < 0)
+			throw new EOFException("Stream ended within a frame header");
+		int length = (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+		if (length < 0 || length > maxFrameLength)
+			throw new IOException("Illegal frame length " + length + ", maximum is " + maxFrameLength);
+
+		byte[] frame = new byte[length];
+		int off = 0;
+		while (off < length) {
+			int n = in.read(frame, off, length - off);
+			if (n < 0)
+				throw new EOFException("Stream ended within a frame");
+			off += n;
+		}
+		return frame;
+	}
+
+	public void encode(byte[] message, OutputStream out) throws IOException {
+		int length = message.length;
+		if (length > maxFrameLength)
+			throw new IOException("Frame length " + length + " exceeds maximum of " + maxFrameLength);
+		out.write((length >>> 24) & 0xff);
+		out.write((length >>> 16) & 0xff);
+		out.write((length >>> 8) & 0xff);
+		out.write(length & 0xff);
+		out.write(message, 0, length);
+	}
+}
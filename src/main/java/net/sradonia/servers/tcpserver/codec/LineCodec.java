@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import net.sradonia.io.LineInput;
+
+/**
+ * Frames text messages as lines. Inbound lines may be terminated by CR, LF or CRLF as accepted by {@link LineInput}, outbound lines are terminated
+ * by the configured delimiter. Lines longer than the maximum line length or the {@link CodecPipeline#setInputBufferSize(int) input buffer} are
+ * split.
+ * 
+ * @author Stefan Rado
+ */
+public class LineCodec implements FrameDecoder<String>, FrameEncoder<String> {
+
+	private final String encoding;
+	private final byte[] delimiter;
+	private final int maxLineLength;
+
+	private final ThreadLocal<byte[]> lineBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[maxLineLength];
+		}
+	};
+
+	/**
+	 * Creates a UTF-8 codec terminating lines with CRLF.
+	 */
+	public LineCodec() {
+		this("UTF-8", "\r\n", 8192);
+	}
+
+	/**
+	 * Creates a codec with the given encoding and delimiter.
+	 * 
+	 * @param encoding
+	 *            the character encoding of the lines
+	 * @param delimiter
+	 *            the delimiter appended to outbound lines
+	 * @param maxLineLength
+	 *            the maximum length of inbound lines in bytes
+	 * @throws IllegalArgumentException
+	 *             if the encoding isn't supported
+	 */
+	public LineCodec(String encoding, String delimiter, int maxLineLength) {
+		if (encoding == null)
+			throw new IllegalArgumentException("encoding can't be null");
+		if (delimiter == null || delimiter.length() == 0)
+			throw new IllegalArgumentException("delimiter can't be empty");
+		if (maxLineLength < 1)
+			throw new IllegalArgumentException("maxLineLength has to be > 0");
+		try {
+			this.delimiter = delimiter.getBytes(encoding);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalArgumentException("unsupported encoding " + encoding, e);
+		}
+		this.encoding = encoding;
+		this.maxLineLength = maxLineLength;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	public String decode(LineInput in) throws IOException {
+		byte[] line = lineBuffer.get();
+		int length = in.readLine(line, 0, line.length);
+		if (length < 0)
+			return null;
+		return new String(line, 0, length, encoding);
+	}
+
+	public void encode(String message, OutputStream out) throws IOException {
+		out.write(message.getBytes(encoding));
+		out.write(delimiter);
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.IOException;
+
+/**
+ * Handles the messages decoded by a {@link CodecPipeline}. It is called by the handler thread of the connection, one message after the other.
+ * 
+ * @author Stefan Rado
+ * @param <I>
+ *            the type of the inbound messages
+ * @param <O>
+ *            the type of the outbound messages
+ */
+public interface MessageHandler<I, O> {
+
+	/**
+	 * Is called for every decoded message. Replies written to the connection are sent in one batch as soon as no further request is buffered.
+	 * 
+	 * @param connection
+	 *            the connection the message has been received on
+	 * @param message
+	 *            the decoded message
+	 * @throws IOException
+	 *             to close the connection
+	 */
+	public void onMessage(CodecConnection<I, O> connection, I message) throws IOException;
+}
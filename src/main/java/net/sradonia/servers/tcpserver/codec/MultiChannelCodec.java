@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.sradonia.io.LineInput;
+import net.sradonia.io.MultiChannelInputStream.Packet;
+import net.sradonia.io.MultiChannelOutputStream;
+
+/**
+ * Frames messages in the packet format of {@link MultiChannelOutputStream}, tagging every payload with a channel number.
+ * 
+ * @author Stefan Rado
+ */
+public class MultiChannelCodec implements FrameDecoder<Packet>, FrameEncoder<Packet> {
+
+	private static final int HEADER_LENGTH = 10;
+
+	private final int maxFrameLength;
+
+	/**
+	 * Creates a codec accepting packets of up to 1 MiB.
+	 */
+	public MultiChannelCodec() {
+		this(1024 * 1024);
+	}
+
+	/**
+	 * Creates a codec accepting packets of up to the given length.
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum payload length in bytes, longer packets are rejected with an {@link IOException}
+	 */
+	public MultiChannelCodec(int maxFrameLength) {
+		if (maxFrameLength < 0)
+			throw new IllegalArgumentException("maxFrameLength can't be negative");
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public Packet decode(LineInput in) throws IOException {
+		int first = in.read();
+		if (first < 0)
+			return null;
+		byte[] header = new byte[HEADER_LENGTH];
+		header[0] = (byte) first;
+		readFully(in, header, 1, HEADER_LENGTH - 1);
+
+		if (header[0] != 0x01) // SOH (Start of Heading)
+			throw new IOException("Packet header didn't start with SOH (0x01)");
+		if (header[9] != 0x02) // STX (Start of Text)
+			throw new IOException("Packet header didn't end with STX (0x02)");
+		int channel = readInt(header, 1);
+		int length = readInt(header, 5);
+		if (length < 0 || length > maxFrameLength)
+			throw new IOException("Illegal packet length " + length + ", maximum is " + maxFrameLength);
+
+		byte[] data = new byte[length];
+		readFully(in, data, 0, length);
+		return new Packet(channel, data);
+	}
+
+	public void encode(Packet message, OutputStream out) throws IOException {
+		byte[] data = message.getData();
+		if (data.length > maxFrameLength)
+			throw new IOException("Packet length " + data.length + " exceeds maximum of " + maxFrameLength);
+		byte[] header = new byte[HEADER_LENGTH];
+		header[0] = 0x01; // SOH (Start of Heading)
+		writeInt(header, 1, message.getType());
+		writeInt(header, 5, data.length);
+		header[9] = 0x02; // STX (Start of Text)
+		out.write(header, 0, HEADER_LENGTH);
+		out.write(data, 0, data.length);
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int off, int i) {
+		b[off] = (byte) (i >>> 24);
+		b[off + 1] = (byte) (i >>> 16);
+		b[off + 2] = (byte) (i >>> 8);
+		b[off + 3] = (byte) i;
+	}
+
+	private static void readFully(LineInput in, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0)
+				throw new EOFException("Stream ended within a packet");
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.udpserver;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.Enumeration;
+
+/**
+ * <p>
+ * Multicast operations on {@link DatagramChannel}s, used by the channel engine of {@link UdpServer}.
+ * </p>
+ * 
+ * <p>
+ * The methods are accessed by reflection as channels only support multicast since Java 7. The loopback mode of sockets is set the same way, to
+ * avoid the deprecated setter where the socket option is available.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+final class MulticastChannels {
+
+	static final String IP_MULTICAST_IF = "IP_MULTICAST_IF";
+	static final String IP_MULTICAST_TTL = "IP_MULTICAST_TTL";
+	static final String IP_MULTICAST_LOOP = "IP_MULTICAST_LOOP";
+
+	private static final Method JOIN;
+	private static final Method DROP;
+	private static final Method SET_OPTION;
+	private static final Method SOCKET_SET_OPTION;
+
+	static {
+		Method join = null;
+		Method drop = null;
+		Method setOption = null;
+		try {
+			join = DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+			drop = Class.forName("java.nio.channels.MembershipKey").getMethod("drop");
+			setOption = DatagramChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		} catch (Exception e) {
+			join = null;
+		}
+		JOIN = join;
+		DROP = drop;
+		SET_OPTION = setOption;
+
+		Method socketSetOption = null;
+		try {
+			socketSetOption = DatagramSocket.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		} catch (Exception e) {
+			// sockets support options only since Java 9
+		}
+		SOCKET_SET_OPTION = socketSetOption;
+	}
+
+	private MulticastChannels() {
+	}
+
+	/**
+	 * @return <code>true</code> if channels support multicast in this JVM
+	 */
+	static boolean isSupported() {
+		return JOIN != null;
+	}
+
+	/**
+	 * Joins a group on the channel.
+	 * 
+	 * @param ni
+	 *            the interface to join on, <code>null</code> for the {@link #defaultInterface(InetAddress) default interface}
+	 * @return the membership key, to be passed to {@link #drop(Object)}
+	 */
+	static Object join(DatagramChannel channel, InetAddress group, NetworkInterface ni) throws IOException {
+		if (ni == null)
+			ni = defaultInterface(group);
+		return invoke(JOIN, channel, "couldn't join group " + group.getHostAddress(), group, ni);
+	}
+
+	/**
+	 * Drops a membership returned by {@link #join(DatagramChannel, InetAddress, NetworkInterface)}.
+	 */
+	static void drop(Object key) throws IOException {
+		invoke(DROP, key, "couldn't leave group");
+	}
+
+	/**
+	 * Sets one of the multicast options of {@link java.net.StandardSocketOptions}.
+	 */
+	static void setOption(DatagramChannel channel, String name, Object value) throws IOException {
+		invoke(SET_OPTION, channel, "couldn't set " + name, standardOption(name), value);
+	}
+
+	/**
+	 * Sets whether a socket loops back its outgoing multicast packets. Uses the socket option where available, as
+	 * {@link MulticastSocket#setLoopbackMode(boolean)} is deprecated since Java 14.
+	 */
+	static void setLoopback(MulticastSocket socket, boolean loopback) throws IOException {
+		if (SOCKET_SET_OPTION != null) {
+			invoke(SOCKET_SET_OPTION, socket, "couldn't set " + IP_MULTICAST_LOOP, standardOption(IP_MULTICAST_LOOP), loopback);
+		} else {
+			try {
+				invoke(MulticastSocket.class.getMethod("setLoopbackMode", boolean.class), socket, "couldn't set loopback mode", !loopback);
+			} catch (NoSuchMethodException e) {
+				throw new IOException("couldn't set loopback mode", e);
+			}
+		}
+	}
+
+	private static Object standardOption(String name) throws IOException {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField(name).get(null);
+		} catch (Exception e) {
+			throw new IOException("couldn't set " + name, e);
+		}
+	}
+
+	/**
+	 * Channels have to join on a specific interface. Takes the interface the system routes the group to, like a socket joining without an
+	 * interface. Only if that can't be determined, takes the first interface which is up and supports multicast, preferring non-loopback ones.
+	 */
+	static NetworkInterface defaultInterface(InetAddress group) throws SocketException {
+		// connecting a datagram socket only looks up the route, nothing is sent
+		DatagramSocket probe = new DatagramSocket();
+		try {
+			probe.connect(new InetSocketAddress(group, 9));
+			NetworkInterface ni = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+			if (ni != null && ni.isUp() && ni.supportsMulticast())
+				return ni;
+		} catch (SocketException e) {
+			// no route to the group
+		} finally {
+			probe.close();
+		}
+
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface ni = interfaces.nextElement();
+			if (!ni.isUp() || !ni.supportsMulticast())
+				continue;
+			if (!ni.isLoopback())
+				return ni;
+			if (loopback == null)
+				loopback = ni;
+		}
+		if (loopback == null)
+			throw new SocketException("no network interface supporting multicast");
+		return loopback;
+	}
+
+	private static Object invoke(Method method, Object target, String message, Object... args) throws IOException {
+		if (method == null)
+			throw new UnsupportedOperationException("multicast channels are not supported");
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(message, e.getCause());
+		} catch (Exception e) {
+			throw new IOException(message, e);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.udpserver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import net.sradonia.io.BufferPool;
+
+/**
+ * <p>
+ * A received UDP packet backed by a pooled buffer, passed to a {@link UdpPacketListener} without copying the payload. The payload is the region
+ * <code>getData()[getOffset()]</code> to <code>getData()[getOffset() + getLength() - 1]</code>. Packets received by the channel engine are backed
+ * by direct buffers without an array, their payload is accessed via {@link #getBuffer()}.
+ * </p>
+ * 
+ * <p>
+ * The packet is reference counted: the server releases it after the listener has returned. A listener handing the packet over to another thread
+ * has to {@link #retain()} it first and {@link #release()} it when done. After the last release the buffer is returned to the pool and must not be
+ * accessed anymore.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public final class UdpPacket {
+
+	private static final AtomicIntegerFieldUpdater<UdpPacket> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(UdpPacket.class, "references");
+
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final int length;
+	private final InetAddress address;
+	private final int port;
+	private final int shard;
+
+	private volatile int references = 1;
+
+	UdpPacket(BufferPool pool, ByteBuffer buffer, int length, InetAddress address, int port, int shard) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.length = length;
+		this.address = address;
+		this.port = port;
+		this.shard = shard;
+	}
+
+	private void ensureAccessible() {
+		if (references <= 0)
+			throw new IllegalStateException("packet has already been released");
+	}
+
+	/**
+	 * @return <code>true</code> if the packet is backed by an array, <code>false</code> if it is backed by a direct buffer
+	 */
+	public boolean hasArray() {
+		return buffer.hasArray();
+	}
+
+	/**
+	 * @return the pooled array holding the payload
+	 * @throws UnsupportedOperationException
+	 *             if the packet is backed by a direct buffer, see {@link #hasArray()}
+	 */
+	public byte[] getData() {
+		ensureAccessible();
+		return buffer.array();
+	}
+
+	/**
+	 * @return the offset of the payload in {@link #getData()}
+	 * @throws UnsupportedOperationException
+	 *             if the packet is backed by a direct buffer, see {@link #hasArray()}
+	 */
+	public int getOffset() {
+		return buffer.arrayOffset();
+	}
+
+	/**
+	 * @return the length of the payload in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the pooled buffer with its position set to the start and its limit set to the end of the payload.
+	 * 
+	 * @return the buffer holding the payload
+	 */
+	public ByteBuffer getBuffer() {
+		ensureAccessible();
+		buffer.limit(length).position(0);
+		return buffer;
+	}
+
+	/**
+	 * @return a copy of the payload which stays valid after the packet has been released
+	 */
+	public byte[] toByteArray() {
+		byte[] data = new byte[length];
+		if (hasArray()) {
+			System.arraycopy(getData(), getOffset(), data, 0, length);
+		} else {
+			getBuffer().duplicate().get(data);
+		}
+		return data;
+	}
+
+	/**
+	 * @return the address of the sender
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the port of the sender
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the address and port of the sender
+	 */
+	public InetSocketAddress getSocketAddress() {
+		return new InetSocketAddress(address, port);
+	}
+
+	/**
+	 * @return the index of the socket or channel which received the packet, see {@link UdpServer#getReceivingShard()}
+	 */
+	public int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Increments the reference count, keeping the payload valid until the matching {@link #release()}.
+	 * 
+	 * @return this packet
+	 * @throws IllegalStateException
+	 *             if the packet has already been released
+	 */
+	public UdpPacket retain() {
+		while (true) {
+			int references = this.references;
+			if (references <= 0)
+				throw new IllegalStateException("packet has already been released");
+			if (REFERENCES.compareAndSet(this, references, references + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * Decrements the reference count and returns the buffer to the pool when it drops to zero.
+	 * 
+	 * @return <code>true</code> if the buffer has been returned to the pool
+	 * @throws IllegalStateException
+	 *             if the packet has already been released
+	 */
+	public boolean release() {
+		while (true) {
+			int references = this.references;
+			if (references <= 0)
+				throw new IllegalStateException("packet has already been released");
+			if (REFERENCES.compareAndSet(this, references, references - 1)) {
+				if (references > 1)
+					return false;
+				pool.release(buffer);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the current reference count, <code>0</code> if the packet has been released
+	 */
+	public int getReferenceCount() {
+		return references;
+	}
+
+	@Override
+	public String toString() {
+		return "UdpPacket[" + address + ":" + port + ", " + length + " bytes]";
+	}
+}
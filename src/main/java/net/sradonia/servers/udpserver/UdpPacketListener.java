@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.udpserver;
+
+import java.net.DatagramPacket;
+
+/**
+ * A {@link UdpServerListener} receiving packets without copying. When the listener of a {@link UdpServer} implements this interface, the server
+ * receives into pooled buffers and calls {@link #onReceivedPacket(UdpServer, UdpPacket)} instead of
+ * {@link #onReceivedPacket(UdpServer, DatagramPacket)}.
+ * 
+ * @author Stefan Rado
+ */
+public interface UdpPacketListener extends UdpServerListener {
+
+	/**
+	 * Is called when a UDP packet is received. The packet is released when this method returns unless it has been {@link UdpPacket#retain()
+	 * retained}.
+	 * 
+	 * @param src
+	 *            the source of the event
+	 * @param packet
+	 *            the received packet, backed by a pooled buffer
+	 */
+	public void onReceivedPacket(UdpServer src, UdpPacket packet);
+}
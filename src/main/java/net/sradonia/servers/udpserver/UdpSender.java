@@ -0,0 +1,568 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.udpserver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.RenamingThreadFactory;
+
+/**
+ * <p>
+ * Sends UDP packets from a persistent socket. Packets are queued by {@link #send(DatagramPacket)} without blocking or locking and written by a
+ * dedicated writer thread, which drains the queue in batches.
+ * </p>
+ * 
+ * <p>
+ * With a {@link #setCoalescingWindow(long, TimeUnit) coalescing window}, the writer waits up to the given time for more messages and packs all
+ * messages to the same target into as few datagrams as possible. Every message is then framed by its length as an unsigned 16 bit big-endian
+ * integer, even if it is sent alone. The receiver unpacks the messages of such a datagram by {@link #unpack(byte[], int, int)}.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class UdpSender {
+
+	/**
+	 * The callback interface for the outcome of queued packets. All methods are called by the writer thread.
+	 */
+	public interface Callback {
+
+		/**
+		 * Is called when a packet has been sent, possibly coalesced with others.
+		 * 
+		 * @param packet
+		 *            the packet as passed to {@link UdpSender#send(DatagramPacket)}
+		 */
+		public void onSent(DatagramPacket packet);
+
+		/**
+		 * Is called when a packet couldn't be sent.
+		 * 
+		 * @param packet
+		 *            the packet as passed to {@link UdpSender#send(DatagramPacket)}
+		 * @param e
+		 *            the reason
+		 */
+		public void onSendFailed(DatagramPacket packet, IOException e);
+	}
+
+	/**
+	 * The maximum length of a single coalesced message: the largest UDP payload over IPv4, 65507 bytes, minus the length prefix.
+	 */
+	public static final int MAX_MESSAGE_LENGTH = 65507 - 2;
+
+	private static final int WRITING = 0;
+	private static final int IDLE = 1;
+	private static final int COALESCING = 2;
+
+	private static final class Message {
+		final DatagramPacket packet;
+		final long queued;
+
+		Message(DatagramPacket packet, long queued) {
+			this.packet = packet;
+			this.queued = queued;
+		}
+	}
+
+	private final DatagramSocket socket;
+	private final Thread writer;
+	private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+	private final AtomicInteger queuedCount = new AtomicInteger();
+	private final AtomicInteger queuedBytes = new AtomicInteger();
+
+	private final AtomicLong sentPackets = new AtomicLong();
+	private final AtomicLong sentDatagrams = new AtomicLong();
+	private final AtomicLong droppedPackets = new AtomicLong();
+	private final AtomicLong failedPackets = new AtomicLong();
+
+	private volatile Callback callback;
+	private volatile int maxQueueSize = 10000;
+	private volatile int maxBatchSize = 64;
+	private volatile long coalescingWindow;
+	private volatile int maxDatagramSize = 1472;
+
+	private volatile int state = WRITING;
+	private volatile boolean closed;
+
+	/**
+	 * The datagram coalesced messages are packed into. Only used by the writer thread.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Creates a new sender using a socket bound to any available port.
+	 * 
+	 * @throws SocketException
+	 *             if the socket couldn't be opened
+	 */
+	public UdpSender() throws SocketException {
+		this(new DatagramSocket());
+	}
+
+	/**
+	 * Creates a new sender using the given socket. The socket is closed when the sender is {@link #close() closed}.
+	 * 
+	 * @param socket
+	 *            the socket to send from
+	 */
+	public UdpSender(DatagramSocket socket) {
+		if (socket == null)
+			throw new IllegalArgumentException("socket can't be null");
+		this.socket = socket;
+		writer = new DaemonThreadFactory(new RenamingThreadFactory("UdpSender-")).newThread(new Runnable() {
+			public void run() {
+				write();
+			}
+		});
+		writer.start();
+	}
+
+	/**
+	 * Queues a packet for sending. Never blocks. The packet and its data must not be modified until the packet has been sent.
+	 * 
+	 * @param packet
+	 *            the packet, with its target address and port set
+	 * @return <code>false</code> if the packet has been dropped because the queue is full or the sender has been closed
+	 */
+	public boolean send(DatagramPacket packet) {
+		if (packet == null)
+			throw new IllegalArgumentException("packet can't be null");
+		if (packet.getAddress() == null)
+			throw new IllegalArgumentException("packet has no target address");
+		if (coalescingWindow > 0 && packet.getLength() > MAX_MESSAGE_LENGTH)
+			throw new IllegalArgumentException("packet is too long to be coalesced");
+		if (closed) {
+			droppedPackets.incrementAndGet();
+			return false;
+		}
+		if (queuedCount.incrementAndGet() > maxQueueSize) {
+			queuedCount.decrementAndGet();
+			droppedPackets.incrementAndGet();
+			return false;
+		}
+		int bytes = queuedBytes.addAndGet(packet.getLength() + 2);
+		Message message = new Message(packet, System.nanoTime());
+		queue.add(message);
+		if (closed && queue.remove(message)) {
+			// closed meanwhile, the writer might already have exited
+			queuedCount.decrementAndGet();
+			queuedBytes.addAndGet(-(packet.getLength() + 2));
+			droppedPackets.incrementAndGet();
+			return false;
+		}
+
+		int state = this.state;
+		if (state == IDLE || (state == COALESCING && bytes >= maxDatagramSize))
+			LockSupport.unpark(writer);
+		return true;
+	}
+
+	/**
+	 * Queues a packet for sending.
+	 * 
+	 * @param host
+	 *            the target host
+	 * @param port
+	 *            the target UDP port
+	 * @param data
+	 *            the payload, must not be modified until the packet has been sent
+	 * @return <code>false</code> if the packet has been dropped
+	 * @see #send(DatagramPacket)
+	 */
+	public boolean send(InetAddress host, int port, byte[] data) {
+		return send(new DatagramPacket(data, data.length, host, port));
+	}
+
+	private void write() {
+		List<Message> batch = new ArrayList<Message>();
+		List<DatagramPacket> packed = new ArrayList<DatagramPacket>();
+		DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+		try {
+			while (true) {
+				if (!awaitBatch())
+					break;
+				long window = coalescingWindow;
+				int max = maxBatchSize;
+				for (int i = 0; i < max; i++) {
+					Message m = queue.poll();
+					if (m == null)
+						break;
+					queuedCount.decrementAndGet();
+					queuedBytes.addAndGet(-(m.packet.getLength() + 2));
+					batch.add(m);
+				}
+				if (window > 0)
+					writeCoalesced(batch, datagram, packed);
+				else
+					writeSingle(batch, datagram);
+				batch.clear();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Waits until there is something to send, and with a coalescing window until the window of the oldest message has passed or a datagram can be
+	 * filled.
+	 * 
+	 * @return <code>false</code> if the sender has been closed and the queue is empty
+	 */
+	private boolean awaitBatch() {
+		while (queue.isEmpty()) {
+			if (closed) {
+				if (queue.isEmpty())
+					return false;
+				break; // queued by send() before it saw the flag
+			}
+			state = IDLE;
+			if (queue.isEmpty() && !closed)
+				LockSupport.park(this);
+			state = WRITING;
+		}
+		long window = coalescingWindow;
+		if (window > 0) {
+			Message head = queue.peek();
+			long deadline = head.queued + window;
+			long remaining;
+			while (!closed && queuedBytes.get() < maxDatagramSize && (remaining = deadline - System.nanoTime()) > 0) {
+				state = COALESCING;
+				if (queuedBytes.get() < maxDatagramSize && !closed)
+					LockSupport.parkNanos(this, remaining);
+				state = WRITING;
+			}
+		}
+		Thread.interrupted(); // parking doesn't clear it
+		return true;
+	}
+
+	private void writeSingle(List<Message> batch, DatagramPacket datagram) {
+		for (Message m : batch) {
+			DatagramPacket p = m.packet;
+			try {
+				datagram.setData(p.getData(), p.getOffset(), p.getLength());
+				datagram.setAddress(p.getAddress());
+				datagram.setPort(p.getPort());
+				socket.send(datagram);
+				sentDatagrams.incrementAndGet();
+				sent(p);
+			} catch (IOException e) {
+				failed(p, e);
+			}
+		}
+	}
+
+	/**
+	 * Packs the messages of the batch into datagrams per target, in the order of their first message. Reuses the buffer and lists, so nothing is
+	 * allocated per batch.
+	 */
+	private void writeCoalesced(List<Message> batch, DatagramPacket datagram, List<DatagramPacket> packed) {
+		int maxDatagramSize = this.maxDatagramSize;
+		if (buffer == null)
+			buffer = new byte[MAX_MESSAGE_LENGTH + 2]; // the largest datagram, so it fits any maxDatagramSize
+		for (int i = 0; i < batch.size(); i++) {
+			Message first = batch.get(i);
+			if (first == null)
+				continue; // already packed with an earlier message to the same target
+			InetAddress address = first.packet.getAddress();
+			int port = first.packet.getPort();
+			int length = 0;
+			for (int j = i; j < batch.size(); j++) {
+				Message m = batch.get(j);
+				if (m == null || m.packet.getPort() != port || !m.packet.getAddress().equals(address))
+					continue;
+				batch.set(j, null);
+				DatagramPacket p = m.packet;
+				if (length > 0 && length + p.getLength() + 2 > maxDatagramSize) {
+					writeDatagram(datagram, length, address, port, packed);
+					length = 0;
+				}
+				buffer[length++] = (byte) (p.getLength() >>> 8);
+				buffer[length++] = (byte) p.getLength();
+				System.arraycopy(p.getData(), p.getOffset(), buffer, length, p.getLength());
+				length += p.getLength();
+				packed.add(p);
+			}
+			writeDatagram(datagram, length, address, port, packed);
+		}
+	}
+
+	private void writeDatagram(DatagramPacket datagram, int length, InetAddress address, int port, List<DatagramPacket> packed) {
+		try {
+			datagram.setData(buffer, 0, length);
+			datagram.setAddress(address);
+			datagram.setPort(port);
+			socket.send(datagram);
+			sentDatagrams.incrementAndGet();
+			for (DatagramPacket p : packed)
+				sent(p);
+		} catch (IOException e) {
+			for (DatagramPacket p : packed)
+				failed(p, e);
+		}
+		packed.clear();
+	}
+
+	private void sent(DatagramPacket packet) {
+		sentPackets.incrementAndGet();
+		Callback callback = this.callback;
+		if (callback != null) {
+			try {
+				callback.onSent(packet);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void failed(DatagramPacket packet, IOException e) {
+		failedPackets.incrementAndGet();
+		Callback callback = this.callback;
+		if (callback != null) {
+			try {
+				callback.onSendFailed(packet, e);
+			} catch (Exception e1) {
+				e1.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Unpacks the messages of a datagram sent with a coalescing window.
+	 * 
+	 * @param data
+	 *            the array holding the datagram
+	 * @param offset
+	 *            the offset of the datagram in the array
+	 * @param length
+	 *            the length of the datagram
+	 * @return the messages in the order they have been sent
+	 * @throws IllegalArgumentException
+	 *             if the datagram isn't a sequence of length-prefixed messages
+	 */
+	public static List<byte[]> unpack(byte[] data, int offset, int length) {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		int end = offset + length;
+		int pos = offset;
+		while (pos < end) {
+			if (end - pos < 2)
+				throw new IllegalArgumentException("truncated message length at offset " + (pos - offset));
+			int len = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+			pos += 2;
+			if (end - pos < len)
+				throw new IllegalArgumentException("truncated message at offset " + (pos - offset));
+			byte[] message = new byte[len];
+			System.arraycopy(data, pos, message, 0, len);
+			messages.add(message);
+			pos += len;
+		}
+		return messages;
+	}
+
+	/**
+	 * Unpacks the messages of a received datagram sent with a coalescing window.
+	 * 
+	 * @see #unpack(byte[], int, int)
+	 */
+	public static List<byte[]> unpack(DatagramPacket packet) {
+		return unpack(packet.getData(), packet.getOffset(), packet.getLength());
+	}
+
+	/**
+	 * Stops accepting packets, sends the packets still queued without waiting for the coalescing window and closes the socket.
+	 * 
+	 * @param wait
+	 *            whether to wait until the queued packets have been sent
+	 */
+	public void close(boolean wait) {
+		closed = true;
+		LockSupport.unpark(writer);
+		if (wait && Thread.currentThread() != writer) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Closes the sender and waits until the queued packets have been sent.
+	 * 
+	 * @see #close(boolean)
+	 */
+	public void close() {
+		close(true);
+	}
+
+	/**
+	 * @return <code>true</code> if the sender has been closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the socket the packets are sent from
+	 */
+	public DatagramSocket getSocket() {
+		return socket;
+	}
+
+	public Callback getCallback() {
+		return callback;
+	}
+
+	/**
+	 * Sets the callback notified about the outcome of every queued packet.
+	 * 
+	 * @param callback
+	 *            the callback, <code>null</code> for none
+	 */
+	public void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of queued packets. Further packets are dropped until the writer catches up. Default is 10000.
+	 * 
+	 * @param maxQueueSize
+	 *            the maximum number of queued packets
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		if (maxQueueSize < 1)
+			throw new IllegalArgumentException("maxQueueSize has to be > 0");
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of packets the writer takes from the queue at once. Default is 64.
+	 * 
+	 * @param maxBatchSize
+	 *            the maximum batch size
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("maxBatchSize has to be > 0");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the coalescing window, <code>0</code> if coalescing is disabled
+	 */
+	public long getCoalescingWindow(TimeUnit unit) {
+		return unit.convert(coalescingWindow, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the maximum time a message may be delayed to be packed together with further messages to the same target. The receiver has to
+	 * {@link #unpack(byte[], int, int) unpack} the datagrams. A window of <code>0</code> disables coalescing, which is the default. Should only be
+	 * changed while nothing is queued, as the receiver can't distinguish framed from unframed datagrams.
+	 * 
+	 * @param window
+	 *            the coalescing window
+	 * @param unit
+	 *            the unit of the window
+	 */
+	public void setCoalescingWindow(long window, TimeUnit unit) {
+		if (window < 0)
+			throw new IllegalArgumentException("window can't be negative");
+		this.coalescingWindow = unit.toNanos(window);
+	}
+
+	public int getMaxDatagramSize() {
+		return maxDatagramSize;
+	}
+
+	/**
+	 * Sets the maximum size of a coalesced datagram. A single message longer than this is still sent in a datagram of its own. Default is 1472 bytes,
+	 * the payload of an unfragmented datagram on Ethernet.
+	 * 
+	 * @param maxDatagramSize
+	 *            the maximum size in bytes
+	 */
+	public void setMaxDatagramSize(int maxDatagramSize) {
+		if (maxDatagramSize < 3 || maxDatagramSize > 65507)
+			throw new IllegalArgumentException("maxDatagramSize has to be between 3 and 65507");
+		this.maxDatagramSize = maxDatagramSize;
+	}
+
+	/**
+	 * @return the number of packets queued but not sent yet
+	 */
+	public int getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	/**
+	 * @return the number of packets sent
+	 */
+	public long getSentCount() {
+		return sentPackets.get();
+	}
+
+	/**
+	 * @return the number of datagrams sent, less than {@link #getSentCount()} if packets have been coalesced
+	 */
+	public long getDatagramCount() {
+		return sentDatagrams.get();
+	}
+
+	/**
+	 * @return the number of packets dropped because the queue was full or the sender had been closed
+	 */
+	public long getDroppedCount() {
+		return droppedPackets.get();
+	}
+
+	/**
+	 * @return the number of packets which couldn't be sent
+	 */
+	public long getFailedCount() {
+		return failedPackets.get();
+	}
+
+	@Override
+	public String toString() {
+		return "UdpSender[" + socket.getLocalSocketAddress() + ", queued=" + queuedCount.get() + "]";
+	}
+}
@@ -18,12 +18,28 @@
 package net.sradonia.servers.udpserver;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.*;
 
+import net.sradonia.io.BufferPool;
+import net.sradonia.servers.ReusePort;
+import net.sradonia.servers.SelectorLoop;
 import net.sradonia.servers.Server;
+import net.sradonia.servers.ShutdownResult;
 import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.KeyedSerialExecutor;
 import net.sradonia.threads.RenamingThreadFactory;
 
 /**
@@ -32,6 +48,21 @@ import net.sradonia.threads.RenamingThreadFactory;
  * It's running either as a deamon or as a normal thread. When a packet is received the associated {@link UdpServerListener} will be called to handle
  * it. When the port is set to 0 when the server is started, any available port will be used which can later be found via {@link #getPort()}.
  * 
+ * By default every packet is copied into an array of its exact length before being passed to the listener. If the listener implements
+ * {@link UdpPacketListener} when the server is started, it receives {@link UdpPacket}s backed by pooled buffers instead, which avoids any
+ * allocation of packet data.
+ * 
+ * When {@link #setReaderCount(int) reader threads}, {@link #setEventLoops(SelectorLoop[]) shared event loops} or
+ * {@link #addConnectedPeer(InetSocketAddress) connected peers} are configured, the server uses non-blocking {@link DatagramChannel}s instead of a
+ * {@link DatagramSocket}. Every wakeup of a reader drains all datagrams ready on its channel into pooled direct buffers.
+ * 
+ * With {@link #setShardCount(int) several shards} the server binds several sockets to its port using <code>SO_REUSEPORT</code>, each read by its
+ * own thread, and the operating system spreads the flows across them. The shard which received a packet is reported by
+ * {@link UdpPacket#getShard()} and {@link #getReceivingShard()}.
+ * 
+ * The server can {@link #joinGroup(InetAddress, NetworkInterface) join multicast groups}, whose packets are passed to the listener like any other
+ * packet, and {@link #sendGroupPacket(InetAddress, int, byte[]) send to a group} instead of unicasting the same payload to every peer.
+ * 
  * @author Stefan Rado
  */
 public class UdpServer extends Server<UdpServerListener> {
@@ -39,6 +70,49 @@ public class UdpServer extends Server<UdpServerListener> {
 	protected int maxPacketSize = 2048;
 
 	protected DatagramSocket socket;
+	protected final List<DatagramSocket> sockets = new CopyOnWriteArrayList<DatagramSocket>();
+
+	protected int shardCount = 1;
+	private final ThreadLocal<Integer> receivingShard = new ThreadLocal<Integer>();
+
+	protected int readerCount;
+	protected SelectorLoop[] sharedEventLoops;
+	protected final List<InetSocketAddress> connectedPeers = new CopyOnWriteArrayList<InetSocketAddress>();
+	protected BufferPool directBufferPool = BufferPool.getDirectPool();
+	protected volatile DatagramChannel channel;
+	protected final List<DatagramChannel> channels = new CopyOnWriteArrayList<DatagramChannel>();
+
+	/**
+	 * The maximum number of datagrams received per wakeup and channel, so a flooded channel can't starve the others on its loop.
+	 */
+	protected static final int MAX_READS_PER_WAKEUP = 256;
+
+	protected final List<Membership> memberships = new CopyOnWriteArrayList<Membership>();
+	protected NetworkInterface multicastInterface;
+	protected int timeToLive = 1;
+	protected boolean multicastLoopback = true;
+	private final Object multicastLock = new Object();
+
+	protected boolean keyedBySource;
+	protected volatile KeyedSerialExecutor keyedExecutor;
+
+	protected final AtomicReference<UdpSender> sender = new AtomicReference<UdpSender>();
+	/**
+	 * The socket {@link #sendPacket(InetAddress, int, byte[])} sends from while the server isn't running. Guarded by the multicast lock.
+	 */
+	protected MulticastSocket sendSocket;
+
+	private static final InetAddress BROADCAST_ADDRESS;
+	static {
+		try {
+			BROADCAST_ADDRESS = InetAddress.getByAddress(new byte[] { (byte) 255, (byte) 255, (byte) 255, (byte) 255 });
+		} catch (UnknownHostException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	protected final AtomicLong rejectedPackets = new AtomicLong();
+	protected final AtomicInteger pendingPackets = new AtomicInteger();
 
 	/**
 	 * Creates a new <code>DatagramServer</code> instance with the given port and listener and sets the threadmode to daemon.
@@ -80,8 +154,8 @@ public class UdpServer extends Server<UdpServerListener> {
 	 */
 	public void setRunning(boolean on) {
 		super.setRunning(on);
-		if (thread != null && thread.isInterrupted() && socket != null)
-			socket.close();
+		if (thread != null && thread.isInterrupted())
+			closeSockets();
 	}
 
 	/**
@@ -106,48 +180,595 @@ public class UdpServer extends Server<UdpServerListener> {
 		this.maxPacketSize = maxPacketSize;
 	}
 
+	/**
+	 * @return the number of sockets or channels bound to the server's port
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Sets the number of sockets bound to the server's port using <code>SO_REUSEPORT</code>. The operating system spreads the incoming flows across
+	 * them, packets of the same sender and port normally always arrive at the same shard. The blocking socket engine starts a receive thread per
+	 * shard, the channel engine starts at least one reader per shard. Only available on some platforms, see {@link ReusePort#isSupported()}. Will
+	 * return without any changes when the server is currently running. The default is 1.
+	 * 
+	 * @param shardCount
+	 *            the number of shards
+	 * @throws UnsupportedOperationException
+	 *             if more than one shard is requested but <code>SO_REUSEPORT</code> isn't supported
+	 * @throws IllegalStateException
+	 *             if more than one shard is requested but the server is a member of a multicast group, see
+	 *             {@link #joinGroup(InetAddress, NetworkInterface)}
+	 */
+	public void setShardCount(int shardCount) {
+		if (isRunning())
+			return;
+		if (shardCount < 1)
+			throw new IllegalArgumentException("shardCount has to be > 0");
+		if (shardCount > 1 && !ReusePort.isSupported())
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+		synchronized (multicastLock) {
+			if (shardCount > 1 && !memberships.isEmpty())
+				throw new IllegalStateException("a server with several shards can't be a multicast group member");
+			this.shardCount = shardCount;
+		}
+	}
+
+	/**
+	 * Returns the shard which received the packet currently handled by the calling thread. Shards <code>0</code> to <code>getShardCount() - 1</code>
+	 * are the sockets or channels bound to the server's port, followed by the channels of the
+	 * {@link #addConnectedPeer(InetSocketAddress) connected peers} in the order they have been added. Meant to be called by
+	 * {@link UdpServerListener#onReceivedPacket(UdpServer, DatagramPacket)}.
+	 * 
+	 * @return the shard of the packet being handled, <code>-1</code> if the calling thread isn't handling a packet of this server
+	 */
+	public int getReceivingShard() {
+		Integer shard = receivingShard.get();
+		return (shard != null ? shard.intValue() : -1);
+	}
+
+	/**
+	 * @return the number of reader threads of the channel engine, <code>0</code> if the blocking socket engine is used
+	 */
+	public int getReaderCount() {
+		return readerCount;
+	}
+
+	/**
+	 * Sets the number of reader threads, each running a {@link SelectorLoop}. A value greater than <code>0</code> selects the non-blocking
+	 * {@link DatagramChannel} engine. The channels bound to the server's port, one per {@link #setShardCount(int) shard}, and the channels of
+	 * {@link #addConnectedPeer(InetSocketAddress) connected peers} are distributed over all readers. Default is <code>0</code>, which selects the
+	 * blocking socket engine. Will return without any changes when the server is currently running.
+	 * 
+	 * @param readerCount
+	 *            the number of reader threads, <code>0</code> for the blocking socket engine
+	 */
+	public void setReaderCount(int readerCount) {
+		if (isRunning())
+			return;
+		if (readerCount < 0)
+			throw new IllegalArgumentException("readerCount can't be negative");
+		this.readerCount = readerCount;
+	}
+
+	/**
+	 * Sets already running event loops the channel engine should read on instead of starting own reader threads, for example the loops of a
+	 * {@link net.sradonia.servers.tcpserver.TcpServer#getEventLoops() non-blocking TcpServer}. Shared loops aren't stopped when the server stops.
+	 * Will return without any changes when the server is currently running.
+	 * 
+	 * @param loops
+	 *            the loops to read on, <code>null</code> to start {@link #setReaderCount(int) own readers}
+	 */
+	public void setEventLoops(SelectorLoop[] loops) {
+		if (isRunning())
+			return;
+		if (loops != null && loops.length == 0)
+			throw new IllegalArgumentException("loops can't be empty");
+		this.sharedEventLoops = (loops != null ? loops.clone() : null);
+	}
+
+	/**
+	 * Adds a fixed peer which gets its own channel, bound to the server's port and connected to the peer. Datagrams of a connected peer are read
+	 * without resolving the sender's address per packet and the kernel doesn't have to look up the receiving socket by a wildcard match. Empty
+	 * datagrams of connected peers are ignored. Selects the channel engine. Will return without any changes when the server is currently running.
+	 * 
+	 * @param peer
+	 *            the address and port of the peer
+	 */
+	public void addConnectedPeer(InetSocketAddress peer) {
+		if (isRunning())
+			return;
+		if (peer == null)
+			throw new IllegalArgumentException("peer can't be null");
+		if (!connectedPeers.contains(peer))
+			connectedPeers.add(peer);
+	}
+
+	/**
+	 * Removes a peer added by {@link #addConnectedPeer(InetSocketAddress)}. Will return without any changes when the server is currently running.
+	 * 
+	 * @param peer
+	 *            the address and port of the peer
+	 */
+	public void removeConnectedPeer(InetSocketAddress peer) {
+		if (isRunning())
+			return;
+		connectedPeers.remove(peer);
+	}
+
+	/**
+	 * @return the peers having their own connected channel
+	 */
+	public List<InetSocketAddress> getConnectedPeers() {
+		return new ArrayList<InetSocketAddress>(connectedPeers);
+	}
+
+	/**
+	 * Gets the pool the channel engine takes its receive buffers from.
+	 * 
+	 * @return the direct buffer pool
+	 */
+	public BufferPool getDirectBufferPool() {
+		return directBufferPool;
+	}
+
+	/**
+	 * Sets the pool the channel engine takes its receive buffers from. Default is the shared {@link BufferPool#getDirectPool() direct buffer pool}.
+	 * Will return without any changes when the server is currently running.
+	 * 
+	 * @param directBufferPool
+	 *            the new buffer pool, has to provide direct buffers
+	 */
+	public void setDirectBufferPool(BufferPool directBufferPool) {
+		if (isRunning())
+			return;
+		if (directBufferPool == null)
+			throw new IllegalArgumentException("directBufferPool can't be null");
+		if (!directBufferPool.isDirect())
+			throw new IllegalArgumentException("directBufferPool has to provide direct buffers");
+		this.directBufferPool = directBufferPool;
+	}
+
+	/**
+	 * @return <code>true</code> if the server is configured to use the non-blocking channel engine
+	 */
+	public boolean isChannelEngine() {
+		return readerCount > 0 || sharedEventLoops != null || !connectedPeers.isEmpty();
+	}
+
+	/**
+	 * @return whether the packets of the same sender are handled sequentially
+	 */
+	public boolean isKeyedBySource() {
+		return keyedBySource;
+	}
+
+	/**
+	 * Sets whether the packets of the same sender address and port are handled sequentially in the order they have been received, using a
+	 * {@link KeyedSerialExecutor} on top of the worker pool. Packets of different senders are still handled in parallel, so listeners don't need to
+	 * lock the state they keep per sender. With {@link #setShardCount(int) several shards} the order is kept as long as the operating system
+	 * delivers the packets of a sender to the same shard, which it normally does. Will return without any changes when the server is currently
+	 * running. Disabled by default.
+	 * 
+	 * @param keyedBySource
+	 *            true to handle the packets of every sender sequentially
+	 */
+	public void setKeyedBySource(boolean keyedBySource) {
+		if (isRunning())
+			return;
+		this.keyedBySource = keyedBySource;
+	}
+
+	/**
+	 * Joins a multicast group on the interface the system routes the group to.
+	 * 
+	 * @see #joinGroup(InetAddress, NetworkInterface)
+	 */
+	public void joinGroup(InetAddress group) throws IOException {
+		joinGroup(group, null);
+	}
+
+	/**
+	 * Joins a multicast group. Its packets are received on the server's port and passed to the listener like any other packet. The server stays a
+	 * member until {@link #leaveGroup(InetAddress, NetworkInterface) leaving} the group, also when it is restarted. May be called while the server
+	 * is running. Can't be combined with {@link #setShardCount(int) several shards}: the group's packets aren't spread across sockets sharing the
+	 * port, every shard would receive a copy of each packet.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param ni
+	 *            the interface to receive the group's packets on, <code>null</code> for the interface the system routes the group to
+	 * @throws IOException
+	 *             if the server is running and the group couldn't be joined
+	 * @throws IllegalStateException
+	 *             if the server has several shards
+	 * @throws UnsupportedOperationException
+	 *             if the server uses the channel engine, which supports multicast only since Java 7
+	 */
+	public void joinGroup(InetAddress group, NetworkInterface ni) throws IOException {
+		if (group == null)
+			throw new IllegalArgumentException("group can't be null");
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException(group.getHostAddress() + " is not a multicast address");
+		if (isChannelEngine() && !MulticastChannels.isSupported())
+			throw new UnsupportedOperationException("multicast channels are not supported, use the blocking socket engine");
+		synchronized (multicastLock) {
+			if (shardCount > 1)
+				throw new IllegalStateException("a server with several shards can't be a multicast group member");
+			for (Membership m : memberships) {
+				if (m.matches(group, ni))
+					return;
+			}
+			Membership m = new Membership(group, ni);
+			join(m);
+			memberships.add(m);
+		}
+	}
+
+	/**
+	 * Leaves a multicast group joined without specifying an interface.
+	 * 
+	 * @see #leaveGroup(InetAddress, NetworkInterface)
+	 */
+	public void leaveGroup(InetAddress group) throws IOException {
+		leaveGroup(group, null);
+	}
+
+	/**
+	 * Leaves a multicast group joined by {@link #joinGroup(InetAddress, NetworkInterface)}. May be called while the server is running.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param ni
+	 *            the interface the group has been joined on, <code>null</code> if none has been specified
+	 * @throws IOException
+	 *             if the server is running and the group couldn't be left
+	 */
+	public void leaveGroup(InetAddress group, NetworkInterface ni) throws IOException {
+		synchronized (multicastLock) {
+			for (Membership m : memberships) {
+				if (m.matches(group, ni)) {
+					memberships.remove(m);
+					leave(m);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the multicast groups joined by {@link #joinGroup(InetAddress, NetworkInterface)}
+	 */
+	public List<InetAddress> getGroups() {
+		List<InetAddress> groups = new ArrayList<InetAddress>();
+		for (Membership m : memberships) {
+			if (!groups.contains(m.group))
+				groups.add(m.group);
+		}
+		return groups;
+	}
+
+	public NetworkInterface getMulticastInterface() {
+		return multicastInterface;
+	}
+
+	/**
+	 * Sets the interface outgoing multicast packets are sent on. May be called while the server is running.
+	 * 
+	 * @param multicastInterface
+	 *            the interface, <code>null</code> for the system's default interface
+	 */
+	public void setMulticastInterface(NetworkInterface multicastInterface) {
+		synchronized (multicastLock) {
+			this.multicastInterface = multicastInterface;
+			updateMulticastOptions();
+		}
+	}
+
+	public int getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Sets the time to live of outgoing multicast packets, limiting how many routers they may pass. The default of 1 keeps them in the local
+	 * network. May be called while the server is running.
+	 * 
+	 * @param timeToLive
+	 *            the time to live, between 0 and 255
+	 */
+	public void setTimeToLive(int timeToLive) {
+		if (timeToLive < 0 || timeToLive > 255)
+			throw new IllegalArgumentException("timeToLive has to be between 0 and 255");
+		synchronized (multicastLock) {
+			this.timeToLive = timeToLive;
+			updateMulticastOptions();
+		}
+	}
+
+	public boolean isMulticastLoopback() {
+		return multicastLoopback;
+	}
+
+	/**
+	 * Sets whether outgoing multicast packets are looped back to the sending host, so members on the same host receive them as well. Enabled by
+	 * default. May be called while the server is running.
+	 * 
+	 * @param multicastLoopback
+	 *            true to loop back multicast packets
+	 */
+	public void setMulticastLoopback(boolean multicastLoopback) {
+		synchronized (multicastLock) {
+			this.multicastLoopback = multicastLoopback;
+			updateMulticastOptions();
+		}
+	}
+
+	/**
+	 * @return the number of received packets dropped because the worker pool rejected them
+	 */
+	public long getRejectedPacketCount() {
+		return rejectedPackets.get();
+	}
+
+	/**
+	 * @return the number of received packets queued or being handled
+	 */
+	public int getPendingPacketCount() {
+		return pendingPackets.get();
+	}
+
+	/**
+	 * A multicast group joined on an interface.
+	 */
+	protected static final class Membership {
+		final InetAddress group;
+		final NetworkInterface ni;
+		Object key; // the membership key while joined by a channel
+
+		Membership(InetAddress group, NetworkInterface ni) {
+			this.group = group;
+			this.ni = ni;
+		}
+
+		boolean matches(InetAddress group, NetworkInterface ni) {
+			return this.group.equals(group) && (this.ni == null ? ni == null : this.ni.equals(ni));
+		}
+	}
+
 	protected class PacketHandler implements Runnable {
 		UdpServer parent;
 		DatagramPacket packet;
+		ByteBuffer buffer;
+		int shard;
 
 		public PacketHandler(UdpServer parent, DatagramPacket packet) {
+			this(parent, packet, null, 0);
+		}
+
+		/**
+		 * @param buffer
+		 *            the pooled buffer backing the packet, released as soon as the data has been copied
+		 * @param shard
+		 *            the shard which received the packet
+		 */
+		public PacketHandler(UdpServer parent, DatagramPacket packet, ByteBuffer buffer, int shard) {
+			this.parent = parent;
+			this.packet = packet;
+			this.buffer = buffer;
+			this.shard = shard;
+		}
+
+		public void run() {
+			try {
+				if (!parent.abortHandlers)
+					handle();
+			} finally {
+				if (buffer != null) {
+					parent.bufferPool.release(buffer);
+					buffer = null;
+				}
+				parent.pendingPackets.decrementAndGet();
+				parent.notifyDrain();
+			}
+		}
+
+		protected void handle() {
+			if (buffer != null || packet.getOffset() != 0 || packet.getLength() != packet.getData().length) {
+				byte[] data = new byte[packet.getLength()];
+				System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
+				packet.setData(data);
+			}
+			if (buffer != null) {
+				parent.bufferPool.release(buffer);
+				buffer = null;
+			}
+			parent.receivingShard.set(shard);
+			try {
+				parent.callOnReceivedPacket(packet);
+			} finally {
+				parent.receivingShard.remove();
+			}
+		}
+	}
+
+	protected class UdpPacketHandler implements Runnable {
+		UdpServer parent;
+		UdpPacket packet;
+
+		public UdpPacketHandler(UdpServer parent, UdpPacket packet) {
 			this.parent = parent;
 			this.packet = packet;
 		}
 
 		public void run() {
-			byte[] data = new byte[packet.getLength()];
-			System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-			packet.setData(data);
-			parent.callOnReceivedPacket(packet);
+			try {
+				if (!parent.abortHandlers) {
+					parent.receivingShard.set(packet.getShard());
+					try {
+						parent.callOnReceivedPacket(packet);
+					} finally {
+						parent.receivingShard.remove();
+					}
+				}
+			} finally {
+				try {
+					packet.release();
+				} catch (IllegalStateException e) {
+					e.printStackTrace(); // released once too often by the listener
+				}
+				parent.pendingPackets.decrementAndGet();
+				parent.notifyDrain();
+			}
+		}
+	}
+
+	/**
+	 * Reads the datagrams of a channel on its event loop.
+	 */
+	protected class ChannelReader implements SelectorLoop.Handler {
+		final DatagramChannel channel;
+		final InetSocketAddress peer;
+		final ExecutorService threadPool;
+		final boolean zeroCopy;
+		final int shard;
+
+		/**
+		 * @param peer
+		 *            the peer the channel is connected to, <code>null</code> for the unconnected channels
+		 * @param shard
+		 *            the shard number reported for the packets of the channel
+		 */
+		public ChannelReader(DatagramChannel channel, InetSocketAddress peer, ExecutorService threadPool, boolean zeroCopy, int shard) {
+			this.channel = channel;
+			this.peer = peer;
+			this.threadPool = threadPool;
+			this.zeroCopy = zeroCopy;
+			this.shard = shard;
+		}
+
+		public void ready(SelectionKey key) {
+			BufferPool bufferPool = directBufferPool;
+			for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+				ByteBuffer buffer = bufferPool.acquire(maxPacketSize);
+				try {
+					InetSocketAddress sender;
+					if (peer != null) {
+						if (channel.read(buffer) <= 0)
+							break;
+						sender = peer;
+					} else {
+						sender = (InetSocketAddress) channel.receive(buffer);
+						if (sender == null)
+							break;
+					}
+					buffer.flip();
+					dispatch(buffer, bufferPool, sender.getAddress(), sender.getPort(), threadPool, zeroCopy, shard);
+					buffer = null;
+				} catch (PortUnreachableException e) {
+					// an ICMP error for a packet sent to the connected peer, the next read continues
+				} catch (IOException e) {
+					if (channel.isOpen())
+						callOnIOException(e, "Error while receiving");
+					break;
+				} finally {
+					if (buffer != null)
+						bufferPool.release(buffer);
+				}
+			}
+		}
+
+		public void loopStopped(SelectionKey key) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Runs a packet handler on the worker pool, after the handlers of previous packets of the same sender if the server is
+	 * {@link #setKeyedBySource(boolean) keyed by source}.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the worker pool rejected the handler
+	 */
+	protected void execute(ExecutorService threadPool, Runnable handler, InetAddress address, int port) {
+		KeyedSerialExecutor keyedExecutor = this.keyedExecutor;
+		if (keyedExecutor != null)
+			keyedExecutor.execute(new InetSocketAddress(address, port), handler);
+		else
+			threadPool.execute(handler);
+	}
+
+	/**
+	 * Hands a datagram received by the channel engine over to the worker pool. Takes over the buffer.
+	 */
+	protected void dispatch(ByteBuffer buffer, BufferPool bufferPool, InetAddress address, int port, ExecutorService threadPool, boolean zeroCopy,
+			int shard) {
+		pendingPackets.incrementAndGet();
+		try {
+			if (zeroCopy) {
+				execute(threadPool, new UdpPacketHandler(this, new UdpPacket(bufferPool, buffer, buffer.remaining(), address, port, shard)), address, port);
+			} else {
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				bufferPool.release(buffer);
+				buffer = null;
+				execute(threadPool, new PacketHandler(this, new DatagramPacket(data, data.length, address, port), null, shard), address, port);
+			}
+		} catch (RejectedExecutionException e) {
+			pendingPackets.decrementAndGet();
+			rejectedPackets.incrementAndGet();
+			if (buffer != null)
+				bufferPool.release(buffer);
 		}
 	}
 
 	@Override
 	protected void runServer() {
+		if (isChannelEngine())
+			runEventLoops();
+		else
+			runBlocking();
+	}
+
+	protected void runBlocking() {
+		Thread[] shards = null;
 		try {
-			if (port != 0)
-				socket = new DatagramSocket(port);
-			else
-				socket = new DatagramSocket();
+			DatagramSocket first = openSocket(port);
+			synchronized (multicastLock) {
+				socket = first;
+				startMulticast();
+			}
 			port = socket.getLocalPort();
+			final DatagramSocket[] shardSockets = new DatagramSocket[shardCount - 1];
+			for (int i = 0; i < shardSockets.length; i++)
+				shardSockets[i] = openSocket(port);
 
 			callOnServerStarted();
 
-			ExecutorService threadPool = Executors.newCachedThreadPool(new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread()
-					.getName() + "-HandlerThread-"), daemon));
-			DatagramPacket packet;
-			while (!Thread.currentThread().isInterrupted()) {
-				try {
-					packet = new DatagramPacket(new byte[maxPacketSize], maxPacketSize);
-					socket.receive(packet);
-					threadPool.execute(new PacketHandler(this, packet));
-				} catch (IOException e) {
-					if (!Thread.currentThread().isInterrupted())
-						callOnIOException(e, "Error while receiving");
+			final ExecutorService threadPool = createWorkerPool();
+			keyedExecutor = (keyedBySource ? new KeyedSerialExecutor(threadPool) : null);
+			final boolean zeroCopy = (listener instanceof UdpPacketListener);
+			if (shardSockets.length > 0) {
+				ThreadFactory factory = new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread().getName() + "-Shard-"), daemon);
+				shards = new Thread[shardSockets.length];
+				for (int i = 0; i < shards.length; i++) {
+					final int shard = i + 1;
+					shards[i] = factory.newThread(new Runnable() {
+						public void run() {
+							receiveBlocking(shardSockets[shard - 1], shard, threadPool, zeroCopy);
+						}
+					});
+					shards[i].start();
 				}
 			}
-			threadPool.shutdown();
+			receiveBlocking(socket, 0, threadPool, zeroCopy);
+			stopShards(shards);
+			shards = null;
+			drainOnShutdown();
+			releaseWorkerPool(threadPool);
 
 			callOnServerStopped();
 
@@ -157,7 +778,312 @@ public class UdpServer extends Server<UdpServerListener> {
 		} catch (IOException e) {
 			thread = null;
 			callOnIOException(e, "Couldn't open socket on port " + port + "!");
+		} finally {
+			stopShards(shards);
+			closeSockets();
+			sockets.clear();
+		}
+	}
+
+	/**
+	 * Receives packets on one of the shard sockets until the socket is closed or the thread is interrupted.
+	 */
+	protected void receiveBlocking(DatagramSocket socket, int shard, ExecutorService threadPool, boolean zeroCopy) {
+		BufferPool bufferPool = this.bufferPool;
+		DatagramPacket packet = null;
+		while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+			ByteBuffer buffer = bufferPool.acquire(maxPacketSize);
+			try {
+				// the zero-copy handlers don't keep the packet, so it can be reused
+				if (packet == null || !zeroCopy)
+					packet = new DatagramPacket(buffer.array(), buffer.arrayOffset(), maxPacketSize);
+				else
+					packet.setData(buffer.array(), buffer.arrayOffset(), maxPacketSize);
+				socket.receive(packet);
+				pendingPackets.incrementAndGet();
+				try {
+					if (zeroCopy)
+						execute(threadPool, new UdpPacketHandler(this, new UdpPacket(bufferPool, buffer, packet.getLength(), packet.getAddress(),
+								packet.getPort(), shard)), packet.getAddress(), packet.getPort());
+					else
+						execute(threadPool, new PacketHandler(this, packet, buffer, shard), packet.getAddress(), packet.getPort());
+					buffer = null; // released by the handler
+				} catch (RejectedExecutionException e) {
+					pendingPackets.decrementAndGet();
+					rejectedPackets.incrementAndGet();
+				}
+			} catch (IOException e) {
+				if (!Thread.currentThread().isInterrupted() && !socket.isClosed())
+					callOnIOException(e, "Error while receiving on shard " + shard);
+			} finally {
+				if (buffer != null)
+					bufferPool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Opens a socket bound to the given port, using <code>SO_REUSEPORT</code> if the server has several shards.
+	 */
+	protected DatagramSocket openSocket(int port) throws IOException {
+		DatagramSocket socket = new MulticastSocket(null);
+		try {
+			socket.setReuseAddress(false); // enabled by MulticastSocket
+			if (shardCount > 1)
+				ReusePort.enable(socket);
+			socket.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		sockets.add(socket);
+		return socket;
+	}
+
+	/**
+	 * Closes all sockets, which terminates all receive loops.
+	 */
+	protected void closeSockets() {
+		for (DatagramSocket s : sockets)
+			s.close();
+	}
+
+	protected void stopShards(Thread[] threads) {
+		if (threads == null)
+			return;
+		closeSockets();
+		for (Thread t : threads) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Opens a non-blocking channel bound to the given port. Unconnected channels use <code>SO_REUSEPORT</code> if the server has several shards.
+	 * 
+	 * @param peer
+	 *            the peer to connect the channel to, <code>null</code> for an unconnected channel
+	 */
+	protected DatagramChannel openChannel(int port, InetSocketAddress peer) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().setBroadcast(true); // enabled by default on sockets, but not on channels
+			if (!connectedPeers.isEmpty())
+				channel.socket().setReuseAddress(true); // the connected channels share the port
+			if (peer == null && shardCount > 1)
+				ReusePort.enable(channel);
+			channel.socket().bind(new InetSocketAddress(port));
+			if (peer != null)
+				channel.connect(peer);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		channels.add(channel);
+		return channel;
+	}
+
+	protected void runEventLoops() {
+		SelectorLoop[] shared = sharedEventLoops;
+		SelectorLoop[] loops = (shared != null ? shared : new SelectorLoop[Math.max(shardCount, readerCount)]);
+		ExecutorService threadPool = null;
+		boolean started = false;
+		try {
+			DatagramChannel first = openChannel(port, null);
+			synchronized (multicastLock) {
+				channel = first;
+				startMulticast();
+			}
+			port = channel.socket().getLocalPort();
+			DatagramChannel[] shardChannels = new DatagramChannel[shardCount];
+			shardChannels[0] = channel;
+			for (int i = 1; i < shardChannels.length; i++)
+				shardChannels[i] = openChannel(port, null);
+			List<InetSocketAddress> peers = getConnectedPeers();
+			DatagramChannel[] peerChannels = new DatagramChannel[peers.size()];
+			for (int i = 0; i < peerChannels.length; i++)
+				peerChannels[i] = openChannel(port, peers.get(i));
+
+			if (shared == null) {
+				ThreadFactory factory = new DaemonThreadFactory(new RenamingThreadFactory(Thread.currentThread().getName() + "-Reader-"), daemon);
+				for (int i = 0; i < loops.length; i++) {
+					loops[i] = new SelectorLoop(factory);
+					loops[i].start();
+				}
+			}
+
+			threadPool = createWorkerPool();
+			keyedExecutor = (keyedBySource ? new KeyedSerialExecutor(threadPool) : null);
+			boolean zeroCopy = (listener instanceof UdpPacketListener);
+			for (int i = 0; i < shardChannels.length; i++)
+				register(loops[i % loops.length], new ChannelReader(shardChannels[i], null, threadPool, zeroCopy, i));
+			for (int i = 0; i < peerChannels.length; i++) {
+				int shard = shardChannels.length + i;
+				register(loops[shard % loops.length], new ChannelReader(peerChannels[i], peers.get(i), threadPool, zeroCopy, shard));
+			}
+
+			started = true;
+			callOnServerStarted();
+
+			try {
+				while (true)
+					Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				// stopped by setRunning(false)
+			}
+		} catch (BindException e) {
+			thread = null;
+			callOnIOException(e, "Can't bind port");
+		} catch (IOException e) {
+			thread = null;
+			callOnIOException(e, "Couldn't open channel on port " + port + "!");
+		} finally {
+			closeChannels(loops);
+			drainOnShutdown();
+			releaseWorkerPool(threadPool);
+			if (shared == null) {
+				for (SelectorLoop loop : loops) {
+					if (loop != null)
+						loop.stop(true);
+				}
+			}
+			channel = null;
+
+			if (started)
+				callOnServerStopped();
+		}
+	}
+
+	/**
+	 * Registers the reader's channel on the loop.
+	 */
+	protected void register(final SelectorLoop loop, final ChannelReader reader) {
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					loop.register(reader.channel, SelectionKey.OP_READ, reader);
+				} catch (ClosedChannelException e) {
+					// the server has been stopped meanwhile
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes all channels and wakes up the loops, so they release the ports.
+	 */
+	protected void closeChannels(SelectorLoop[] loops) {
+		for (DatagramChannel c : channels) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+		channels.clear();
+		for (SelectorLoop loop : loops) {
+			if (loop == null)
+				continue;
+			try {
+				loop.execute(new Runnable() {
+					public void run() {
+					}
+				});
+			} catch (RejectedExecutionException e) {
+			}
+		}
+	}
+
+	/**
+	 * Applies the multicast options and joins the groups on the socket or channel just opened. Has to be called holding the multicast lock.
+	 */
+	protected void startMulticast() {
+		updateMulticastOptions();
+		for (Membership m : memberships) {
+			m.key = null;
+			try {
+				join(m);
+			} catch (IOException e) {
+				callOnIOException(e, "Couldn't join group " + m.group.getHostAddress());
+			}
+		}
+	}
+
+	/**
+	 * Joins the group on the first socket or channel, if the server is running. Has to be called holding the multicast lock.
+	 */
+	protected void join(Membership m) throws IOException {
+		DatagramChannel channel = this.channel;
+		DatagramSocket socket = this.socket;
+		if (channel != null && channel.isOpen())
+			m.key = MulticastChannels.join(channel, m.group, m.ni);
+		else if (socket instanceof MulticastSocket && !socket.isClosed())
+			((MulticastSocket) socket).joinGroup(new InetSocketAddress(m.group, 0), m.ni);
+	}
+
+	/**
+	 * Leaves the group on the first socket or channel, if the server is running. Has to be called holding the multicast lock.
+	 */
+	protected void leave(Membership m) throws IOException {
+		DatagramChannel channel = this.channel;
+		DatagramSocket socket = this.socket;
+		if (channel != null && channel.isOpen()) {
+			if (m.key != null)
+				MulticastChannels.drop(m.key);
+		} else if (socket instanceof MulticastSocket && !socket.isClosed()) {
+			((MulticastSocket) socket).leaveGroup(new InetSocketAddress(m.group, 0), m.ni);
 		}
+		m.key = null;
+	}
+
+	/**
+	 * Applies the multicast options to the first socket or channel, the socket used for sending while the server isn't running and the
+	 * {@link #getSender() sender}. Has to be called holding the multicast lock.
+	 */
+	protected void updateMulticastOptions() {
+		try {
+			DatagramChannel channel = this.channel;
+			DatagramSocket socket = this.socket;
+			if (channel != null && channel.isOpen()) {
+				if (MulticastChannels.isSupported()) {
+					MulticastChannels.setOption(channel, MulticastChannels.IP_MULTICAST_TTL, timeToLive);
+					MulticastChannels.setOption(channel, MulticastChannels.IP_MULTICAST_LOOP, multicastLoopback);
+					if (multicastInterface != null)
+						MulticastChannels.setOption(channel, MulticastChannels.IP_MULTICAST_IF, multicastInterface);
+				}
+			} else if (socket instanceof MulticastSocket && !socket.isClosed()) {
+				configureMulticast((MulticastSocket) socket);
+			}
+			if (sendSocket != null && !sendSocket.isClosed())
+				configureMulticast(sendSocket);
+			UdpSender sender = this.sender.get();
+			if (sender != null && sender.getSocket() instanceof MulticastSocket)
+				configureMulticast((MulticastSocket) sender.getSocket());
+		} catch (IOException e) {
+			callOnIOException(e, "Couldn't set multicast options");
+		}
+	}
+
+	protected void configureMulticast(MulticastSocket socket) throws IOException {
+		socket.setTimeToLive(timeToLive);
+		MulticastChannels.setLoopback(socket, multicastLoopback);
+		if (multicastInterface != null)
+			socket.setNetworkInterface(multicastInterface);
+	}
+
+	/**
+	 * Waits until all received packets have been handled. At the deadline, packets still queued are discarded and, if the server uses its own
+	 * worker pool, the handlers still running are interrupted.
+	 */
+	@Override
+	protected ShutdownResult drain(long deadline) {
+		int inFlight = pendingPackets.get();
+		int remaining = awaitDrained(pendingPackets, deadline);
+		return new ShutdownResult(Math.max(0, inFlight - remaining), remaining);
 	}
 
 	/* Listener callers */
@@ -193,6 +1119,21 @@ public class UdpServer extends Server<UdpServerListener> {
 		}
 	}
 
+	protected void callOnReceivedPacket(UdpPacket packet) {
+		try {
+			UdpServerListener listener = this.listener;
+			if (listener instanceof UdpPacketListener) {
+				((UdpPacketListener) listener).onReceivedPacket(this, packet);
+			} else {
+				// the listener has been replaced while running
+				byte[] data = packet.toByteArray();
+				listener.onReceivedPacket(this, new DatagramPacket(data, data.length, packet.getAddress(), packet.getPort()));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	protected void callOnSentPacket(DatagramPacket packet, boolean overSocket) {
 		try {
 			listener.onSentPacket(this, packet, overSocket);
@@ -202,7 +1143,8 @@ public class UdpServer extends Server<UdpServerListener> {
 	}
 
 	/**
-	 * Sends a UDP packet with the given byte array to the given port on the given host.
+	 * Sends a UDP packet with the given byte array to the given port on the given host. While the server isn't running, the packet is sent from a
+	 * socket which is kept open for further packets until {@link #closeSenders()}.
 	 * 
 	 * @param host
 	 *            the target host
@@ -214,13 +1156,16 @@ public class UdpServer extends Server<UdpServerListener> {
 	public void sendPacket(InetAddress host, int port, byte[] data) {
 		DatagramPacket packet = new DatagramPacket(data, data.length, host, port);
 		try {
-			if (isRunning() && socket != null) {
+			DatagramChannel channel = this.channel;
+			if (isRunning() && channel != null) {
+				if (channel.send(ByteBuffer.wrap(data), new InetSocketAddress(host, port)) == 0)
+					throw new IOException("Send buffer is full, packet dropped");
+				callOnSentPacket(packet, true);
+			} else if (isRunning() && socket != null) {
 				socket.send(packet);
 				callOnSentPacket(packet, true);
 			} else {
-				DatagramSocket fallbackSocket = new DatagramSocket();
-				fallbackSocket.send(packet);
-				fallbackSocket.close();
+				getSendSocket().send(packet);
 				callOnSentPacket(packet, false);
 			}
 		} catch (IOException e) {
@@ -228,6 +1173,69 @@ public class UdpServer extends Server<UdpServerListener> {
 		}
 	}
 
+	/**
+	 * @return the socket {@link #sendPacket(InetAddress, int, byte[])} sends from while the server isn't running, opened on first use
+	 */
+	protected DatagramSocket getSendSocket() throws IOException {
+		synchronized (multicastLock) {
+			if (sendSocket == null || sendSocket.isClosed()) {
+				sendSocket = new MulticastSocket();
+				updateMulticastOptions();
+			}
+			return sendSocket;
+		}
+	}
+
+	/**
+	 * Returns a sender queueing packets without blocking, independent of the server's state. Unlike
+	 * {@link #sendPacket(InetAddress, int, byte[])}, the data must not be modified until it has been sent. The sender is created on first use and
+	 * keeps its socket and writer thread until {@link #closeSenders()}. Its outcome is reported to the listener, with <code>overSocket</code> set
+	 * to <code>false</code>.
+	 * 
+	 * @return the sender of this server
+	 * @throws IOException
+	 *             if the sender's socket couldn't be opened
+	 */
+	public UdpSender getSender() throws IOException {
+		UdpSender sender = this.sender.get();
+		if (sender != null)
+			return sender;
+		sender = new UdpSender(new MulticastSocket());
+		sender.setCallback(new UdpSender.Callback() {
+			public void onSent(DatagramPacket packet) {
+				callOnSentPacket(packet, false);
+			}
+
+			public void onSendFailed(DatagramPacket packet, IOException e) {
+				callOnIOException(e, "Error while sending: " + new String(packet.getData(), packet.getOffset(), packet.getLength()));
+			}
+		});
+		if (this.sender.compareAndSet(null, sender)) {
+			synchronized (multicastLock) {
+				updateMulticastOptions();
+			}
+			return sender;
+		}
+		sender.close(false); // created concurrently by another thread
+		return this.sender.get();
+	}
+
+	/**
+	 * Closes the socket used for sending while the server isn't running and the {@link #getSender() sender}, after it has sent the packets still
+	 * queued. Both are opened again when needed. Doesn't affect a running server.
+	 */
+	public void closeSenders() {
+		synchronized (multicastLock) {
+			if (sendSocket != null) {
+				sendSocket.close();
+				sendSocket = null;
+			}
+		}
+		UdpSender sender = this.sender.getAndSet(null);
+		if (sender != null)
+			sender.close(true);
+	}
+
 	/**
 	 * Sends a UDP packet with the given String to the given port on the given host.
 	 * 
@@ -250,11 +1258,8 @@ public class UdpServer extends Server<UdpServerListener> {
 	 * @param data
 	 *            the byte array to send
 	 */
-	synchronized public void sendBroadcastPacket(int port, byte[] data) {
-		try {
-			sendPacket(InetAddress.getByName("255.255.255.255"), port, data);
-		} catch (UnknownHostException e) {
-		}
+	public void sendBroadcastPacket(int port, byte[] data) {
+		sendPacket(BROADCAST_ADDRESS, port, data);
 	}
 
 	/**
@@ -265,8 +1270,41 @@ public class UdpServer extends Server<UdpServerListener> {
 	 * @param msg
 	 *            the String to send
 	 */
-	synchronized public void sendBroadcastPacket(int port, String msg) {
+	public void sendBroadcastPacket(int port, String msg) {
 		sendBroadcastPacket(port, msg.getBytes());
 	}
 
+	/**
+	 * Sends a UDP packet with the given byte array to a multicast group, using the configured {@link #setTimeToLive(int) time to live},
+	 * {@link #setMulticastInterface(NetworkInterface) interface} and {@link #setMulticastLoopback(boolean) loopback mode}. The server doesn't have
+	 * to be a member of the group.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param port
+	 *            the target port
+	 * @param data
+	 *            the byte array to send
+	 */
+	public void sendGroupPacket(InetAddress group, int port, byte[] data) {
+		if (group == null || !group.isMulticastAddress())
+			throw new IllegalArgumentException("group has to be a multicast address");
+		sendPacket(group, port, data);
+	}
+
+	/**
+	 * Sends a UDP packet with the given String to a multicast group.
+	 * 
+	 * @param group
+	 *            the multicast address of the group
+	 * @param port
+	 *            the target port
+	 * @param msg
+	 *            the String to send
+	 * @see #sendGroupPacket(InetAddress, int, byte[])
+	 */
+	public void sendGroupPacket(InetAddress group, int port, String msg) {
+		sendGroupPacket(group, port, msg.getBytes());
+	}
+
 }
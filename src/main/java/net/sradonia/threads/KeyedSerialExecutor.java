@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.threads;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>
+ * Runs tasks on top of another {@link Executor}, for example a thread pool, so that tasks submitted with the same key are run sequentially in the
+ * order they have been submitted, while tasks with different keys run in parallel. Handlers keyed by their peer for example don't need any locking
+ * against each other.
+ * </p>
+ * 
+ * <p>
+ * Every key with pending tasks occupies at most one thread of the underlying executor. To give other keys a chance, the thread is handed back to
+ * the executor after a number of tasks and the remaining tasks of the key are submitted again. Keys without pending tasks are forgotten, so any
+ * number of keys may be used. Keys have to implement {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class KeyedSerialExecutor {
+
+	private final Executor executor;
+	private final int maxTasksPerRun;
+	private final ConcurrentMap<Object, SerialQueue> queues = new ConcurrentHashMap<Object, SerialQueue>();
+
+	/**
+	 * Creates a new executor handing the thread back after 16 tasks of the same key.
+	 * 
+	 * @param executor
+	 *            the executor to run the tasks on
+	 */
+	public KeyedSerialExecutor(Executor executor) {
+		this(executor, 16);
+	}
+
+	/**
+	 * @param executor
+	 *            the executor to run the tasks on
+	 * @param maxTasksPerRun
+	 *            the maximum number of tasks of the same key run before the thread is handed back to the executor
+	 */
+	public KeyedSerialExecutor(Executor executor, int maxTasksPerRun) {
+		if (executor == null)
+			throw new IllegalArgumentException("executor can't be null");
+		if (maxTasksPerRun < 1)
+			throw new IllegalArgumentException("maxTasksPerRun has to be > 0");
+		this.executor = executor;
+		this.maxTasksPerRun = maxTasksPerRun;
+	}
+
+	/**
+	 * Runs the task after all tasks previously submitted with the same key have finished.
+	 * 
+	 * @param key
+	 *            the key of the task
+	 * @param task
+	 *            the task to run
+	 * @throws RejectedExecutionException
+	 *             if the underlying executor rejected the task. Tasks of the same key accepted meanwhile by other threads are run by the calling
+	 *             thread before the exception is thrown, so no accepted task is lost.
+	 */
+	public void execute(Object key, Runnable task) {
+		if (key == null)
+			throw new IllegalArgumentException("key can't be null");
+		if (task == null)
+			throw new IllegalArgumentException("task can't be null");
+		while (true) {
+			SerialQueue queue = queues.get(key);
+			if (queue == null) {
+				SerialQueue created = new SerialQueue(key);
+				queue = queues.putIfAbsent(key, created);
+				if (queue == null)
+					queue = created;
+			}
+			if (queue.add(task))
+				return;
+			// the queue has just been retired, try again with a new one
+		}
+	}
+
+	/**
+	 * @return the number of keys with tasks queued or running
+	 */
+	public int getActiveKeyCount() {
+		return queues.size();
+	}
+
+	/**
+	 * @return the underlying executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * The pending tasks of a key. Submitted to the underlying executor whenever it has tasks and isn't running yet.
+	 */
+	private final class SerialQueue implements Runnable {
+		private final Object key;
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		private boolean running;
+		private boolean retired;
+
+		SerialQueue(Object key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return <code>false</code> if the queue has been retired and the task has to be added to a new one
+		 */
+		boolean add(Runnable task) {
+			synchronized (this) {
+				if (retired)
+					return false;
+				tasks.add(task);
+				if (running)
+					return true;
+				running = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					tasks.remove(task);
+					if (tasks.isEmpty()) {
+						running = false;
+						retire();
+						throw e;
+					}
+				}
+				// tasks added meanwhile have already been accepted, run them here as nothing else will
+				run();
+				throw e;
+			}
+			return true;
+		}
+
+		/**
+		 * Has to be called holding the lock.
+		 */
+		private void retire() {
+			retired = true;
+			queues.remove(key, this);
+		}
+
+		public void run() {
+			while (true) {
+				for (int i = 0; i < maxTasksPerRun; i++) {
+					Runnable task;
+					synchronized (this) {
+						task = tasks.poll();
+						if (task == null) {
+							running = false;
+							retire();
+							return;
+						}
+					}
+					try {
+						task.run();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				// hand the thread back, the remaining tasks are run as a new task
+				try {
+					executor.execute(this);
+					return;
+				} catch (RejectedExecutionException e) {
+					// keep running them on this thread
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.threads;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * This {@link ThreadFactory} implementation creates virtual threads named with the given prefix and a sequence number, if the running JVM supports
+ * them (Java 21 or later). Otherwise it falls back to named daemon platform threads.
+ * </p>
+ * 
+ * <p>
+ * Virtual threads are always daemon threads, so they must not be wrapped into a {@link DaemonThreadFactory} configured for non-daemon threads.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_FACTORY;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderFactory = null;
+		Method newThreadPerTaskExecutor = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builder.getMethod("name", String.class, long.class);
+			builderFactory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_FACTORY = builderFactory;
+		NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+	}
+
+	private final ThreadFactory threadFactory;
+	private final boolean virtual;
+
+	/**
+	 * Creates a new factory naming the threads with the given prefix followed by a sequence number starting at 1.
+	 * 
+	 * @param name
+	 *            the thread name prefix
+	 */
+	public VirtualThreadFactory(String name) {
+		ThreadFactory virtualFactory = null;
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, name, 1L);
+				virtualFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+			} catch (IllegalAccessException e) {
+				virtualFactory = null;
+			} catch (InvocationTargetException e) {
+				virtualFactory = null;
+			}
+		}
+		this.virtual = (virtualFactory != null);
+		this.threadFactory = (virtual ? virtualFactory : new DaemonThreadFactory(new RenamingThreadFactory(name)));
+	}
+
+	/**
+	 * @return <code>true</code> if the running JVM supports virtual threads
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return <code>true</code> if this factory creates virtual threads, <code>false</code> if it falls back to platform threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		return threadFactory.newThread(r);
+	}
+
+	/**
+	 * Creates an executor starting a new thread of this factory for every task. Unlike a thread pool, it doesn't limit the number of concurrent
+	 * tasks, which is what virtual threads are made for.
+	 * 
+	 * @return the executor, or <code>null</code> if this factory doesn't create virtual threads
+	 */
+	public ExecutorService newThreadPerTaskExecutor() {
+		if (!virtual)
+			return null;
+		try {
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.time;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sradonia.threads.DaemonThreadFactory;
+import net.sradonia.threads.RenamingThreadFactory;
+
+/**
+ * <p>
+ * A timer for large numbers of short-lived timeouts, using a single thread for all scheduled tasks.
+ * </p>
+ * 
+ * <p>
+ * Tasks are hashed into the buckets of a wheel by their deadline. Every tick the worker thread advances to the next bucket and runs its expired
+ * tasks, so both scheduling and cancelling a task take constant time, independent of the number of pending tasks. The price is precision: a task is
+ * run up to one tick after its deadline.
+ * </p>
+ * 
+ * <p>
+ * Tasks are run by the worker thread and should therefore be short; longer work should be handed over to an executor. The worker thread is started
+ * when the first task is scheduled.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class HashedTimingWheel {
+
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private static final int INIT = 0;
+	private static final int STARTED = 1;
+	private static final int STOPPED = 2;
+
+	/**
+	 * A doubly-linked list of timeouts. Only accessed by the worker thread.
+	 */
+	static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null)
+				timeout.prev.next = next;
+			if (next != null)
+				next.prev = timeout.prev;
+			if (timeout == head)
+				head = next;
+			if (timeout == tail)
+				tail = timeout.prev;
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Runs all timeouts of this bucket whose last round has come.
+		 */
+		void expire() {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Thread worker;
+
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicInteger workerState = new AtomicInteger(INIT);
+
+	private volatile long startTime;
+	private long tick;
+
+	/**
+	 * Creates a new timing wheel with a tick of 10 milliseconds and 512 buckets, using a daemon worker thread.
+	 */
+	public HashedTimingWheel() {
+		this(10, TimeUnit.MILLISECONDS, 512);
+	}
+
+	/**
+	 * Creates a new timing wheel using a daemon worker thread.
+	 * 
+	 * @param tickDuration
+	 *            the duration of one tick, which is the precision of the timer
+	 * @param unit
+	 *            the unit of the tick duration
+	 * @param ticksPerWheel
+	 *            the number of buckets, will be rounded up to the next power of two
+	 */
+	public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		this(tickDuration, unit, ticksPerWheel, new DaemonThreadFactory(new RenamingThreadFactory("HashedTimingWheel-")));
+	}
+
+	/**
+	 * Creates a new timing wheel.
+	 * 
+	 * @param tickDuration
+	 *            the duration of one tick, which is the precision of the timer
+	 * @param unit
+	 *            the unit of the tick duration
+	 * @param ticksPerWheel
+	 *            the number of buckets, will be rounded up to the next power of two
+	 * @param threadFactory
+	 *            the factory creating the worker thread
+	 */
+	public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, ThreadFactory threadFactory) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration has to be > 0");
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+			throw new IllegalArgumentException("ticksPerWheel has to be > 0 and <= 2^30");
+		if (threadFactory == null)
+			throw new IllegalArgumentException("threadFactory can't be null");
+
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel)
+			size <<= 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		mask = size - 1;
+		tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+
+		worker = threadFactory.newThread(new Runnable() {
+			public void run() {
+				work();
+			}
+		});
+	}
+
+	/**
+	 * Schedules a task to be run once after the given delay.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @param delay
+	 *            the delay, values <= 0 run the task with the next tick
+	 * @param unit
+	 *            the unit of the delay
+	 * @return the handle to cancel the task
+	 * @throws IllegalStateException
+	 *             if the wheel has been stopped
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new IllegalArgumentException("task can't be null");
+		start();
+		long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+		if (deadline < 0) // overflow of very long delays
+			deadline = Long.MAX_VALUE;
+		Timeout timeout = new Timeout(this, task, deadline);
+		pending.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	private void start() {
+		switch (workerState.get()) {
+		case INIT:
+			if (workerState.compareAndSet(INIT, STARTED)) {
+				startTime = System.nanoTime();
+				worker.start();
+			}
+			while (startTime == 0)
+				Thread.yield();
+			break;
+		case STARTED:
+			break;
+		default:
+			throw new IllegalStateException("timing wheel has been stopped");
+		}
+	}
+
+	/**
+	 * Stops the worker thread. Pending tasks will not be run any more.
+	 */
+	public void stop() {
+		if (workerState.getAndSet(STOPPED) == STARTED) {
+			worker.interrupt();
+			if (Thread.currentThread() != worker) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of scheduled tasks which have neither been run nor cancelled yet
+	 */
+	public long getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * @param unit
+	 *            the unit of the returned value
+	 * @return the duration of one tick
+	 */
+	public long getTickDuration(TimeUnit unit) {
+		return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	void expired() {
+		pending.decrementAndGet();
+	}
+
+	void cancelled(Timeout timeout) {
+		pending.decrementAndGet();
+		cancelledTimeouts.add(timeout);
+	}
+
+	private void work() {
+		while (workerState.get() == STARTED) {
+			long now = waitForNextTick();
+			if (now < 0)
+				break;
+			removeCancelled();
+			transferNew();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleeps until the end of the current tick.
+	 * 
+	 * @return the current time relative to the start time, <code>-1</code> if the worker has been interrupted
+	 */
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long now = System.nanoTime() - startTime;
+			long sleepMillis = (deadline - now + 999999) / 1000000;
+			if (sleepMillis <= 0)
+				return now;
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if (workerState.get() == STOPPED)
+					return -1;
+			}
+		}
+	}
+
+	private void transferNew() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = newTimeouts.poll();
+			if (timeout == null)
+				break;
+			if (timeout.isCancelled())
+				continue;
+			long expiryTick = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			// deadlines already passed are run with the current tick
+			wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HashedTimingWheel[tick=" + tickNanos + "ns, buckets=" + wheel.length + ", pending=" + pending.get() + "]";
+	}
+}
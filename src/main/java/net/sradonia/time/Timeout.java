@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.time;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A handle to a task scheduled on a {@link HashedTimingWheel}.
+ * 
+ * @author Stefan Rado
+ */
+public final class Timeout {
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+	final HashedTimingWheel wheel;
+	final Runnable task;
+	final long deadline;
+
+	/* only accessed by the worker thread of the wheel */
+	long remainingRounds;
+	Timeout next;
+	Timeout prev;
+	HashedTimingWheel.Bucket bucket;
+
+	private volatile int state = PENDING;
+
+	Timeout(HashedTimingWheel wheel, Runnable task, long deadline) {
+		this.wheel = wheel;
+		this.task = task;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return the scheduled task
+	 */
+	public Runnable getTask() {
+		return task;
+	}
+
+	/**
+	 * Cancels the task. Has no effect if the task has already been run or cancelled.
+	 * 
+	 * @return <code>true</code> if the task has been cancelled by this call
+	 */
+	public boolean cancel() {
+		if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+			return false;
+		wheel.cancelled(this);
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the task has been cancelled
+	 */
+	public boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	/**
+	 * @return <code>true</code> if the task has been run or is running right now
+	 */
+	public boolean isExpired() {
+		return state == EXPIRED;
+	}
+
+	/**
+	 * Runs the task if it hasn't been cancelled. Called by the worker thread of the wheel. Anything thrown by the task is printed and swallowed.
+	 */
+	void expire() {
+		if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+			return;
+		wheel.expired();
+		try {
+			task.run();
+		} catch (Throwable t) {
+			// an error must not kill the worker thread, which is shared by all timeouts of the wheel
+			t.printStackTrace();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Timeout[task=" + task + ", state=" + (state == PENDING ? "pending" : (state == CANCELLED ? "cancelled" : "expired")) + "]";
+	}
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A counter for values updated by many threads concurrently.
+ * </p>
+ * 
+ * <p>
+ * The value is spread over several cells, each on its own cache line. Threads update the cell selected by their thread id, so concurrent updates
+ * rarely contend for the same cache line. Reading the value sums up all cells and is therefore more expensive than updating it.
+ * </p>
+ * 
+ * @author Stefan Rado
+ */
+public class StripedCounter {
+
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2)
+			stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	/**
+	 * Number of longs in a 64 byte cache line.
+	 */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+	/**
+	 * Adds the given value.
+	 * 
+	 * @param x
+	 *            the value to add
+	 */
+	public void add(long x) {
+		cells.getAndAdd(cell(), x);
+	}
+
+	/**
+	 * Adds one.
+	 */
+	public void increment() {
+		cells.getAndIncrement(cell());
+	}
+
+	/**
+	 * Returns the current sum. Concurrent updates may or may not be included.
+	 * 
+	 * @return the sum of all cells
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	/**
+	 * Resets the counter to zero. Concurrent updates may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PADDING, 0);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
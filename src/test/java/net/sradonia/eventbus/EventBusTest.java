@@ -19,6 +19,18 @@ package net.sradonia.eventbus;
 
 import static org.junit.Assert.*;
 
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sradonia.time.Timeout;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -166,6 +178,216 @@ public class EventBusTest {
 		fail("Not yet implemented");
 	}
 
+	@Test
+	public void testEdtEventSubscriber() throws Exception {
+		EventBus eb = EventBus.getEventBus();
+		eb.subscribe("topic", new EdtEventSubscriber(new EventSubscriber() {
+			public void onEvent(String topic, Object event) {
+				assertTrue(EventQueue.isDispatchThread());
+				eventSubscriber.onEvent(topic, event);
+			}
+		}));
+
+		assertTrue(eb.publish("topic", "event"));
+		EventQueue.invokeAndWait(new Runnable() {
+			public void run() {
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test
+	public void testPublishPartitioned() throws Exception {
+		EventBus eb = EventBus.getEventBus();
+		eb.setPartitionCount(4);
+		final CountDownLatch latch = new CountDownLatch(200);
+		final List<Integer> even = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> odd = Collections.synchronizedList(new ArrayList<Integer>());
+		eb.subscribe(Integer.class, new EventSubscriber() {
+			public void onEvent(String topic, Object event) {
+				Integer i = (Integer) event;
+				(i % 2 == 0 ? even : odd).add(i);
+				latch.countDown();
+			}
+		});
+
+		for (int i = 0; i < 200; i++)
+			assertTrue(eb.publishPartitioned(i % 2 == 0 ? "even" : "odd", "topic", i));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(2 * i), even.get(i));
+			assertEquals(Integer.valueOf(2 * i + 1), odd.get(i));
+		}
+		eb.setPartitionCount(0);
+	}
+
+	@Test
+	public void testMetrics() {
+		EventBus eb = EventBus.getEventBus();
+		EventBusMetrics metrics = new EventBusMetrics();
+		metrics.setSlowThreshold(0, TimeUnit.NANOSECONDS);
+		metrics.setSampleInterval(1);
+		eb.setMetrics(metrics);
+		eb.subscribe("topic", eventSubscriber);
+
+		assertTrue(eb.publish("topic", "event"));
+		assertTrue(eb.publish("topic", "event"));
+		List<ListenerStatistics> statistics = metrics.snapshot();
+		assertEquals(1, statistics.size());
+		assertSame(eventSubscriber, statistics.get(0).getListener());
+		assertEquals(2, statistics.get(0).getInvocations());
+		assertEquals(2, statistics.get(0).getSamples());
+		assertEquals(1, metrics.snapshotSlowListeners().size());
+	}
+
+	@Test
+	public void testChannel() {
+		EventBus eb = EventBus.getEventBus();
+		Channel<String> channel = eb.channel(String.class, "topic");
+		assertSame(channel, eb.channel(String.class, "topic"));
+		assertEquals(0, channel.getSubscriberCount());
+
+		eb.subscribe(CharSequence.class, eventSubscriber);
+		eb.subscribeExactly("topic", eventSubscriber);
+		assertEquals(1, channel.getSubscriberCount());
+		assertTrue(channel.publish("event"));
+		assertTrue(called);
+
+		eb.subscribe(vetoListener);
+		assertFalse(channel.publish("no veto"));
+	}
+
+	@Test
+	public void testRequest() throws Exception {
+		EventBus eb = EventBus.getEventBus();
+		for (int i = 0; i < 3; i++) {
+			final int responder = i;
+			eb.subscribeExactly("topic", new EventSubscriber() {
+				public void onEvent(String topic, Object event) {
+					Request request = (Request) event;
+					assertEquals("event", request.getPayload());
+					request.reply(responder);
+				}
+			});
+		}
+
+		assertEquals(0, eb.request("topic", "event", 1, TimeUnit.SECONDS).get());
+		assertEquals(Arrays.<Object> asList(0, 1), eb.request("topic", "event", 2, 1, TimeUnit.SECONDS).get());
+		assertEquals(Arrays.<Object> asList(0, 1, 2), eb.request("topic", "event", 0, 50, TimeUnit.MILLISECONDS).get());
+		try {
+			eb.request("other", "event", 50, TimeUnit.MILLISECONDS).get();
+			fail("request didn't time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void testRateLimit() {
+		EventBus eb = EventBus.getEventBus();
+		RateLimiter limiter = eb.setRateLimit("topic", 0.001, 2, ThrottlePolicy.REJECT);
+		eb.subscribe("topic", eventSubscriber);
+		Channel<String> channel = eb.channel(String.class, "topic");
+
+		assertTrue(eb.publish("topic", "event"));
+		assertTrue(channel.publish("event"));
+		assertFalse(eb.publish("topic", "event"));
+		assertFalse(channel.publish("event"));
+		assertEquals(2, limiter.getThrottledCount());
+
+		eb.setRateLimit("topic", 0.001, 1, ThrottlePolicy.SAMPLE);
+		assertTrue(eb.publish("topic", "event"));
+		called = false;
+		assertTrue(eb.publish("topic", "event"));
+		assertFalse(called);
+
+		eb.removeRateLimit("topic");
+		assertTrue(channel.publish("event"));
+		assertTrue(called);
+	}
+
+	@Test
+	public void testPublishAfter() throws Exception {
+		EventBus eb = EventBus.getEventBus();
+		final CountDownLatch latch = new CountDownLatch(1);
+		eb.subscribe("topic", new EventSubscriber() {
+			public void onEvent(String topic, Object event) {
+				assertEquals("event", event);
+				latch.countDown();
+			}
+		});
+
+		Timeout cancelled = eb.publishAfter(50, TimeUnit.MILLISECONDS, "topic", "cancelled");
+		assertTrue(cancelled.cancel());
+		long start = System.nanoTime();
+		Timeout timeout = eb.publishAfter(50, TimeUnit.MILLISECONDS, "topic", "event");
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertTrue(cancelled.isCancelled());
+	}
+
+	@Test
+	public void testTopic() {
+		EventBus eb = EventBus.getEventBus();
+		Topic topic = eb.topic("topic");
+		assertSame(topic, eb.topic("topic"));
+		assertNotSame(topic, eb.topic("other"));
+		assertEquals("topic", topic.getName());
+
+		eb.subscribe("to.*", eventSubscriber);
+		assertTrue(eb.publishInterned(topic, "event"));
+		assertTrue(called);
+
+		eb.subscribe(vetoListener);
+		assertFalse(eb.publishInterned(topic, "no veto"));
+		assertFalse(eb.publish("topic", "no veto"));
+
+		try {
+			EventBus.getEventBus().publishInterned(topic, "event");
+			fail("topic of another bus accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testTopicLimit() {
+		TopicTable table = new TopicTable(EventBus.getEventBus());
+		Topic explicit = table.intern("explicit");
+		table.intern("other");
+		// explicitly interned topics don't count against the limit
+		Topic implicit = table.internImplicitly("implicit", 1);
+		assertNotNull(implicit);
+		assertNull(table.internImplicitly("over limit", 1));
+		assertSame(implicit, table.internImplicitly("implicit", 1));
+		assertSame(explicit, table.internImplicitly("explicit", 1));
+		assertEquals(3, table.size());
+	}
+
+	@Test
+	public void testListenerRegistry() {
+		ListenerRegistry<String, EventSubscriber> registry = new ListenerRegistry<String, EventSubscriber>();
+		assertTrue(registry.add("topic", eventSubscriber));
+		assertFalse(registry.add("topic", eventSubscriber));
+		for (int i = 0; i < 20; i++)
+			assertTrue(registry.add("topic" + i, eventSubscriber));
+		assertEquals(21, registry.size());
+
+		EventSubscriber second = new EventSubscriber() {
+			public void onEvent(String topic, Object event) {
+			}
+		};
+		assertTrue(registry.add("topic", second));
+		List<EventSubscriber> collected = new ArrayList<EventSubscriber>();
+		registry.collect("topic", collected);
+		assertEquals(Arrays.asList(eventSubscriber, second), collected);
+
+		collected.clear();
+		registry.collect("unknown", collected);
+		assertTrue(collected.isEmpty());
+	}
+
 	@Test
 	public void testPublishObject() {
 		fail("Not yet implemented");
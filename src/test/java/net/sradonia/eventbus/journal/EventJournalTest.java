@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.eventbus.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sradonia.eventbus.EventSubscriber;
+
+public class EventJournalTest {
+
+	private File directory;
+
+	/**
+	 * Collects the replayed events as "topic=event".
+	 */
+	static class Collector implements EventSubscriber {
+		final List<String> events = new ArrayList<String>();
+
+		public void onEvent(String topic, Object event) {
+			events.add(topic + "=" + event);
+		}
+	}
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("journal", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	private int countSegments() {
+		return directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(JournalSegment.DATA_SUFFIX);
+			}
+		}).length;
+	}
+
+	private static List<String> replay(EventJournal journal, long fromSequence) throws IOException {
+		Collector collector = new Collector();
+		journal.replay(fromSequence, collector);
+		return collector.events;
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++)
+			sb.append(c);
+		return sb.toString();
+	}
+
+	@Test
+	public void testAppendAndReplay() throws IOException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(64 * 1024);
+		journal.setSegmentCapacity(100);
+		for (int i = 0; i < 5; i++)
+			assertEquals(i, journal.append("topic" + i, "event" + i));
+		assertEquals(5, journal.append(null, "untopical"));
+
+		List<String> events = replay(journal, 0);
+		assertEquals(6, events.size());
+		assertEquals("topic0=event0", events.get(0));
+		assertEquals("topic4=event4", events.get(4));
+		assertEquals("null=untopical", events.get(5));
+
+		Collector collector = new Collector();
+		assertEquals(6, journal.replay(2, collector));
+		assertEquals(4, collector.events.size());
+		assertEquals("topic2=event2", collector.events.get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testRollover() throws IOException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		journal.setSegmentCapacity(3);
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, journal.append("topic", i));
+		assertEquals(4, countSegments());
+		assertEquals(0, journal.getFirstSequence());
+		assertEquals(10, journal.getNextSequence());
+
+		List<String> events = replay(journal, 0);
+		assertEquals(10, events.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals("topic=" + i, events.get(i));
+		assertEquals("topic=7", replay(journal, 7).get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testEventTooLarge() throws IOException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		try {
+			journal.append("topic", repeat('x', 2000));
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		assertEquals(0, journal.getNextSequence());
+		journal.close();
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		journal.setSegmentCapacity(3);
+		for (int i = 0; i < 5; i++)
+			journal.append("topic", i);
+		journal.close();
+
+		journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		journal.setSegmentCapacity(3);
+		assertEquals(0, journal.getFirstSequence());
+		assertEquals(5, journal.getNextSequence());
+		assertEquals(5, journal.append("topic", 5));
+		assertEquals(6, journal.append("topic", 6)); // starts a new segment
+		assertEquals(3, countSegments());
+		List<String> events = replay(journal, 0);
+		assertEquals(7, events.size());
+		for (int i = 0; i < 7; i++)
+			assertEquals("topic=" + i, events.get(i));
+		journal.close();
+	}
+
+	@Test
+	public void testReopenedSmallEmptySegment() throws IOException {
+		// left behind empty, with a smaller size than configured now
+		new JournalSegment(directory, 0, 1024, 1);
+
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(8192);
+		String large = repeat('x', 2000);
+		assertEquals(0, journal.append("topic", large));
+		assertEquals(1, countSegments());
+		assertEquals(1, journal.append("topic", large));
+		assertEquals(2, replay(journal, 0).size());
+		journal.close();
+	}
+
+	@Test
+	public void testMaxSegments() throws IOException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		journal.setSegmentCapacity(2);
+		journal.setMaxSegments(2);
+		for (int i = 0; i < 10; i++)
+			journal.append("topic", i);
+		assertEquals(2, countSegments());
+		assertEquals(6, journal.getFirstSequence());
+		List<String> events = replay(journal, 0);
+		assertEquals(4, events.size());
+		assertEquals("topic=6", events.get(0));
+		journal.close();
+	}
+
+	@Test
+	public void testRetentionTime() throws IOException, InterruptedException {
+		EventJournal journal = new EventJournal(directory);
+		journal.setSegmentSize(1024);
+		journal.setSegmentCapacity(2);
+		for (int i = 0; i < 3; i++)
+			journal.append("topic", i);
+		assertEquals(2, countSegments());
+
+		journal.setRetentionTime(50);
+		Thread.sleep(100);
+		// applied without starting a new segment
+		assertEquals(2, journal.getFirstSequence());
+		assertEquals(1, countSegments());
+		assertEquals(1, replay(journal, 0).size());
+		journal.close();
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	/**
+	 * Runs the task on a new thread, which has no cache of its own, and waits for it.
+	 */
+	static ByteBuffer[] onOtherThread(final BufferPool pool, final ByteBuffer[] release, final int acquire) throws InterruptedException {
+		final ByteBuffer[] acquired = new ByteBuffer[acquire];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if (release != null) {
+					for (ByteBuffer b : release)
+						pool.release(b);
+				}
+				for (int i = 0; i < acquire; i++)
+					acquired[i] = pool.acquire(1000);
+			}
+		};
+		t.start();
+		t.join();
+		return acquired;
+	}
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 8);
+		ByteBuffer b = pool.acquire(100);
+		assertEquals(256, b.capacity());
+		assertEquals(100, b.limit());
+		assertEquals(0, b.position());
+		assertEquals(512, pool.acquire(257).capacity());
+		assertEquals(4096, pool.acquire(4096).capacity());
+		assertEquals(256, pool.acquire(0).capacity());
+		assertEquals(0, pool.getUnpooledAllocationCount());
+
+		ByteBuffer large = pool.acquire(5000);
+		assertEquals(5000, large.capacity());
+		assertEquals(1, pool.getUnpooledAllocationCount());
+		pool.release(large); // dropped
+		assertNotSame(large, pool.acquire(5000));
+	}
+
+	@Test
+	public void testThreadCache() {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 8);
+		ByteBuffer b = pool.acquire(1000);
+		b.put((byte) 1);
+		pool.release(b);
+		ByteBuffer again = pool.acquire(600);
+		assertSame(b, again);
+		assertEquals("reacquired buffer is cleared", 0, again.position());
+		assertEquals(600, again.limit());
+		assertEquals(1, pool.getAllocationCount());
+	}
+
+	@Test
+	public void testForeignThreadReleasesToDepot() throws InterruptedException {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 8);
+		ByteBuffer b = pool.acquire(1000);
+		// released by a thread that never acquired, picked up by another one
+		onOtherThread(pool, new ByteBuffer[] { b }, 0);
+		ByteBuffer[] acquired = onOtherThread(pool, null, 1);
+		assertSame(b, acquired[0]);
+		assertEquals(1, pool.getAllocationCount());
+	}
+
+	@Test
+	public void testCacheOverflowToDepot() throws InterruptedException {
+		BufferPool pool = new BufferPool(false, 256, 4096, 1, 8);
+		ByteBuffer first = pool.acquire(1000);
+		ByteBuffer second = pool.acquire(1000);
+		pool.release(first); // into this thread's cache
+		pool.release(second); // cache full, into the depot
+		ByteBuffer[] acquired = onOtherThread(pool, null, 2);
+		assertSame(second, acquired[0]);
+		assertNotSame(first, acquired[1]);
+		assertSame(first, pool.acquire(1000));
+	}
+
+	@Test
+	public void testDepotLimit() throws InterruptedException {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 1);
+		ByteBuffer[] buffers = new ByteBuffer[] { pool.acquire(1000), pool.acquire(1000), pool.acquire(1000) };
+		onOtherThread(pool, buffers, 0);
+		long allocations = pool.getAllocationCount();
+		ByteBuffer[] acquired = onOtherThread(pool, null, 2);
+		assertSame(buffers[0], acquired[0]);
+		assertEquals("only one buffer fits into the depot", allocations + 1, pool.getAllocationCount());
+	}
+
+	@Test
+	public void testForeignBuffersAreDropped() {
+		BufferPool pool = new BufferPool(true, 256, 4096, 8, 8);
+		ByteBuffer heap = ByteBuffer.allocate(1024);
+		pool.release(heap);
+		ByteBuffer odd = ByteBuffer.allocateDirect(1000);
+		pool.release(odd);
+		ByteBuffer b = pool.acquire(1000);
+		assertNotSame(heap, b);
+		assertNotSame(odd, b);
+		assertTrue(b.isDirect());
+	}
+
+	@Test
+	public void testLeakDetection() {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 8);
+		pool.setLeakDetection(true);
+		ByteBuffer b = pool.acquire(1000);
+		assertEquals(1, pool.getTrackedCount());
+		pool.release(b);
+		assertEquals(0, pool.getTrackedCount());
+
+		// the second release is logged and ignored, so the buffer is only pooled once
+		pool.release(b);
+		assertSame(b, pool.acquire(1000));
+		assertNotSame(b, pool.acquire(1000));
+		assertEquals(2, pool.getTrackedCount());
+	}
+
+	@Test
+	public void testLeakDetectionEnabledLater() {
+		BufferPool pool = new BufferPool(false, 256, 4096, 8, 8);
+		ByteBuffer b = pool.acquire(1000);
+		pool.setLeakDetection(true);
+		pool.release(b); // acquired before, not a double release
+		assertEquals(0, pool.getTrackedCount());
+		assertSame(b, pool.acquire(1000));
+		assertEquals(1, pool.getTrackedCount());
+
+		pool.setLeakDetection(false);
+		assertEquals(0, pool.getTrackedCount());
+		pool.release(b);
+		assertSame(b, pool.acquire(1000));
+	}
+}
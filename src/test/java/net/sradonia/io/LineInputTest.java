@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class LineInputTest {
+
+	/**
+	 * Returns at most three bytes per read, so the buffer has to be refilled often.
+	 */
+	static InputStream trickle(String data) {
+		return new FilterInputStream(new ByteArrayInputStream(data.getBytes())) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+	}
+
+	@Test
+	public void testReadRefillsEmptyBuffer() throws IOException {
+		LineInput in = new LineInput(trickle("hello world"));
+		byte[] b = new byte[32];
+		StringBuilder sb = new StringBuilder();
+		int n;
+		while ((n = in.read(b, 0, b.length)) >= 0) {
+			assertTrue("read must not report EOF before the end", n > 0);
+			sb.append(new String(b, 0, n));
+		}
+		assertEquals("hello world", sb.toString());
+	}
+
+	@Test
+	public void testSkipRefillsEmptyBuffer() throws IOException {
+		LineInput in = new LineInput(trickle("abcdef"));
+		long skipped = 0;
+		while (skipped < 5) {
+			long n = in.skip(5 - skipped);
+			assertTrue("skip must not report EOF before the end", n > 0);
+			skipped += n;
+		}
+		assertEquals('f', in.read());
+		assertEquals(-1, in.read());
+		assertEquals(0, in.skip(1));
+	}
+
+	@Test
+	public void testLinesAndBytes() throws IOException {
+		LineInput in = new LineInput(trickle("first\r\nsecond\nthird\rbinary"));
+		assertEquals("first", in.readLine());
+		assertEquals("second", in.readLine());
+		assertEquals("third", in.readLine());
+		byte[] b = new byte[6];
+		int off = 0;
+		while (off < b.length) {
+			int n = in.read(b, off, b.length - off);
+			assertTrue(n > 0);
+			off += n;
+		}
+		assertEquals("binary", new String(b));
+		assertEquals(-1, in.read(b, 0, b.length));
+		assertNull(in.readLine());
+	}
+}
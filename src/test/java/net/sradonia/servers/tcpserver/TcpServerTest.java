@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.sradonia.servers.ShutdownResult;
+
+public class TcpServerTest {
+
+	/**
+	 * Echoes lines until the client closes the connection or sends an empty line.
+	 */
+	static class EchoListener extends TcpServerAdapter {
+		final Semaphore started = new Semaphore(0);
+
+		@Override
+		public void onServerStarted(TcpServer src) {
+			started.release();
+		}
+
+		@Override
+		public void onConnect(TcpServer src, TcpServerSocket connection) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+				OutputStream out = connection.getOutputStream();
+				String line;
+				while ((line = in.readLine()) != null && line.length() > 0) {
+					out.write((line + "\n").getBytes());
+					out.flush();
+				}
+			} catch (IOException e) {
+				// closed by the shutdown
+			}
+		}
+	}
+
+	/**
+	 * Echoes everything received on the channel.
+	 */
+	static class ChannelEchoListener extends TcpChannelAdapter {
+		@Override
+		public void onReadable(TcpServer src, TcpChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			if (channel.read(buffer) < 0) {
+				channel.close();
+				return;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	static void start(TcpServer server, Semaphore started) throws InterruptedException {
+		server.setRunning(true);
+		assertTrue("server didn't start", started.tryAcquire(5, TimeUnit.SECONDS));
+		assertTrue(server.getPort() > 0);
+	}
+
+	static Socket connect(TcpServer server) throws IOException {
+		Socket client = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+		client.setSoTimeout(5000);
+		return client;
+	}
+
+	static String exchange(Socket client, String line) throws IOException {
+		client.getOutputStream().write((line + "\n").getBytes());
+		return new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+	}
+
+	static void awaitHandlers(TcpServer server, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getActiveHandlerCount() != count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, server.getActiveHandlerCount());
+	}
+
+	static void assertIdle(TcpServer server) {
+		assertEquals(0, server.getActiveConnectionCount());
+		assertEquals(0, server.getPendingHandoffCount());
+		assertEquals(0, server.getActiveHandlerCount());
+	}
+
+	/**
+	 * Exchanges a message on a connection kept open by keep-alive, shuts the server down and repeats both after a restart on the same port.
+	 */
+	static void exchangeAndRestart(TcpServer server, Semaphore started, boolean blocking) throws Exception {
+		start(server, started);
+		int port = server.getPort();
+		for (int run = 0; run < 2; run++) {
+			if (run > 0)
+				start(server, started);
+			assertEquals(port, server.getPort());
+			Socket client = connect(server);
+			try {
+				assertEquals("ping " + run, exchange(client, "ping " + run));
+				if (blocking) {
+					// finish the handler, keep-alive leaves the connection open
+					client.getOutputStream().write("\n".getBytes());
+					awaitHandlers(server, 0);
+				}
+				assertEquals(1, server.getActiveConnectionCount());
+
+				long begin = System.nanoTime();
+				ShutdownResult result = server.shutdown(10, TimeUnit.SECONDS);
+				assertTrue("waited for an idle connection", System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+				assertFalse(server.isRunning());
+				assertEquals(1, result.getDrainedCount());
+				assertEquals(0, result.getAbortedCount());
+				assertIdle(server);
+				assertEquals(-1, client.getInputStream().read());
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	public void testBlocking() throws Exception {
+		EchoListener listener = new EchoListener();
+		TcpServer server = new TcpServer(0, listener, true);
+		assertTrue(server.isKeepAlive());
+		exchangeAndRestart(server, listener.started, true);
+	}
+
+	@Test
+	public void testNonBlocking() throws Exception {
+		final Semaphore started = new Semaphore(0);
+		TcpServer server = new TcpServer(0, new ChannelEchoListener(), true);
+		server.setListener(new TcpServerAdapter() {
+			@Override
+			public void onServerStarted(TcpServer src) {
+				started.release();
+			}
+		});
+		exchangeAndRestart(server, started, false);
+	}
+
+	@Test
+	public void testShutdownAbortsHandlers() throws Exception {
+		EchoListener listener = new EchoListener();
+		TcpServer server = new TcpServer(0, listener, true);
+		server.setWorkerPool(1, 1, 10);
+		start(server, listener.started);
+
+		// the first handler blocks reading, the second one waits in the queue
+		Socket first = connect(server);
+		Socket second = connect(server);
+		try {
+			awaitHandlers(server, 2);
+			ShutdownResult result = server.shutdown(100, TimeUnit.MILLISECONDS);
+			assertEquals(0, result.getDrainedCount());
+			assertEquals(2, result.getAbortedCount());
+			awaitHandlers(server, 0);
+			assertIdle(server);
+			assertEquals(-1, first.getInputStream().read());
+			assertEquals(-1, second.getInputStream().read());
+		} finally {
+			first.close();
+			second.close();
+		}
+
+		start(server, listener.started);
+		Socket client = connect(server);
+		try {
+			assertEquals("pong", exchange(client, "pong"));
+		} finally {
+			client.close();
+		}
+		awaitHandlers(server, 0);
+		ShutdownResult result = server.shutdown(5, TimeUnit.SECONDS);
+		assertEquals(0, result.getAbortedCount());
+		assertIdle(server);
+	}
+}
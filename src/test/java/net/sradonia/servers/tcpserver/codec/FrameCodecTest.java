@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.tcpserver.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sradonia.io.BufferPool;
+import net.sradonia.io.LineInput;
+import net.sradonia.io.MultiChannelInputStream;
+import net.sradonia.io.MultiChannelInputStream.Packet;
+import net.sradonia.servers.tcpserver.TcpServer;
+import net.sradonia.servers.tcpserver.TcpServerAdapter;
+import net.sradonia.servers.tcpserver.TcpServerSocket;
+
+public class FrameCodecTest {
+
+	/**
+	 * Returns at most three bytes per read, so frames arrive in pieces as on a slow connection.
+	 */
+	static LineInput trickle(byte[] data) {
+		InputStream in = new FilterInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+		return new LineInput(in, 16);
+	}
+
+	static <T> byte[] encode(FrameEncoder<T> encoder, List<T> messages) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (T message : messages)
+			encoder.encode(message, out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testLengthPrefixedRoundTrip() throws IOException {
+		LengthPrefixedCodec codec = new LengthPrefixedCodec(1024);
+		byte[] large = new byte[1000];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) i;
+		LineInput in = trickle(encode(codec, Arrays.asList("first".getBytes(), new byte[0], large)));
+		assertEquals("first", new String(codec.decode(in)));
+		assertEquals(0, codec.decode(in).length);
+		assertTrue(Arrays.equals(large, codec.decode(in)));
+		assertNull(codec.decode(in));
+	}
+
+	@Test
+	public void testLengthPrefixedLimits() throws IOException {
+		LengthPrefixedCodec codec = new LengthPrefixedCodec(4);
+		try {
+			codec.encode("too long".getBytes(), new ByteArrayOutputStream());
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		try {
+			codec.decode(trickle(encode(new LengthPrefixedCodec(), Collections.singletonList("too long".getBytes()))));
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		byte[] truncated = encode(codec, Collections.singletonList("abcd".getBytes()));
+		try {
+			codec.decode(trickle(Arrays.copyOf(truncated, truncated.length - 1)));
+			fail("EOFException expected");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test
+	public void testLineRoundTrip() throws IOException {
+		LineCodec codec = new LineCodec();
+		LineInput in = trickle(encode(codec, Arrays.asList("first", "", "gr\u00fc\u00dfe")));
+		assertEquals("first", codec.decode(in));
+		assertEquals("", codec.decode(in));
+		assertEquals("gr\u00fc\u00dfe", codec.decode(in));
+		assertNull(codec.decode(in));
+
+		// any line terminator is accepted inbound
+		in = trickle("a\rb\nc".getBytes("UTF-8"));
+		assertEquals("a", codec.decode(in));
+		assertEquals("b", codec.decode(in));
+		assertEquals("c", codec.decode(in));
+		assertNull(codec.decode(in));
+	}
+
+	@Test
+	public void testMultiChannelRoundTrip() throws IOException {
+		MultiChannelCodec codec = new MultiChannelCodec();
+		LineInput in = trickle(encode(codec, Arrays.asList(new Packet(1, "first".getBytes()), new Packet(-7, new byte[0]), new Packet(42, new byte[100]))));
+		Packet p = codec.decode(in);
+		assertEquals(1, p.getType());
+		assertEquals("first", new String(p.getData()));
+		p = codec.decode(in);
+		assertEquals(-7, p.getType());
+		assertEquals(0, p.getData().length);
+		p = codec.decode(in);
+		assertEquals(42, p.getType());
+		assertEquals(100, p.getData().length);
+		assertNull(codec.decode(in));
+	}
+
+	@Test
+	public void testMultiChannelLimits() throws IOException {
+		byte[] huge = { 0x01, 0, 0, 0, 1, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x02 };
+		try {
+			new MultiChannelCodec().decode(trickle(huge));
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		try {
+			new MultiChannelInputStream(new ByteArrayInputStream(huge)).readPacket();
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		MultiChannelCodec codec = new MultiChannelCodec(4);
+		try {
+			codec.encode(new Packet(1, "too long".getBytes()), new ByteArrayOutputStream());
+			fail("IOException expected");
+		} catch (IOException e) {
+		}
+		byte[] encoded = encode(codec, Collections.singletonList(new Packet(3, "abcd".getBytes())));
+		Packet p = new MultiChannelInputStream(new ByteArrayInputStream(encoded), 4).readPacket();
+		assertEquals(3, p.getType());
+		assertEquals("abcd", new String(p.getData()));
+		try {
+			codec.decode(trickle(Arrays.copyOf(encoded, encoded.length - 1)));
+			fail("EOFException expected");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test
+	public void testWriteAfterDiscard() throws IOException {
+		BufferPool pool = new BufferPool(false, 256, 64 * 1024, 8, 8);
+		pool.setLeakDetection(true);
+		LineCodec codec = new LineCodec();
+		CodecPipeline<String, String> pipeline = new CodecPipeline<String, String>(codec, codec, new MessageHandler<String, String>() {
+			public void onMessage(CodecConnection<String, String> connection, String message) {
+			}
+		});
+		pipeline.setBufferPool(pool);
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ServerSocket server = new ServerSocket(0, 1, loopback);
+		TcpServerSocket socket = new TcpServerSocket(new TcpServer(0, new TcpServerAdapter()), loopback, server.getLocalPort());
+		Socket peer = server.accept();
+		try {
+			CodecConnection<String, String> connection = new CodecConnection<String, String>(pipeline, socket);
+			connection.write("pending");
+			assertEquals(1, pool.getTrackedCount());
+			connection.discard();
+			assertEquals(0, pool.getTrackedCount());
+			try {
+				connection.write("late");
+				fail("IOException expected");
+			} catch (IOException e) {
+			}
+			assertEquals("no buffer acquired for the rejected write", 0, pool.getTrackedCount());
+		} finally {
+			peer.close();
+			socket.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.servers.udpserver;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.sradonia.servers.ShutdownResult;
+
+public class UdpServerTest {
+
+	/**
+	 * Echoes every packet back to its sender, after waiting for the gate to open.
+	 */
+	static class EchoListener extends UdpServerAdapter {
+		final Semaphore started = new Semaphore(0);
+		volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public void onServerStarted(UdpServer src) {
+			started.release();
+		}
+
+		@Override
+		public void onReceivedPacket(UdpServer src, DatagramPacket packet) {
+			echo(src, packet.getAddress(), packet.getPort(), new String(packet.getData(), packet.getOffset(), packet.getLength()));
+		}
+
+		void echo(UdpServer src, InetAddress address, int port, String message) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			src.sendPacket(address, port, message);
+		}
+	}
+
+	/**
+	 * Echoes the pooled packets without copying them into a {@link DatagramPacket}.
+	 */
+	static class ZeroCopyEchoListener extends EchoListener implements UdpPacketListener {
+		public void onReceivedPacket(UdpServer src, UdpPacket packet) {
+			echo(src, packet.getAddress(), packet.getPort(), new String(packet.toByteArray()));
+		}
+	}
+
+	static void start(UdpServer server, EchoListener listener) throws InterruptedException {
+		server.setRunning(true);
+		assertTrue("server didn't start", listener.started.tryAcquire(5, TimeUnit.SECONDS));
+		assertTrue(server.getPort() > 0);
+	}
+
+	static String exchange(UdpServer server, String message) throws IOException {
+		DatagramSocket client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		try {
+			client.setSoTimeout(5000);
+			byte[] data = message.getBytes();
+			client.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), server.getPort()));
+			DatagramPacket reply = new DatagramPacket(new byte[1024], 1024);
+			client.receive(reply);
+			return new String(reply.getData(), reply.getOffset(), reply.getLength());
+		} finally {
+			client.close();
+		}
+	}
+
+	static void awaitPending(UdpServer server, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPendingPacketCount() != count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, server.getPendingPacketCount());
+	}
+
+	/**
+	 * Exchanges a message, shuts the server down and repeats both after a restart on the same port.
+	 */
+	static void exchangeAndRestart(UdpServer server, EchoListener listener) throws Exception {
+		start(server, listener);
+		int port = server.getPort();
+		for (int run = 0; run < 2; run++) {
+			if (run > 0)
+				start(server, listener);
+			assertEquals(port, server.getPort());
+			assertEquals("ping " + run, exchange(server, "ping " + run));
+
+			ShutdownResult result = server.shutdown(5, TimeUnit.SECONDS);
+			assertFalse(server.isRunning());
+			assertTrue(result.toString(), result.isComplete());
+			assertEquals(0, result.getAbortedCount());
+			assertTrue(result.getDrainedCount() <= 1);
+			assertEquals(0, server.getPendingPacketCount());
+		}
+		server.closeSenders();
+	}
+
+	@Test
+	public void testBlocking() throws Exception {
+		EchoListener listener = new EchoListener();
+		UdpServer server = new UdpServer(0, listener, true);
+		assertFalse(server.isChannelEngine());
+		exchangeAndRestart(server, listener);
+	}
+
+	@Test
+	public void testBlockingZeroCopy() throws Exception {
+		EchoListener listener = new ZeroCopyEchoListener();
+		exchangeAndRestart(new UdpServer(0, listener, true), listener);
+	}
+
+	@Test
+	public void testChannelEngine() throws Exception {
+		EchoListener listener = new EchoListener();
+		UdpServer server = new UdpServer(0, listener, true);
+		server.setReaderCount(1);
+		assertTrue(server.isChannelEngine());
+		exchangeAndRestart(server, listener);
+	}
+
+	@Test
+	public void testChannelEngineZeroCopy() throws Exception {
+		EchoListener listener = new ZeroCopyEchoListener();
+		UdpServer server = new UdpServer(0, listener, true);
+		server.setReaderCount(1);
+		exchangeAndRestart(server, listener);
+	}
+
+	@Test
+	public void testShutdownDrainsPendingPackets() throws Exception {
+		EchoListener listener = new EchoListener();
+		UdpServer server = new UdpServer(0, listener, true);
+		server.setWorkerPool(1, 1, 10);
+		start(server, listener);
+
+		listener.gate = new CountDownLatch(1);
+		DatagramSocket client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		try {
+			for (int i = 0; i < 2; i++)
+				client.send(new DatagramPacket(new byte[1], 1, InetAddress.getByName("127.0.0.1"), server.getPort()));
+			awaitPending(server, 2);
+			final CountDownLatch gate = listener.gate;
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+					}
+					gate.countDown();
+				}
+			}.start();
+			ShutdownResult result = server.shutdown(5, TimeUnit.SECONDS);
+			assertEquals(2, result.getDrainedCount());
+			assertEquals(0, result.getAbortedCount());
+			assertEquals(0, server.getPendingPacketCount());
+		} finally {
+			client.close();
+			server.closeSenders();
+		}
+	}
+
+	@Test
+	public void testShutdownAbortsPendingPackets() throws Exception {
+		EchoListener listener = new EchoListener();
+		UdpServer server = new UdpServer(0, listener, true);
+		server.setWorkerPool(1, 1, 10);
+		start(server, listener);
+
+		CountDownLatch gate = listener.gate = new CountDownLatch(1);
+		DatagramSocket client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		try {
+			for (int i = 0; i < 3; i++)
+				client.send(new DatagramPacket(new byte[1], 1, InetAddress.getByName("127.0.0.1"), server.getPort()));
+			awaitPending(server, 3);
+			ShutdownResult result = server.shutdown(100, TimeUnit.MILLISECONDS);
+			assertEquals(0, result.getDrainedCount());
+			assertEquals(3, result.getAbortedCount());
+			// the queued packets have been discarded, at most the interrupted handler is left
+			assertTrue(server.getPendingPacketCount() <= 1);
+			gate.countDown();
+			awaitPending(server, 0);
+
+			listener.gate = new CountDownLatch(0);
+			start(server, listener);
+			assertEquals("pong", exchange(server, "pong"));
+			assertTrue(server.shutdown(5, TimeUnit.SECONDS).isComplete());
+			assertEquals(0, server.getPendingPacketCount());
+		} finally {
+			gate.countDown();
+			client.close();
+			server.closeSenders();
+		}
+	}
+}
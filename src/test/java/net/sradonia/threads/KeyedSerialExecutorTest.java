@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * sradonia tools
+ * Copyright (C) 2012 Stefan Rado
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package net.sradonia.threads;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KeyedSerialExecutorTest {
+
+	/**
+	 * An executor only queueing the tasks, run by the test itself.
+	 */
+	static class ManualExecutor implements Executor {
+		final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				task.run();
+		}
+	}
+
+	@Test
+	public void testOrderPerKey() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			KeyedSerialExecutor executor = new KeyedSerialExecutor(pool, 3);
+			final int keys = 8;
+			final int tasks = 500;
+			final List<List<Integer>> results = new ArrayList<List<Integer>>();
+			final AtomicInteger[] inside = new AtomicInteger[keys];
+			final AtomicBoolean overlap = new AtomicBoolean();
+			final CountDownLatch done = new CountDownLatch(keys * tasks);
+			for (int k = 0; k < keys; k++) {
+				results.add(new ArrayList<Integer>());
+				inside[k] = new AtomicInteger();
+			}
+			for (int i = 0; i < tasks; i++) {
+				for (int k = 0; k < keys; k++) {
+					final int key = k;
+					final int seq = i;
+					executor.execute("key" + k, new Runnable() {
+						public void run() {
+							if (inside[key].incrementAndGet() > 1)
+								overlap.set(true);
+							results.get(key).add(seq);
+							inside[key].decrementAndGet();
+							done.countDown();
+						}
+					});
+				}
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertFalse("tasks of the same key overlapped", overlap.get());
+			for (int k = 0; k < keys; k++) {
+				List<Integer> result = results.get(k);
+				assertEquals(tasks, result.size());
+				for (int i = 0; i < tasks; i++)
+					assertEquals(Integer.valueOf(i), result.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testDifferentKeysInParallel() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+			final CountDownLatch second = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(1);
+			executor.execute("a", new Runnable() {
+				public void run() {
+					try {
+						// only finishes if "b" runs meanwhile
+						if (second.await(5, TimeUnit.SECONDS))
+							done.countDown();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+			executor.execute("b", new Runnable() {
+				public void run() {
+					second.countDown();
+				}
+			});
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testKeyRetirement() {
+		ManualExecutor manual = new ManualExecutor();
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(manual);
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		executor.execute("a", task);
+		executor.execute("a", task);
+		executor.execute("b", task);
+		assertEquals(2, executor.getActiveKeyCount());
+		assertEquals("one run per key", 2, manual.tasks.size());
+		manual.runAll();
+		assertEquals(3, runs.get());
+		assertEquals(0, executor.getActiveKeyCount());
+
+		// a retired key is used again
+		executor.execute("a", task);
+		assertEquals(1, executor.getActiveKeyCount());
+		manual.runAll();
+		assertEquals(4, runs.get());
+		assertEquals(0, executor.getActiveKeyCount());
+	}
+
+	@Test
+	public void testHandBack() {
+		ManualExecutor manual = new ManualExecutor();
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(manual, 2);
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < 5; i++) {
+			final int seq = i;
+			executor.execute("a", new Runnable() {
+				public void run() {
+					order.add(seq);
+				}
+			});
+		}
+		assertEquals(1, manual.tasks.size());
+		manual.tasks.poll().run();
+		assertEquals(2, order.size());
+		assertEquals("resubmitted after maxTasksPerRun", 1, manual.tasks.size());
+		manual.runAll();
+		assertEquals(5, order.size());
+		for (int i = 0; i < 5; i++)
+			assertEquals(Integer.valueOf(i), order.get(i));
+		assertEquals(0, executor.getActiveKeyCount());
+	}
+
+	@Test
+	public void testRejection() {
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(new Executor() {
+			public void execute(Runnable task) {
+				throw new RejectedExecutionException();
+			}
+		});
+		final AtomicInteger runs = new AtomicInteger();
+		try {
+			executor.execute("a", new Runnable() {
+				public void run() {
+					runs.incrementAndGet();
+				}
+			});
+			fail("rejection expected");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(0, runs.get());
+		assertEquals(0, executor.getActiveKeyCount());
+	}
+
+	@Test
+	public void testRejectionRunsTasksAcceptedMeanwhile() {
+		final AtomicInteger runs = new AtomicInteger();
+		final Runnable other = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		final KeyedSerialExecutor[] executor = new KeyedSerialExecutor[1];
+		executor[0] = new KeyedSerialExecutor(new Executor() {
+			boolean first = true;
+
+			public void execute(Runnable task) {
+				if (first) {
+					first = false;
+					// another task of the key is accepted while the run is being rejected
+					executor[0].execute("a", other);
+				}
+				throw new RejectedExecutionException();
+			}
+		});
+		try {
+			executor[0].execute("a", new Runnable() {
+				public void run() {
+					fail("the rejected task must not run");
+				}
+			});
+			fail("rejection expected");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals("the accepted task has to run", 1, runs.get());
+		assertEquals(0, executor[0].getActiveKeyCount());
+	}
+}